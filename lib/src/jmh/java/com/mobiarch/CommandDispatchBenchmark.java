@@ -0,0 +1,76 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the handler of a command line from its packed verb, 
+ * the way SMTPState does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDispatchBenchmark {
+    //Known in upper and lower case and not found
+    @Param({"HELO example.com\r\n", "rcpt to:<bob@example.com>\r\n", "NOOP\r\n"})
+    public String line;
+
+    private Dispatcher dispatcher;
+    private ByteBuffer buff;
+
+    private static class Dispatcher extends BaseState {
+        private static final CommandTable<Dispatcher> COMMANDS = new CommandTable<Dispatcher>()
+            .add("HELO", (s, c) -> s.handled = 1)
+            .add("EHLO", (s, c) -> s.handled = 2)
+            .add("MAIL", (s, c) -> s.handled = 3)
+            .add("RCPT", (s, c) -> s.handled = 4)
+            .add("DATA", (s, c) -> s.handled = 5)
+            .add("BDAT", (s, c) -> s.handled = 6)
+            .add("QUIT", (s, c) -> s.handled = 7);
+
+        int handled;
+
+        int dispatch(ByteBuffer line) throws IOException {
+            in = line;
+            in.clear();
+
+            var handler = COMMANDS.get(parseCommand());
+
+            handled = 0;
+
+            if (handler != null) {
+                handler.handle(this, null);
+            }
+
+            return handled;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        dispatcher = new Dispatcher();
+        buff = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Benchmark
+    public int dispatch() throws IOException {
+        return dispatcher.dispatch(buff);
+    }
+}
@@ -0,0 +1,117 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End of DATA detection and dot unstuffing of a 64 KB message 
+ * read in chunks the size of the read buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataScannerBenchmark {
+    private static final int MESSAGE_SIZE = 64 * 1024;
+
+    //Bytes handed to the scanner per read
+    @Param({"256", "8192"})
+    public int chunkSize;
+
+    //Whether every 10th line starts with a dot
+    @Param({"false", "true"})
+    public boolean dotLines;
+
+    private byte[] message;
+    private ByteBuffer chunk;
+    private final DataScanner scanner = new DataScanner();
+    private final WritableByteChannel sink = new NullChannel();
+
+    /**
+     * Throws away whatever is written. Like a file write 
+     * without the cost of I/O.
+     */
+    static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int sz = src.remaining();
+
+            src.position(src.limit());
+
+            return sz;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Builds a message of about the given size ending 
+     * with the end of data marker.
+     */
+    static byte[] buildMessage(int size, boolean dotLines) {
+        var sb = new StringBuilder(size + 100);
+
+        sb.append("Subject: Benchmark\r\nFrom: a@example.com\r\nTo: b@example.com\r\n\r\n");
+
+        for (int line = 0; sb.length() < size; ++line) {
+            if (dotLines && line % 10 == 0) {
+                sb.append("..");
+            }
+
+            sb.append("The quick brown fox jumps over the lazy dog. Line ").append(line).append("\r\n");
+        }
+
+        sb.append(".\r\n");
+
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Setup
+    public void setup() {
+        message = buildMessage(MESSAGE_SIZE, dotLines);
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    @Benchmark
+    public boolean scan() throws IOException {
+        boolean isEnd = false;
+
+        scanner.reset();
+
+        //The scanner unstuffs in place. So copy 
+        //the message in afresh, like a read does.
+        for (int offset = 0; offset < message.length && !isEnd; offset += chunkSize) {
+            chunk.clear();
+            chunk.put(message, offset, Math.min(chunkSize, message.length - offset));
+            chunk.flip();
+
+            isEnd = scanner.scan(chunk, sink);
+        }
+
+        return isEnd;
+    }
+}
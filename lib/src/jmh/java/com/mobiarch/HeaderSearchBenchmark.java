@@ -0,0 +1,81 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up messages by their headers in a large index. Each
+ * message goes to one of 100 mailboxes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderSearchBenchmark {
+    @Param({"100000"})
+    public int messages;
+
+    private HeaderIndex index;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        var mailboxes = new Mailboxes(Files.createTempDirectory("devmail-bench"));
+
+        for (int i = 0; i < messages; ++i) {
+            var header = String.format("""
+                Message-ID: <%d@example.com>\r
+                Subject: Order %d shipped\r
+                From: shop@example.com\r
+                To: user%d@example.com\r
+                Date: Mon, 1 Jan 2024 10:00:00 +0000\r
+                X-Test-Id: test-%d\r
+                \r
+                """, i, i, i % 100, i);
+            var msg = new MessageInfo(Integer.toString(i), header.length(), null,
+                List.of("user" + (i % 100) + "@example.com"));
+
+            msg.setHeaders(MessageHeaders.parse(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII))));
+            mailboxes.add(msg);
+        }
+
+        index = mailboxes.getHeaderIndex();
+    }
+
+    @Benchmark
+    public HeaderIndex.Page byTestId() {
+        next = (next + 1) % messages;
+
+        return index.search(new HeaderQuery().header("X-Test-Id", "test-" + next));
+    }
+
+    @Benchmark
+    public HeaderIndex.Page byRecipientAndSubject() {
+        next = (next + 1) % messages;
+
+        return index.search(new HeaderQuery().to("user" + (next % 100) + "@example.com").subject("order " + next));
+    }
+
+    @Benchmark
+    public HeaderIndex.Page firstPageFromSender() {
+        return index.search(new HeaderQuery().from("shop@example.com"));
+    }
+}
@@ -0,0 +1,59 @@
+package com.mobiarch;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A connection that pretends every write went out in full. Lets the 
+ * protocol code be measured without any socket I/O.
+ */
+class NullConnection implements Connection {
+    private int ops = OP_READ;
+
+    @Override
+    public int read(ByteBuffer dst) {
+        return 0;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int sz = src.remaining();
+
+        src.position(src.limit());
+
+        return sz;
+    }
+
+    @Override
+    public long sendFile(FileChannel file, long position, long count) {
+        return count;
+    }
+
+    @Override
+    public void interestOps(int ops) {
+        this.ops = ops;
+    }
+
+    @Override
+    public int interestOps() {
+        return ops;
+    }
+
+    @Override
+    public void execute(Task task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void executeAlways(Task task) {
+        execute(task);
+    }
+
+    @Override
+    public void close() {
+    }
+}
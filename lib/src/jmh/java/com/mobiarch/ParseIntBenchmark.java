@@ -0,0 +1,45 @@
+package com.mobiarch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the numeric arguments of commands like RETR and BDAT.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseIntBenchmark {
+    @Param({"RETR 7\r\n", "BDAT 1048576 LAST\r\n", "TOP 12345 -0012\r\n"})
+    public String line;
+
+    private ByteBuffer buff;
+
+    @Setup
+    public void setup() {
+        buff = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Benchmark
+    public int parseFirst() {
+        buff.position(0);
+
+        return BaseState.parseInt(buff);
+    }
+}
@@ -0,0 +1,179 @@
+package com.mobiarch;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>A message sent over SMTP and read back over POP3 through the 
+ * loopback interface. The server runs in the benchmark JVM.</p>
+ * 
+ * <p>The message is deleted after it's read so the mailbox 
+ * does not grow. The server listens on free ports and keeps
+ * its mail in a temporary directory.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+    @Param({"NONE", "SYNC"})
+    public String durability;
+
+    @Param({"1024", "65536"})
+    public int messageSize;
+
+    @Param({"FILES", "SEGMENTS", "MEMORY"})
+    public String store;
+
+    private byte[] message;
+    private DevMailServer server;
+
+    /**
+     * Reads CRLF terminated replies from a socket.
+     */
+    private static class Client implements AutoCloseable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final StringBuilder line = new StringBuilder();
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        String readLine() throws IOException {
+            line.setLength(0);
+
+            int ch;
+
+            while ((ch = in.read()) != '\n') {
+                if (ch < 0) {
+                    throw new IOException("Server disconnected");
+                }
+
+                if (ch != '\r') {
+                    line.append((char) ch);
+                }
+            }
+
+            return line.toString();
+        }
+
+        /**
+         * Reads a reply and fails if it's not the expected kind.
+         */
+        String expect(String prefix) throws IOException {
+            var reply = readLine();
+
+            if (!reply.startsWith(prefix)) {
+                throw new IOException("Unexpected reply: " + reply);
+            }
+
+            return reply;
+        }
+
+        void send(String cmd) throws IOException {
+            out.write(cmd.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        void send(byte[] bytes) throws IOException {
+            out.write(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        message = DataScannerBenchmark.buildMessage(messageSize, true);
+
+        server = DevMailServer.builder()
+            .smtpPort(0)
+            .pop3Port(0)
+            .mailDir(Files.createTempDirectory("devmail-bench"))
+            .durability(Durability.valueOf(durability))
+            .storeType(StoreType.valueOf(store))
+            .reactors(2)
+            .start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void roundTrip() throws IOException {
+        try (var smtp = new Client(server.getSmtpPort())) {
+            smtp.expect("220");
+            smtp.send("EHLO bench\r\n");
+
+            while (!smtp.expect("250").startsWith("250 ")) {
+                //Skip the extension lines
+            }
+
+            //PIPELINING lets these go together
+            smtp.send("MAIL FROM:<a@example.com>\r\nRCPT TO:<b@example.com>\r\nDATA\r\n");
+            smtp.expect("250");
+            smtp.expect("250");
+            smtp.expect("354");
+            //Ends with the end of data marker
+            smtp.send(message);
+            smtp.expect("250");
+            smtp.send("QUIT\r\n");
+            smtp.expect("221");
+        }
+
+        try (var pop3 = new Client(server.getPop3Port())) {
+            pop3.expect("+OK");
+            pop3.send("USER b@example.com\r\n");
+            pop3.expect("+OK");
+            pop3.send("PASS bench\r\n");
+            pop3.expect("+OK");
+            pop3.send("STAT\r\n");
+
+            //The new message is the last one
+            var count = pop3.expect("+OK").split(" ")[1];
+
+            pop3.send("RETR " + count + "\r\n");
+            pop3.expect("+OK");
+
+            while (!pop3.readLine().equals(".")) {
+                //Read the message
+            }
+
+            pop3.send("DELE " + count + "\r\n");
+            pop3.expect("+OK");
+            pop3.send("QUIT\r\n");
+            pop3.expect("+OK");
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a reply into the out buffer and writing it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendReplyBenchmark {
+    @Param({"250 Ok\r\n", "+OK Mailbox scan listing follows\r\n"})
+    public String reply;
+
+    private Replier replier;
+    private final NullConnection conn = new NullConnection();
+
+    private static class Replier extends BaseState {
+        Replier(ServerContext context) {
+            this.context = context;
+        }
+
+        void reply(Connection conn, String txt) throws IOException {
+            sendReply(conn, txt);
+
+            //Write it out and give back the 
+            //buffer like the states do
+            conn.write(out);
+            releaseOut();
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        replier = new Replier(new ServerContext(Durability.NONE, 0, TransferMode.SENDFILE, StoreType.FILES, 1));
+    }
+
+    @Benchmark
+    public void sendReply() throws IOException {
+        replier.reply(conn, reply);
+    }
+}
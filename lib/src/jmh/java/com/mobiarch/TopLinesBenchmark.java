@@ -0,0 +1,73 @@
+package com.mobiarch;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding where the TOP command's output ends. Scanning the message 
+ * compared to looking it up in the index built at delivery.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopLinesBenchmark {
+    @Param({"0", "10", "100"})
+    public int topLines;
+
+    private ByteBuffer message;
+    private TopIndex index;
+
+    @Setup
+    public void setup() {
+        byte[] bytes = DataScannerBenchmark.buildMessage(64 * 1024, false);
+
+        //Leave out the end of data marker
+        message = ByteBuffer.allocateDirect(bytes.length - 3);
+        message.put(bytes, 0, bytes.length - 3);
+        message.flip();
+
+        index = TopIndex.build(message);
+    }
+
+    @Benchmark
+    public int scan() {
+        //The scan moves the position
+        message.position(0);
+
+        return POP3State.locateTopLines(message, topLines);
+    }
+
+    @Benchmark
+    public long indexed() {
+        long end = index.locate(topLines);
+
+        if (end < 0) {
+            //Beyond the index. Fall back to a scan.
+            message.position(0);
+
+            end = POP3State.locateTopLines(message, topLines);
+        }
+
+        return end;
+    }
+
+    @Benchmark
+    public TopIndex buildIndex() {
+        return TopIndex.build(message);
+    }
+}
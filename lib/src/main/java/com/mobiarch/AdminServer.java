@@ -0,0 +1,264 @@
+package com.mobiarch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>A small HTTP server for looking into a running devmail. Listens on
+ * the loopback interface only.</p>
+ *
+ * <p>GET /metrics returns the {@link Metrics} in the Prometheus text
+ * format.</p>
+ *
+ * <p>GET /search looks up messages in the {@link HeaderIndex}. The
+ * parameters are those of {@link HeaderQuery}. All are optional:</p>
+ * <pre>
+ * /search?to=bob@example.com&amp;subject=welcome&amp;header=X-Test-Id:42
+ *     &amp;messageId=...&amp;from=...&amp;cc=...&amp;mailbox=...
+ *     &amp;since=2024-01-01T00:00:00Z&amp;before=...&amp;after=&lt;cursor&gt;&amp;limit=50
+ * </pre>
+ * <p>The page is streamed back as JSON:</p>
+ * <pre>
+ * {"messages":[{"cursor":0,"id":"...","size":123,"mailboxes":["bob@example.com"],
+ *   "headers":{"subject":["Welcome"],...}},...],"next":null}
+ * </pre>
+ * <p>"next" is the cursor of the next page. null if this is the last.</p>
+ */
+public class AdminServer {
+    private final ServerContext context;
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    public AdminServer(ServerContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Starts serving on a single background thread.
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        server.createContext("/metrics", this::onMetrics);
+        server.createContext("/search", this::onSearch);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "devmail-admin");
+
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+
+        Log.info("Starting admin server at port %d", getPort());
+    }
+
+    /**
+     * @return The port being listened on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+
+            server = null;
+        }
+    }
+
+    private void onMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+
+                return;
+            }
+
+            var body = context.getMetrics().toPrometheus().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private void onSearch(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+
+                return;
+            }
+
+            HeaderQuery query;
+
+            try {
+                query = parseQuery(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                var body = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(400, body.length);
+                exchange.getResponseBody().write(body);
+
+                return;
+            }
+
+            var page = context.getMailboxes().getHeaderIndex().search(query);
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            //Chunked. Each hit is written as it's encoded.
+            exchange.sendResponseHeaders(200, 0);
+
+            var out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8));
+            var json = new StringBuilder();
+            boolean isFirst = true;
+
+            out.write("{\"messages\":[");
+
+            for (var hit : page.getHits()) {
+                json.setLength(0);
+
+                if (!isFirst) {
+                    json.append(',');
+                }
+
+                isFirst = false;
+                appendHit(json, hit);
+                out.append(json);
+            }
+
+            out.write("],\"next\":" + (page.getNext() < 0 ? "null" : Long.toString(page.getNext())) + "}\n");
+            out.flush();
+        }
+    }
+
+    private static HeaderQuery parseQuery(String rawQuery) {
+        var query = new HeaderQuery();
+
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+
+        for (var param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+
+            if (eq < 0) {
+                throw new IllegalArgumentException("Missing value: " + param);
+            }
+
+            var name = URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8);
+            var value = URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8);
+
+            switch (name) {
+                case "messageId" -> query.messageId(value);
+                case "subject" -> query.subject(value);
+                case "from" -> query.from(value);
+                case "to" -> query.to(value);
+                case "cc" -> query.cc(value);
+                case "mailbox" -> query.mailbox(value);
+                case "since" -> query.since(Instant.parse(value));
+                case "before" -> query.before(Instant.parse(value));
+                case "after" -> query.after(Long.parseLong(value));
+                case "limit" -> query.limit(Integer.parseInt(value));
+                case "header" -> {
+                    int colon = value.indexOf(':');
+
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException("Expected header=Name:value: " + value);
+                    }
+
+                    query.header(value.substring(0, colon), value.substring(colon + 1));
+                }
+                default -> throw new IllegalArgumentException("Unknown parameter: " + name);
+            }
+        }
+
+        return query;
+    }
+
+    private static void appendHit(StringBuilder json, HeaderIndex.Hit hit) {
+        var msg = hit.getMessage();
+
+        json.append("{\"cursor\":").append(hit.getCursor())
+            .append(",\"id\":");
+        appendString(json, msg.getId());
+        json.append(",\"size\":").append(msg.getSize())
+            .append(",\"mailboxes\":[");
+
+        for (int i = 0; i < msg.getMailboxes().size(); ++i) {
+            if (i > 0) {
+                json.append(',');
+            }
+
+            appendString(json, msg.getMailboxes().get(i));
+        }
+
+        json.append("],\"headers\":{");
+
+        boolean isFirst = true;
+
+        for (var header : hit.getHeaders().getAll().entrySet()) {
+            if (!isFirst) {
+                json.append(',');
+            }
+
+            isFirst = false;
+            appendString(json, header.getKey());
+            json.append(":[");
+
+            for (int i = 0; i < header.getValue().size(); ++i) {
+                if (i > 0) {
+                    json.append(',');
+                }
+
+                appendString(json, header.getValue().get(i));
+            }
+
+            json.append(']');
+        }
+
+        json.append("}}");
+    }
+
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+
+        for (int i = 0; i < s.length(); ++i) {
+            char ch = s.charAt(i);
+
+            switch (ch) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (ch < 0x20) {
+                        json.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        json.append(ch);
+                    }
+                }
+            }
+        }
+
+        json.append('"');
+    }
+}
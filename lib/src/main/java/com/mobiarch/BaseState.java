@@ -1,26 +1,50 @@
 package com.mobiarch;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
+import java.util.function.Consumer;
 
 public class BaseState {
+    //The default mail directory
     protected static final String MAIL_DIR = "mail";
 
+    //Room to leave in the out buffer for the 
+    //longest reply
+    protected static final int MAX_REPLY_LENGTH = 128;
+    //Digits in the longest long with sign
+    protected static final int MAX_NUMBER_LENGTH = 20;
+
+    protected ServerContext context;
+    //Borrowed from the pool only while they hold
+    //something. null otherwise.
     protected ByteBuffer in;
     protected ByteBuffer out;
+    //Sizes of the buffers to borrow
+    protected int inSize = 256;
+    protected int outSize = 1024;
+    //Set while the connection waits on work done elsewhere.
+    //No input is processed meanwhile.
+    protected boolean isDiskBusy = false;
+    //Set once the connection is closed. Work that
+    //finishes after that is thrown away.
+    protected boolean isClosed = false;
 
-    public static void print(ByteBuffer buff) {
+    /**
+     * Returns the bytes from the position to the limit as a String.
+     * The position is not changed. Only call this if the 
+     * bytes are going to be logged.
+     */
+    public static String toAscii(ByteBuffer buff) {
         if (buff == null) {
-            System.out.println("null");
-    
-            return;
-        }
-    
-        //Dump bytes
-        for (int i = 0; i < buff.limit(); ++i) {
-            System.out.write((int) buff.get(i));
+            return "null";
         }
+
+        var bytes = new byte[buff.remaining()];
+
+        buff.get(buff.position(), bytes);
+
+        return new String(bytes, StandardCharsets.ISO_8859_1);
     }
 
         /**
@@ -113,39 +137,342 @@ public class BaseState {
         return result;
     }
 
-    protected boolean isCommand(String cmd) {
-        int most = Math.min(cmd.length(), in.limit());
+    /**
+     * Writes the decimal digits of a number to the buffer without 
+     * creating any String.
+     */
+    public static void putNumber(ByteBuffer buff, long n) {
+        if (n < 0) {
+            buff.put((byte) '-');
+
+            n = -n;
+        }
+
+        //Find the highest power of 10 in n
+        long base = 1;
+
+        while (n / base >= 10) {
+            base *= 10;
+        }
+
+        for (; base > 0; base /= 10) {
+            buff.put((byte) ('0' + (n / base) % 10));
+        }
+    }
+
+    /**
+     * Writes the characters of an ASCII string to the buffer.
+     */
+    public static void putAscii(ByteBuffer buff, String txt) {
+        for (int i = 0; i < txt.length(); ++i) {
+            buff.put((byte) txt.charAt(i));
+        }
+    }
+
+    /**
+     * <p>Reads the verb of the command line between the position and 
+     * limit of the in buffer. The verb is case folded and packed into 
+     * an int by the rules of {@link CommandTable#encode(String)}.</p>
+     * 
+     * <p>The position and limit are then moved to enclose the argument. 
+     * The spaces after the verb and the line end are left out.</p>
+     * 
+     * @return The packed verb. 0 if the line does not start with a
+     * verb of one to four letters.
+     */
+    protected int parseCommand() {
+        int start = in.position();
+        int end = in.limit();
+
+        while (end > start && (in.get(end - 1) == '\n' || in.get(end - 1) == '\r')) {
+            --end;
+        }
+
+        int code = 0;
+        int i = start;
+
+        for (; i < end && in.get(i) != ' '; ++i) {
+            int ch = in.get(i) & ~0x20;
+
+            if (i - start == 4 || ch < 'A' || ch > 'Z') {
+                return 0;
+            }
+
+            code = (code << 8) | ch;
+        }
+
+        while (i < end && in.get(i) == ' ') {
+            ++i;
+        }
+
+        in.limit(end);
+        in.position(i);
+
+        return code;
+    }
+
+    /**
+     * Checks if the argument in the in buffer starts with the keyword. 
+     * Case is ignored. If it does, the position is moved past it.
+     * Otherwise the position is not changed.
+     */
+    protected boolean skipKeyword(String keyword) {
+        int pos = in.position();
+
+        if (in.limit() - pos < keyword.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < keyword.length(); ++i) {
+            int ch = in.get(pos + i);
 
-        for (int i = 0; i < most; ++i) {
-            if (cmd.charAt(i) != in.get()) {
-                in.rewind();
+            if (ch >= 'a' && ch <= 'z') {
+                ch &= ~0x20;
+            }
 
+            if (ch != keyword.charAt(i)) {
                 return false;
             }
         }
 
+        in.position(pos + keyword.length());
+
         return true;
     }
 
-    protected void sendReply(SelectionKey key, String txt) throws IOException {
-        //We should not be in the middle of a write already
-        if (out.hasRemaining()) {
-            throw new RuntimeException("Yet to write bytes: " + out.remaining());
+    /**
+     * Returns the index of the first '\n' in the in buffer 
+     * starting from the position. -1 if there is none.
+     */
+    protected int findLineEnd() {
+        for (int i = in.position(); i < in.limit(); ++i) {
+            if (in.get(i) == '\n') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Checks if the out buffer can take another reply.
+     */
+    protected boolean hasReplyRoom() {
+        return out == null || out.capacity() - out.remaining() >= MAX_REPLY_LENGTH;
+    }
+
+    /**
+     * Borrows the in buffer from the pool if it's not held already.
+     */
+    protected void acquireIn() {
+        if (in == null) {
+            in = context.getBufferPool().acquire(inSize);
+        }
+    }
+
+    /**
+     * Borrows the out buffer from the pool if it's not held already.
+     * The buffer is returned empty and ready to write to the client.
+     */
+    protected void acquireOut() {
+        if (out == null) {
+            out = context.getBufferPool().acquire(outSize);
+
+            out.flip();
+        }
+    }
+
+    /**
+     * Returns the in buffer to the pool if there's no partial 
+     * input left in it. The buffer must be in the state 
+     * ready for a read (compacted).
+     */
+    protected void releaseIn() {
+        if (in != null && in.position() == 0) {
+            context.getBufferPool().release(in);
+
+            in = null;
+        }
+    }
+
+    /**
+     * Returns the out buffer to the pool if everything 
+     * in it has been written.
+     */
+    protected void releaseOut() {
+        if (out != null && !out.hasRemaining()) {
+            context.getBufferPool().release(out);
+
+            out = null;
+        }
+    }
+
+    /**
+     * Returns both buffers to the pool no matter what they hold.
+     * Called when the connection is closed.
+     */
+    protected void releaseBuffers() {
+        if (in != null) {
+            context.getBufferPool().release(in);
+
+            in = null;
+        }
+
+        if (out != null) {
+            context.getBufferPool().release(out);
+
+            out = null;
+        }
+    }
+
+    /**
+     * Stops reading till {@link #unpause} is called. Any 
+     * replies already queued are still written.
+     */
+    protected void pause(Connection conn) {
+        isDiskBusy = true;
+
+        conn.interestOps(out != null && out.hasRemaining() ? Connection.OP_WRITE : 0);
+    }
+
+    /**
+     * Starts reading again and writes any queued replies.
+     */
+    protected void unpause(Connection conn) {
+        isDiskBusy = false;
+
+        conn.interestOps(out != null && out.hasRemaining() ? 
+            Connection.OP_READ | Connection.OP_WRITE : Connection.OP_READ);
+    }
+
+    /**
+     * Called once a pause is over. Goes on with any input that 
+     * was held back. It can't wait for the next read. The held
+     * back input may have filled the in buffer.
+     */
+    protected void onResume(Connection conn) throws IOException {
+    }
+
+    /**
+     * Offloads work whose result needs no cleanup.
+     */
+    protected <T> void offload(Connection conn, DiskExecutor.Work<T> work, DiskExecutor.Completion<T> completion) {
+        offload(conn, work, completion, null);
+    }
+
+    /**
+     * <p>Does blocking file system work in the {@link DiskExecutor} and 
+     * pauses the connection till it's done. Meanwhile the client's bytes
+     * wait in the socket rather than in memory.</p>
+     * 
+     * <p>The completion is called in the connection's thread once 
+     * reading is started again. It may change the interest ops or pause
+     * again. If it doesn't pause, {@link #onResume} is called next.</p>
+     * 
+     * @param discard Called instead of the completion if the connection
+     * got closed while the work was being done. It gets the result, 
+     * which is null if the work failed. May be null.
+     */
+    protected <T> void offload(Connection conn, DiskExecutor.Work<T> work, DiskExecutor.Completion<T> completion,
+            Consumer<T> discard) {
+        pause(conn);
+
+        context.getDiskExecutor().submit(conn, work, (result, error) -> {
+            if (isClosed) {
+                isDiskBusy = false;
+
+                if (discard != null) {
+                    discard.accept(result);
+                }
+
+                return;
+            }
+
+            unpause(conn);
+
+            completion.complete(result, error);
+
+            if (!isDiskBusy) {
+                onResume(conn);
+            }
+        });
+    }
+
+    /**
+     * <p>Picks the timeout for what the session is doing. See 
+     * {@link ProtocolLimits}.</p>
+     * 
+     * <p>There is none while the connection waits on the server.</p>
+     * 
+     * @param isTransferring A message is being received or sent.
+     */
+    protected long getTimeoutMillis(ProtocolLimits limits, boolean isTransferring) {
+        if (isDiskBusy) {
+            return 0;
+        }
+
+        if (isTransferring) {
+            return limits.getDataTimeoutMillis();
+        }
+
+        if ((in != null && in.position() > 0) || (out != null && out.hasRemaining())) {
+            //Part of a command is in or replies are not read yet
+            return limits.getCommandTimeoutMillis();
+        }
+
+        return limits.getIdleTimeoutMillis();
+    }
+
+    /**
+     * Sends a last reply and hangs up. The reply is left out if 
+     * earlier replies are still unwritten. It's written only once 
+     * without waiting for room.
+     */
+    protected void closeWithReply(Connection conn, String txt) throws IOException {
+        if (out == null || !out.hasRemaining()) {
+            acquireOut();
+
+            out.clear();
+            putAscii(out, txt);
+            out.flip();
+
+            try {
+                conn.write(out);
+            } catch (IOException e) {
+                //Hanging up anyway
+            }
+        }
+
+        conn.close();
+    }
+
+    /**
+     * Queues up the reply after any that are yet to be written.
+     */
+    protected void sendReply(Connection conn, String txt) throws IOException {
+        if (Log.isTraceEnabled()) {
+            Log.trace("SRV: %s", txt);
         }
 
-        System.out.printf("SRV: %s", txt);
+        acquireOut();
 
-        out.clear(); //Set position=0
+        //Move the unwritten bytes to the beginning 
+        //and get ready to add more
+        out.compact();
 
-        int most = Math.min(txt.length(), out.limit());
+        if (out.remaining() < txt.length()) {
+            out.flip();
+
+            throw new RuntimeException("No room for reply. Yet to write bytes: " + out.remaining());
+        }
 
-        for (int i = 0; i < most; ++i) {
+        for (int i = 0; i < txt.length(); ++i) {
             out.put((byte) txt.charAt(i));
         }
 
         out.flip(); //Set position=0 and limit correctly
 
-        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        conn.interestOps(Connection.OP_READ | Connection.OP_WRITE);
     }
 
 }
@@ -0,0 +1,245 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>A connection served by its own thread using blocking I/O.</p>
+ * 
+ * <p>{@link #serve()} drives the state machine the same way a 
+ * Reactor does. It calls onWritePossible() as long as the state 
+ * machine is interested in writing. Otherwise it blocks in a read 
+ * and calls onReadAvailable().</p>
+ * 
+ * <p>If the state machine is interested in neither, it's waiting for 
+ * some background work to finish. The thread then waits for a task 
+ * to be handed over by {@link #execute(Task)}.</p>
+ * 
+ * <p>A blocked read can't time out by itself. The timer thread of 
+ * {@link BlockingServer} calls {@link #expire()} instead.</p>
+ */
+public class BlockingConnection implements Connection {
+    private final BlockingServer server;
+    private final SocketChannel client;
+    private final EventListener listener;
+    //Read by the timer thread too
+    private volatile int ops = OP_READ;
+    private final BlockingQueue<Task> tasks = new LinkedBlockingQueue<>();
+    //Set once the tasks left after closing are run. Guarded by tasks.
+    private boolean isDrained = false;
+    private final Metrics.ProtocolMetrics metrics;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+    //Guarded by the server's wheel
+    private final TimingWheel.Timer<BlockingConnection> timer = new TimingWheel.Timer<>(this);
+    private volatile boolean isTimedOut = false;
+
+    /**
+     * @param metrics Must have counted the connection 
+     * as accepted already.
+     */
+    public BlockingConnection(BlockingServer server, SocketChannel client, EventListener listener, 
+            Metrics.ProtocolMetrics metrics) {
+        this.server = server;
+        this.client = client;
+        this.listener = listener;
+        this.metrics = metrics;
+    }
+
+    public EventListener getListener() {
+        return listener;
+    }
+
+    public TimingWheel.Timer<BlockingConnection> getTimer() {
+        return timer;
+    }
+
+    /**
+     * Runs the protocol until the connection is closed. 
+     */
+    public void serve() {
+        try {
+            listener.onAccept(this);
+            server.touch(this);
+
+            while (client.isOpen()) {
+                Task task;
+
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                if ((ops & OP_WRITE) != 0) {
+                    listener.onWritePossible(this);
+                } else if ((ops & OP_READ) != 0) {
+                    listener.onReadAvailable(this);
+                } else {
+                    tasks.take().run();
+                }
+
+                server.touch(this);
+            }
+        } catch (InterruptedException e) {
+            Log.debug("Connection thread interrupted.");
+        } catch (SocketTimeoutException e) {
+            onTimeout();
+        } catch (IOException e) {
+            if (client.isOpen()) {
+                Log.warn("Closing client after error: %s", e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            Log.error("Closing client after failure: %s", e, e);
+        } finally {
+            try {
+                close();
+            } catch (IOException e) {
+                //Nothing more can be done
+            }
+
+            server.onClose(this);
+            listener.onClose(this);
+            drainTasks();
+        }
+    }
+
+    /**
+     * Called by the timer thread once the client has been silent 
+     * too long. If the connection is blocked in a read, the read 
+     * is ended. The connection's own thread then says goodbye. 
+     * Otherwise the client has stopped reading and the connection
+     * is closed outright.
+     */
+    void expire() {
+        isTimedOut = true;
+
+        try {
+            if ((ops & OP_WRITE) != 0) {
+                close();
+            } else {
+                client.shutdownInput();
+            }
+        } catch (IOException e) {
+            //Nothing more can be done
+        }
+    }
+
+    private void onTimeout() {
+        Log.debug("Client timed out.");
+
+        metrics.onTimeout();
+
+        try {
+            listener.onTimeout(this);
+        } catch (IOException e) {
+            //Closed next anyway
+        }
+    }
+
+    /**
+     * Runs the tasks that were handed over by {@link #executeAlways}
+     * after the connection was closed.
+     */
+    private void drainTasks() {
+        synchronized (tasks) {
+            isDrained = true;
+        }
+
+        Task task;
+
+        while ((task = tasks.poll()) != null) {
+            runQuietly(task);
+        }
+    }
+
+    private static void runQuietly(Task task) {
+        try {
+            task.run();
+        } catch (IOException e) {
+            //The connection is closed already
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int sz = client.read(dst);
+
+        if (sz > 0) {
+            metrics.addBytesIn(sz);
+        } else if (sz < 0 && isTimedOut) {
+            //expire() ended the read
+            throw new SocketTimeoutException("Client timed out");
+        }
+
+        return sz;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int sz = client.write(src);
+
+        metrics.addBytesOut(sz);
+
+        return sz;
+    }
+
+    @Override
+    public long sendFile(FileChannel file, long position, long count) throws IOException {
+        long sz = file.transferTo(position, count, client);
+
+        metrics.addBytesOut(sz);
+
+        return sz;
+    }
+
+    @Override
+    public void interestOps(int ops) {
+        this.ops = ops;
+    }
+
+    @Override
+    public int interestOps() {
+        return ops;
+    }
+
+    @Override
+    public void execute(Task task) {
+        tasks.add(() -> {
+            if (!isClosed.get()) {
+                task.run();
+            }
+        });
+    }
+
+    @Override
+    public void executeAlways(Task task) {
+        synchronized (tasks) {
+            if (!isDrained) {
+                tasks.add(task);
+
+                return;
+            }
+        }
+
+        //Nobody is left to run it
+        runQuietly(task);
+    }
+
+    /**
+     * Closes the socket. The state machine is told by the 
+     * connection's own thread once it stops serving.
+     */
+    @Override
+    public void close() throws IOException {
+        //May be called from a background thread too
+        if (isClosed.compareAndSet(false, true)) {
+            metrics.onClose();
+        }
+
+        client.close();
+    }
+}
@@ -0,0 +1,282 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>An alternative to {@link IOLoop} that serves every connection
+ * from its own thread using blocking I/O. The SMTP and POP3 protocol
+ * logic is the same. Only the transport differs.</p>
+ * 
+ * <p>On JDK 21 and later each connection gets a virtual thread. 
+ * On older JDKs a cached pool of platform threads is used instead.</p>
+ * 
+ * <p>The timeouts are kept in a {@link TimingWheel} like a 
+ * {@link Reactor} does. Since the connections touch it from their 
+ * own threads it's locked. A timer thread advances it.</p>
+ *
+ * <p>{@link #close()} closes the listening sockets and every
+ * connection. That ends all the threads.</p>
+ */
+public class BlockingServer {
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SLOTS = 512;
+
+    private final ServerContext context;
+    private final ExecutorService executor = newPerConnectionExecutor();
+    private final TimingWheel<BlockingConnection> wheel = 
+        new TimingWheel<>(TICK_MILLIS, WHEEL_SLOTS, currentMillis());
+    //The ports asked for. 0 for any free port.
+    private final int smtpPort;
+    private final int pop3Port;
+    private ServerSocketChannel smtpSocket = null;
+    private ServerSocketChannel pop3Socket = null;
+    private final ArrayList<Thread> threads = new ArrayList<>();
+    //The connections being served. So they can be closed.
+    private final Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
+
+    public BlockingServer(ServerContext context) {
+        this(context, 2525, 1100);
+    }
+
+    /**
+     * @param smtpPort 0 for any free port. See {@link #getSmtpPort()}.
+     * @param pop3Port 0 for any free port. See {@link #getPop3Port()}.
+     */
+    public BlockingServer(ServerContext context, int smtpPort, int pop3Port) {
+        this.context = context;
+        this.smtpPort = smtpPort;
+        this.pop3Port = pop3Port;
+    }
+
+    /**
+     * @return The port SMTP is served at. Known once started.
+     */
+    public int getSmtpPort() {
+        return smtpSocket == null ? smtpPort : smtpSocket.socket().getLocalPort();
+    }
+
+    /**
+     * @return The port POP3 is served at. Known once started.
+     */
+    public int getPop3Port() {
+        return pop3Socket == null ? pop3Port : pop3Socket.socket().getLocalPort();
+    }
+
+    private static long currentMillis() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Sets the connection's deadline after it has done something.
+     * Called from the connection's own thread.
+     */
+    void touch(BlockingConnection conn) {
+        long timeout = conn.getListener().getTimeoutMillis();
+
+        synchronized (wheel) {
+            if (timeout <= 0) {
+                wheel.cancel(conn.getTimer());
+            } else {
+                wheel.schedule(conn.getTimer(), currentMillis() + timeout);
+            }
+        }
+    }
+
+    /**
+     * Forgets a connection that has been closed.
+     */
+    void onClose(BlockingConnection conn) {
+        connections.remove(conn);
+
+        synchronized (wheel) {
+            wheel.cancel(conn.getTimer());
+        }
+    }
+
+    private void runTimer() {
+        var expired = new ArrayList<BlockingConnection>();
+
+        while (true) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (wheel) {
+                wheel.advance(currentMillis(), expired::add);
+            }
+
+            //Outside the lock. Closing may take a while.
+            for (var conn : expired) {
+                conn.expire();
+            }
+
+            expired.clear();
+        }
+    }
+
+    /**
+     * Returns a virtual thread per task executor if the JDK supports it.
+     * The project targets JDK 17 so the method is looked up reflectively.
+     */
+    private static ExecutorService newPerConnectionExecutor() {
+        try {
+            var method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            Log.info("Using virtual threads");
+
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.info("Virtual threads not available. Using platform threads");
+
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private ServerSocketChannel startServer(String type, int port) throws IOException {
+        var socket = ServerSocketChannel.open();
+
+        try {
+            socket.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            socket.close();
+
+            throw e;
+        }
+
+        Log.info("Starting %s server at port %d", type, socket.socket().getLocalPort());
+
+        var thread = new Thread(() -> acceptLoop(socket, type), "devmail-accept-" + type);
+
+        threads.add(thread);
+        thread.start();
+
+        return socket;
+    }
+
+    private void acceptLoop(ServerSocketChannel socket, String type) {
+        while (socket.isOpen()) {
+            try {
+                var client = socket.accept();
+
+                Log.debug("Accepted client type: %s", type);
+
+                try {
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    //Reset by the client already
+                    client.close();
+
+                    throw e;
+                }
+
+                boolean isSmtp = "SMTP".equals(type);
+                var metrics = isSmtp ? context.getMetrics().getSmtp() : context.getMetrics().getPop3();
+                var limits = isSmtp ? context.getSmtpLimits() : context.getPop3Limits();
+
+                //Before a state machine is built for nothing
+                if (!metrics.tryAccept(limits.getMaxConnections(), context.getMaxConnections())) {
+                    Log.warn("Too many connections. Refused %s client.", type);
+
+                    IOLoop.refuse(client, type);
+
+                    continue;
+                }
+
+                EventListener listener = isSmtp ? new SMTPState(context) : new POP3State(context);
+                var conn = new BlockingConnection(this, client, listener, metrics);
+
+                connections.add(conn);
+                executor.execute(conn::serve);
+            } catch (IOException e) {
+                if (socket.isOpen()) {
+                    Log.warn("Accept failed: %s", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves till {@link #close()}. Blocks the calling thread.
+     */
+    public void begin() throws IOException, InterruptedException {
+        start();
+
+        for (var thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Binds the ports and serves from threads of their own. The 
+     * ports are open when this returns.
+     */
+    public void start() throws IOException {
+        var timer = new Thread(this::runTimer, "devmail-timer");
+
+        timer.setDaemon(true);
+        timer.start();
+        threads.add(timer);
+
+        try {
+            smtpSocket = startServer("SMTP", smtpPort);
+            pop3Socket = startServer("POP3", pop3Port);
+        } catch (IOException e) {
+            close();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting, closes every connection and waits for the
+     * threads to end. The ports are free once this returns.
+     */
+    public void close() {
+        for (var socket : new ServerSocketChannel[] { smtpSocket, pop3Socket }) {
+            if (socket == null) {
+                continue;
+            }
+
+            try {
+                //Ends the blocked accept
+                socket.close();
+            } catch (IOException e) {
+                //Nothing more can be done
+            }
+        }
+
+        try {
+            //No new connections after this
+            for (var thread : threads) {
+                thread.interrupt();
+                thread.join(5000);
+            }
+
+            for (var conn : connections) {
+                try {
+                    //Ends a blocked read
+                    conn.close();
+                } catch (IOException e) {
+                    //Nothing more can be done
+                }
+            }
+
+            //Ends a wait for a task
+            executor.shutdownNow();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.mobiarch;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * <p>Sends a range of a message to a POP3 client. It's called every 
+ * time the connection becomes writable, and sends as much as the 
+ * connection takes without blocking.</p>
+ * 
+ * <p>Any file or mapping held by the transfer is released by 
+ * {@link #close()}. This is done as soon as the transfer is over
+ * or the connection is closed.</p>
+ */
+public interface BodyTransfer extends Closeable {
+    /**
+     * Sends the next part of the message.
+     */
+    void send(Connection conn) throws IOException;
+
+    /**
+     * @return true once the whole range has been sent.
+     */
+    boolean isDone();
+}
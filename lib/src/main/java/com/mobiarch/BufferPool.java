@@ -0,0 +1,96 @@
+package com.mobiarch;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A pool of direct ByteBuffers shared by all connections. Reading 
+ * into and writing from a heap buffer makes the JDK copy the bytes 
+ * through a temporary direct buffer. Direct buffers are costly to 
+ * allocate though. So they are pooled.</p>
+ * 
+ * <p>Buffers come in power of 2 size classes from 256 bytes to 64 KB. 
+ * A connection borrows a buffer only while it has something in it and
+ * gives it back as soon as it's empty. An idle connection holds none.</p>
+ * 
+ * <p>Safe to use from any thread.</p>
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8; //256 bytes
+    private static final int MAX_SHIFT = 16; //64 KB
+    //The most memory kept idle per size class
+    private static final int MAX_IDLE_BYTES = 16 * 1024 * 1024;
+
+    private final Queue<ByteBuffer>[] idle;
+    private final AtomicInteger[] idleCount;
+
+    //A generic array can only be made raw. It's never handed out.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+
+        idle = new Queue[classes];
+        idleCount = new AtomicInteger[classes];
+
+        for (int i = 0; i < classes; ++i) {
+            idle[i] = new ConcurrentLinkedQueue<>();
+            idleCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns the size class index for a buffer size.
+     */
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    /**
+     * Borrows a cleared buffer with a capacity of at least size.
+     * Sizes above 64 KB are not supported.
+     */
+    public ByteBuffer acquire(int size) {
+        int sc = sizeClass(size);
+
+        if (sc >= idle.length) {
+            throw new IllegalArgumentException("Buffer too large: " + size);
+        }
+
+        var buff = idle[sc].poll();
+
+        if (buff == null) {
+            return ByteBuffer.allocateDirect(1 << (sc + MIN_SHIFT));
+        }
+
+        idleCount[sc].decrementAndGet();
+        buff.clear();
+
+        return buff;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used 
+     * after this.
+     */
+    public void release(ByteBuffer buff) {
+        int sc = sizeClass(buff.capacity());
+
+        if (sc >= idle.length || buff.capacity() != 1 << (sc + MIN_SHIFT) || !buff.isDirect()) {
+            //Not one of ours
+            return;
+        }
+
+        if (idleCount[sc].incrementAndGet() * buff.capacity() > MAX_IDLE_BYTES) {
+            //Enough kept already. Let GC have it.
+            idleCount[sc].decrementAndGet();
+
+            return;
+        }
+
+        idle[sc].add(buff);
+    }
+}
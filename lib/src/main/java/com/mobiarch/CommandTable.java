@@ -0,0 +1,95 @@
+package com.mobiarch;
+
+import java.io.IOException;
+
+/**
+ * <p>Maps a command verb to its handler. SMTP and POP3 verbs are at
+ * most four letters. So a verb is packed into an int, one upper case
+ * letter per byte, and looked up in a small open addressed table.
+ * Finding a command costs the same no matter how many there are
+ * and allocates nothing.</p>
+ *
+ * <p>A table is built once per protocol and shared by all the
+ * sessions. The handler is given the session to act on.</p>
+ *
+ * @param <S> The protocol state class.
+ */
+public class CommandTable<S> {
+    //Must be a power of 2 and well above the number of commands
+    private static final int SIZE = 64;
+
+    /**
+     * Handles a command. The argument of the command lies between
+     * the position and limit of the state's in buffer.
+     */
+    public interface Handler<S> {
+        void handle(S state, Connection conn) throws IOException;
+    }
+
+    private final int[] verbs = new int[SIZE];
+    //A generic array can only be made raw. It's never handed out.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Handler<S>[] handlers = new Handler[SIZE];
+
+    /**
+     * Packs a verb of up to four letters into an int.
+     */
+    public static int encode(String verb) {
+        if (verb.isEmpty() || verb.length() > 4) {
+            throw new IllegalArgumentException("Invalid verb: " + verb);
+        }
+
+        int code = 0;
+
+        for (int i = 0; i < verb.length(); ++i) {
+            code = (code << 8) | (verb.charAt(i) & ~0x20);
+        }
+
+        return code;
+    }
+
+    private static int slot(int code) {
+        //Spread the letters over the table
+        int h = code * 0x9E3779B9;
+
+        return (h ^ (h >>> 16)) & (SIZE - 1);
+    }
+
+    public CommandTable<S> add(String verb, Handler<S> handler) {
+        int code = encode(verb);
+        int i = slot(code);
+
+        while (verbs[i] != 0 && verbs[i] != code) {
+            i = (i + 1) & (SIZE - 1);
+        }
+
+        verbs[i] = code;
+        handlers[i] = handler;
+
+        return this;
+    }
+
+    /**
+     * @param code A verb packed by {@link #encode(String)} or
+     * {@link BaseState#parseCommand()}.
+     *
+     * @return The handler. null if the command is unknown.
+     */
+    public Handler<S> get(int code) {
+        if (code == 0) {
+            return null;
+        }
+
+        int i = slot(code);
+
+        while (verbs[i] != 0) {
+            if (verbs[i] == code) {
+                return handlers[i];
+            }
+
+            i = (i + 1) & (SIZE - 1);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,84 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * <p>The transport a protocol state machine talks to. SMTPState and 
+ * POP3State only use this interface. That way the same protocol logic 
+ * can be driven by a non-blocking {@link Reactor} or by a blocking
+ * thread per connection.</p>
+ * 
+ * <p>The interest ops follow the SelectionKey semantics. A state
+ * machine asks for {@link #OP_WRITE} when it has something to send
+ * and goes back to {@link #OP_READ} when it's done writing.</p>
+ */
+public interface Connection {
+    int OP_READ = SelectionKey.OP_READ;
+    int OP_WRITE = SelectionKey.OP_WRITE;
+
+    /**
+     * Work to be done by the thread that owns the connection.
+     */
+    interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * Reads bytes from the client into the buffer.
+     * 
+     * @return The number of bytes read. -1 if the client has 
+     * disconnected.
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes bytes from the buffer to the client.
+     * 
+     * @return The number of bytes written. This may be fewer
+     * than the number of bytes remaining in the buffer.
+     */
+    int write(ByteBuffer src) throws IOException;
+
+    /**
+     * Transfers bytes from a file straight to the client. 
+     * The position of the file channel is not changed.
+     * 
+     * @return The number of bytes transferred. This may be fewer
+     * than count.
+     */
+    long sendFile(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Sets the events that the state machine wants to be called back for.
+     */
+    void interestOps(int ops);
+
+    int interestOps();
+
+    /**
+     * <p>Runs the task in the thread that owns the connection. Safe to
+     * call from any thread. This is how work done in a background thread 
+     * hands its result back to the state machine.</p>
+     * 
+     * <p>The task is dropped if the connection gets closed in the 
+     * meantime. If the task throws, the connection is closed.</p>
+     */
+    void execute(Task task);
+
+    /**
+     * Like {@link #execute(Task)} but the task is run even if the 
+     * connection is closed by then. For handing back something that 
+     * has to be cleaned up either way. If the connection is closed, 
+     * the task may run in any thread once the state machine is no 
+     * longer called.
+     */
+    void executeAlways(Task task);
+
+    /**
+     * Closes the connection. Further events will not be delivered.
+     */
+    void close() throws IOException;
+}
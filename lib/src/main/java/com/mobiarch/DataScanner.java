@@ -0,0 +1,165 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>Scans the SMTP DATA stream for the end of data marker 
+ * "\r\n.\r\n" and removes dot stuffing as per RFC 5321 section 4.5.2.</p>
+ * 
+ * <p>The scanner is incremental. It remembers where it left off, so the 
+ * marker and the stuffed dots may be split across reads in any way.
+ * Unstuffing is done in place within the buffer being scanned. So no 
+ * memory is allocated while scanning.</p>
+ * 
+ * <p>The CRLF before the final "." is part of the message and is kept.</p>
+ * 
+ * <p>Along the way a {@link TopIndex} of the unstuffed message is built.</p>
+ */
+public class DataScanner {
+    //At the start of a line
+    private static final int LINE_START = 0;
+    //Somewhere within a line
+    private static final int IN_LINE = 1;
+    //Got a "\r" within a line
+    private static final int CR = 2;
+    //Got a "." at the start of a line
+    private static final int DOT = 3;
+    //Got ".\r" at the start of a line
+    private static final int DOT_CR = 4;
+
+    private int state = LINE_START;
+    //If a line of the message starts with a "."
+    private boolean hasDotLines = false;
+    private final ByteBuffer cr = ByteBuffer.wrap(new byte[] {'\r'});
+    private final TopIndex.Builder topIndex = new TopIndex.Builder();
+
+    /**
+     * Prepares the scanner for a new message.
+     */
+    public void reset() {
+        state = LINE_START;
+        hasDotLines = false;
+        topIndex.reset();
+    }
+
+    /**
+     * @return The TOP index of the message received so far.
+     */
+    public TopIndex getTopIndex() {
+        return topIndex.build();
+    }
+
+    /**
+     * @return true if any line of the unstuffed message starts with
+     * a ".". Such a message needs to be stuffed again when sent to a
+     * POP3 client.
+     */
+    public boolean hasDotLines() {
+        return hasDotLines;
+    }
+
+    /**
+     * <p>Scans the bytes between the position and the limit of the buffer.
+     * The unstuffed message bytes are written to the sink.</p>
+     * 
+     * <p>If the end of data marker is found the position of the buffer is 
+     * set to the byte right after the marker. Any bytes after that are 
+     * not part of the message. Otherwise the position is set to the limit.</p>
+     * 
+     * @param buff The bytes received from the client.
+     * @param sink Where the message is saved.
+     * @return true if the end of data marker was found.
+     */
+    public boolean scan(ByteBuffer buff, WritableByteChannel sink) throws IOException {
+        int start = buff.position();
+        int limit = buff.limit();
+        //Read and write index. Unstuffing only ever removes bytes.
+        //So the write index never gets ahead of the read index.
+        int r = start;
+        int w = start;
+        boolean isEndOfData = false;
+
+        while (r < limit) {
+            byte ch = buff.get(r++);
+
+            if (state == LINE_START) {
+                if (ch == '.') {
+                    //Drop the dot. It's either stuffing or the 
+                    //start of the end of data marker.
+                    state = DOT;
+
+                    continue;
+                }
+
+                state = ch == '\r' ? CR : IN_LINE;
+            } else if (state == IN_LINE) {
+                if (ch == '\r') {
+                    state = CR;
+                }
+            } else if (state == CR) {
+                if (ch == '\n') {
+                    state = LINE_START;
+                } else if (ch != '\r') {
+                    state = IN_LINE;
+                }
+            } else if (state == DOT) {
+                if (ch == '\r') {
+                    //Hold on to the \r till we know if this
+                    //is the end of data
+                    state = DOT_CR;
+
+                    continue;
+                }
+
+                if (ch == '.') {
+                    hasDotLines = true;
+                }
+
+                state = IN_LINE;
+            } else if (state == DOT_CR) {
+                if (ch == '\n') {
+                    isEndOfData = true;
+                    state = LINE_START;
+
+                    break;
+                }
+
+                //Not the end. Put back the \r we held on to.
+                topIndex.add((byte) '\r');
+
+                if (w < r - 1) {
+                    buff.put(w++, (byte) '\r');
+                } else {
+                    //The \r came in an earlier read and nothing
+                    //is written to the buffer yet.
+                    cr.rewind();
+                    writeFully(cr, sink);
+                }
+
+                state = ch == '\r' ? CR : IN_LINE;
+            }
+
+            topIndex.add(ch);
+            buff.put(w++, ch);
+        }
+
+        //Save the unstuffed bytes
+        buff.position(start);
+        buff.limit(w);
+        writeFully(buff, sink);
+
+        //Skip past what we have scanned
+        buff.limit(limit);
+        buff.position(r);
+
+        return isEndOfData;
+    }
+
+    private static void writeFully(ByteBuffer buff, WritableByteChannel sink) throws IOException {
+        while (buff.hasRemaining()) {
+            sink.write(buff);
+        }
+    }
+}
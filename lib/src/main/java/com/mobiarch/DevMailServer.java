@@ -0,0 +1,330 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import javax.management.JMException;
+
+/**
+ * <p>A devmail server that runs inside another program, like a test
+ * suite. Each instance has its own ports, mail directory, threads and
+ * metrics. So many can run in one JVM at the same time.</p>
+ *
+ * <pre>
+ * try (var server = DevMailServer.builder()
+ *         .smtpPort(0)
+ *         .pop3Port(0)
+ *         .mailDir(tempDir)
+ *         .start()) {
+ *     int smtpPort = server.getSmtpPort();
+ *     ...
+ * }
+ * </pre>
+ *
+ * <p>A port of 0 picks a free port. The one picked is returned by
+ * {@link #getSmtpPort()} and {@link #getPop3Port()}. {@link #close()}
+ * wakes up the selectors, closes every connection and returns once
+ * the ports are free.</p>
+ */
+public class DevMailServer implements AutoCloseable {
+    /**
+     * The settings of a server. The defaults are those of the
+     * standalone server except that the admin server is off.
+     */
+    public static class Builder {
+        private int smtpPort = 2525;
+        private int pop3Port = 1100;
+        private int adminPort = -1;
+        private Path mailDir = Path.of(BaseState.MAIL_DIR);
+        private Durability durability = Durability.SYNC;
+        private long commitWindowMillis = 2;
+        private TransferMode transferMode = TransferMode.SENDFILE;
+        private StoreType storeType = StoreType.FILES;
+        //-1 to pick based on the store
+        private int diskThreads = -1;
+        private long memoryCap = MemoryStore.DEFAULT_CAP;
+        private boolean isBlocking = false;
+        private int reactors = Runtime.getRuntime().availableProcessors();
+        private ProtocolLimits smtpLimits = ProtocolLimits.SMTP_DEFAULTS;
+        private ProtocolLimits pop3Limits = ProtocolLimits.POP3_DEFAULTS;
+        private int maxConnections = 10_000;
+        private String mbeanName = null;
+
+        private Builder() {
+        }
+
+        /**
+         * @param port 0 for any free port.
+         */
+        public Builder smtpPort(int port) {
+            this.smtpPort = port;
+
+            return this;
+        }
+
+        /**
+         * @param port 0 for any free port.
+         */
+        public Builder pop3Port(int port) {
+            this.pop3Port = port;
+
+            return this;
+        }
+
+        /**
+         * Serves /metrics over HTTP. Off by default.
+         *
+         * @param port 0 for any free port. -1 for no admin server.
+         */
+        public Builder adminPort(int port) {
+            this.adminPort = port;
+
+            return this;
+        }
+
+        /**
+         * @param dir Where the messages are kept. Created if missing.
+         * Servers in the same JVM must not share one.
+         */
+        public Builder mailDir(Path dir) {
+            this.mailDir = dir;
+
+            return this;
+        }
+
+        public Builder durability(Durability durability) {
+            this.durability = durability;
+
+            return this;
+        }
+
+        /**
+         * @param millis How long to gather messages for a group commit.
+         */
+        public Builder commitWindowMillis(long millis) {
+            this.commitWindowMillis = millis;
+
+            return this;
+        }
+
+        public Builder transferMode(TransferMode transferMode) {
+            this.transferMode = transferMode;
+
+            return this;
+        }
+
+        public Builder storeType(StoreType storeType) {
+            this.storeType = storeType;
+
+            return this;
+        }
+
+        /**
+         * @param threads Threads doing blocking file system work. 0 to
+         * do it in the connection's own thread. By default 0 for
+         * {@link StoreType#MEMORY} and 4 otherwise.
+         */
+        public Builder diskThreads(int threads) {
+            this.diskThreads = threads;
+
+            return this;
+        }
+
+        /**
+         * @param bytes The most memory for messages. Only used for
+         * {@link StoreType#MEMORY}.
+         */
+        public Builder memoryCap(long bytes) {
+            this.memoryCap = bytes;
+
+            return this;
+        }
+
+        /**
+         * Serves each connection from its own thread with a
+         * {@link BlockingServer} instead of the reactors.
+         */
+        public Builder blocking(boolean isBlocking) {
+            this.isBlocking = isBlocking;
+
+            return this;
+        }
+
+        /**
+         * @param count The number of reactor threads.
+         */
+        public Builder reactors(int count) {
+            this.reactors = count;
+
+            return this;
+        }
+
+        public Builder limits(ProtocolLimits smtpLimits, ProtocolLimits pop3Limits, int maxConnections) {
+            this.smtpLimits = smtpLimits;
+            this.pop3Limits = pop3Limits;
+            this.maxConnections = maxConnections;
+
+            return this;
+        }
+
+        /**
+         * Registers the metrics as an MBean. Not done by default.
+         *
+         * @param name Must be unique in the JVM.
+         */
+        public Builder mbeanName(String name) {
+            this.mbeanName = name;
+
+            return this;
+        }
+
+        /**
+         * Starts a server. The ports are open once this returns.
+         */
+        public DevMailServer start() throws IOException {
+            var server = new DevMailServer(this);
+
+            try {
+                server.start();
+            } catch (IOException | RuntimeException e) {
+                server.close();
+
+                throw e;
+            }
+
+            return server;
+        }
+    }
+
+    private final Builder config;
+    private final ServerContext context;
+    private IOLoop loop = null;
+    private BlockingServer blockingServer = null;
+    private AdminServer adminServer = null;
+    private boolean isClosed = false;
+
+    private DevMailServer(Builder config) throws IOException {
+        int diskThreads = config.diskThreads;
+
+        if (diskThreads < 0) {
+            diskThreads = config.storeType == StoreType.MEMORY ? 0 : 4;
+        }
+
+        this.config = config;
+        context = new ServerContext(config.mailDir, config.durability, config.commitWindowMillis,
+            config.transferMode, config.storeType, diskThreads, config.memoryCap);
+
+        context.setLimits(config.smtpLimits, config.pop3Limits, config.maxConnections);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private void start() throws IOException {
+        if (config.mbeanName != null) {
+            try {
+                context.getMetrics().registerMBean(config.mbeanName);
+            } catch (JMException e) {
+                throw new IOException("Failed to register the MBean", e);
+            }
+        }
+
+        if (config.adminPort >= 0) {
+            adminServer = new AdminServer(context);
+
+            adminServer.start(config.adminPort);
+        }
+
+        if (config.isBlocking) {
+            blockingServer = new BlockingServer(context, config.smtpPort, config.pop3Port);
+
+            blockingServer.start();
+        } else {
+            loop = new IOLoop(context, config.reactors, config.smtpPort, config.pop3Port);
+
+            loop.start();
+        }
+    }
+
+    /**
+     * @return The port SMTP is served at.
+     */
+    public int getSmtpPort() {
+        return loop != null ? loop.getSmtpPort() : blockingServer.getSmtpPort();
+    }
+
+    /**
+     * @return The port POP3 is served at.
+     */
+    public int getPop3Port() {
+        return loop != null ? loop.getPop3Port() : blockingServer.getPop3Port();
+    }
+
+    /**
+     * @return The port of the admin server. -1 if it's off.
+     */
+    public int getAdminPort() {
+        return adminServer == null ? -1 : adminServer.getPort();
+    }
+
+    public Path getMailDir() {
+        return context.getMailDir();
+    }
+
+    public ServerContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return Where to subscribe for the messages received.
+     */
+    public MessageDispatcher getDispatcher() {
+        return context.getDispatcher();
+    }
+
+    /**
+     * @return The index of the headers of the messages received.
+     */
+    public HeaderIndex getHeaderIndex() {
+        return context.getMailboxes().getHeaderIndex();
+    }
+
+    /**
+     * Looks up the messages received by their headers.
+     */
+    public HeaderIndex.Page search(HeaderQuery query) {
+        return getHeaderIndex().search(query);
+    }
+
+    /**
+     * Stops serving and frees the ports, threads and store.
+     * Connections still open are closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+
+        isClosed = true;
+
+        if (loop != null) {
+            loop.close();
+        }
+
+        if (blockingServer != null) {
+            blockingServer.close();
+        }
+
+        if (adminServer != null) {
+            adminServer.stop();
+        }
+
+        try {
+            context.close();
+        } catch (IOException e) {
+            Log.warn("Failed to close the store: %s", e.getMessage());
+        }
+    }
+}
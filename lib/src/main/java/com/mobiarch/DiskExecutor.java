@@ -0,0 +1,125 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A small pool of threads for the blocking file system work of the
+ * connections: creating, writing, forcing, moving, mapping and deleting
+ * message files. That way a slow disk stalls only the connections
+ * waiting on it and not every connection of a reactor.</p>
+ *
+ * <p>The result is handed back to the connection's own thread using
+ * {@link Connection#executeAlways}. A connection has at most one piece of
+ * work pending and stops reading meanwhile. See
+ * {@link BaseState#offload}.</p>
+ *
+ * <p>The queue is not bounded. Work is never done by the submitting
+ * thread, which is a reactor thread most of the time, just because the
+ * disk is slow. The queue can't grow without bounds anyway. Each
+ * connection waits on at most one piece of work and the connections
+ * are capped. The rest is cleanup that nobody waits for.</p>
+ * 
+ * <p>With no threads at all, the work is always done by the submitting
+ * thread. That suits a {@link MemoryStore} whose work never blocks.
+ * The completion is still handed back through the connection.</p>
+ */
+public class DiskExecutor {
+    /**
+     * Blocking work done in the pool.
+     */
+    public interface Work<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Called in the connection's thread once the work is done.
+     */
+    public interface Completion<T> {
+        /**
+         * @param result null if the work failed.
+         * @param error null if the work succeeded.
+         */
+        void complete(T result, IOException error) throws IOException;
+    }
+
+    //null if the work is done by the submitting thread
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * @param threads Number of threads in the pool. 0 for none.
+     */
+    public DiskExecutor(int threads) {
+        if (threads == 0) {
+            pool = null;
+
+            return;
+        }
+
+        var count = new AtomicInteger();
+
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> {
+                var thread = new Thread(r, "devmail-disk-" + count.incrementAndGet());
+
+                thread.setDaemon(true);
+
+                return thread;
+            },
+            //Only once shut down. Done rather than dropped.
+            (task, executor) -> task.run());
+    }
+
+    /**
+     * Does the work in the pool and completes in the connection's thread.
+     * The completion is called even if the connection is closed by then
+     * so that it can clean up the result. See 
+     * {@link Connection#executeAlways}.
+     */
+    public <T> void submit(Connection conn, Work<T> work, Completion<T> completion) {
+        execute(() -> {
+            T result = null;
+            IOException error = null;
+
+            try {
+                result = work.run();
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+            }
+
+            var finalResult = result;
+            var finalError = error;
+
+            conn.executeAlways(() -> completion.complete(finalResult, finalError));
+        });
+    }
+
+    /**
+     * Does work in the pool that nobody waits for.
+     */
+    public void execute(Runnable task) {
+        if (pool == null || pool.isShutdown()) {
+            task.run();
+        } else {
+            pool.execute(task);
+        }
+    }
+
+    /**
+     * Stops taking work and waits a while for the work queued to be 
+     * done. Any work submitted after this is done by the submitting 
+     * thread.
+     */
+    public void shutdown() throws InterruptedException {
+        if (pool != null) {
+            pool.shutdown();
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+}
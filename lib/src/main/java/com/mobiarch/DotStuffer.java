@@ -0,0 +1,68 @@
+package com.mobiarch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Adds dot stuffing to a message being sent to a POP3 client as per 
+ * RFC 1939 section 3. Any line that starts with a "." gets an extra 
+ * "." prepended. Lines end with CRLF. Messages are saved unstuffed by {@link DataScanner}.</p>
+ * 
+ * <p>Most messages have no line starting with a ".". Use 
+ * {@link #isNeeded(ByteBuffer)} to check and send those as is.</p>
+ */
+public class DotStuffer {
+    private boolean atLineStart = true;
+    private boolean isAfterCR = false;
+
+    /**
+     * Prepares the stuffer for a new message.
+     */
+    public void reset() {
+        atLineStart = true;
+        isAfterCR = false;
+    }
+
+    /**
+     * Checks if any line in the message starts with a ".". The position
+     * of the buffer is not changed.
+     */
+    public static boolean isNeeded(ByteBuffer msg) {
+        int limit = msg.limit();
+        int i = msg.position();
+
+        if (i < limit && msg.get(i) == '.') {
+            return true;
+        }
+
+        for (i = i + 1; i < limit - 1; ++i) {
+            if (msg.get(i) == '\n' && msg.get(i + 1) == '.' && msg.get(i - 1) == '\r') {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Copies as much of the message as will fit into the destination
+     * buffer, stuffing dots along the way.
+     * 
+     * @param src The message. Position is moved past the copied bytes.
+     * @param dst Where the stuffed bytes are written to.
+     */
+    public void fill(ByteBuffer src, ByteBuffer dst) {
+        //Always leave room for a stuffed dot and the byte
+        while (src.hasRemaining() && dst.remaining() >= 2) {
+            byte ch = src.get();
+
+            if (atLineStart && ch == '.') {
+                dst.put((byte) '.');
+            }
+
+            dst.put(ch);
+
+            atLineStart = isAfterCR && ch == '\n';
+            isAfterCR = ch == '\r';
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.mobiarch;
+
+/**
+ * How hard the server tries to make sure a message is on disk
+ * before replying "250 Ok" to the client.
+ */
+public enum Durability {
+    /**
+     * Each message is fsynced on its own by a {@link DiskExecutor}
+     * thread before replying.
+     */
+    SYNC,
+    /**
+     * Messages completed within a short window are fsynced together
+     * by a {@link GroupCommitter}. The replies are held back till then.
+     */
+    GROUP,
+    /**
+     * Nothing is fsynced. Good for throwaway test runs.
+     */
+    NONE
+}
@@ -1,14 +1,33 @@
 package com.mobiarch;
 
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
 
 public interface EventListener {
 
-    void onAccept(SelectionKey key) throws IOException;
+    void onAccept(Connection conn) throws IOException;
 
-    void onReadAvailable(SelectionKey key) throws IOException;
+    void onReadAvailable(Connection conn) throws IOException;
 
-    void onWritePossible(SelectionKey key) throws IOException;
+    void onWritePossible(Connection conn) throws IOException;
+
+    /**
+     * Returns how long the client may stay silent in the current 
+     * state of the session. Asked after every event.
+     * 
+     * @return The timeout in milliseconds. 0 for no timeout.
+     */
+    long getTimeoutMillis();
+
+    /**
+     * Called when the timeout went by without a word from the client.
+     * Expected to hang up.
+     */
+    void onTimeout(Connection conn) throws IOException;
+
+    /**
+     * Called once the connection is closed, by whoever closed it. 
+     * Gives back the buffers and throws away unfinished work.
+     */
+    void onClose(Connection conn);
     
 }
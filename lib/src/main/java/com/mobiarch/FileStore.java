@@ -0,0 +1,196 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Keeps each message in its own file in the directory of each of 
+ * its mailboxes. The file is named after the time the message arrived.</p>
+ * 
+ * <p>A message is written in the temporary directory and moved to the 
+ * first mailbox when published. So nobody sees half a message. The other
+ * mailboxes get a hard link to the same file. The message is stored
+ * once however many recipients it has. The file system frees it once
+ * the last link is deleted.</p>
+ */
+public class FileStore implements MessageStore {
+    private final Path tempDir;
+    private Mailboxes mailboxes = null;
+    //Mailbox directories with entries added or removed since the last sync
+    private final Set<Path> dirtyDirs = ConcurrentHashMap.newKeySet();
+
+    private class FileDraft implements Draft {
+        private final String fileName;
+        private final List<String> names;
+        private final Path tempPath;
+        private final FileChannel channel;
+
+        FileDraft(List<String> names) throws IOException {
+            fileName = String.format("%d.eml", System.nanoTime());
+            this.names = names;
+            tempPath = tempDir.resolve(fileName);
+
+            Log.debug("Saving mail to: %s", tempPath);
+
+            channel = FileChannel.open(tempPath, 
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public MessageInfo finish() throws IOException {
+            var path = mailboxes.dirOf(names.get(0)).resolve(fileName);
+
+            return new MessageInfo(path.toFile(), channel.size(), names);
+        }
+
+        @Override
+        public void force() throws IOException {
+            channel.force(true);
+        }
+
+        @Override
+        public void publish() throws IOException {
+            channel.close();
+            //Added by the caller. Not by the watcher.
+            mailboxes.beginPublish(fileName);
+
+            var dir = mailboxes.createDir(names.get(0));
+            var path = dir.resolve(fileName);
+
+            //Make the complete message visible
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+            dirtyDirs.add(dir);
+
+            for (int i = 1; i < names.size(); ++i) {
+                var linkDir = mailboxes.createDir(names.get(i));
+
+                Files.createLink(linkDir.resolve(fileName), path);
+                dirtyDirs.add(linkDir);
+            }
+        }
+
+        @Override
+        public void abort() {
+            mailboxes.endPublish(fileName);
+
+            try {
+                channel.close();
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                //Nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * @param tempDir Where the messages are written while being received.
+     * Must be in the same file system as the mailboxes.
+     */
+    public FileStore(Path tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    @Override
+    public void load(Mailboxes mailboxes) {
+        //The mailboxes read their directories themselves
+        this.mailboxes = mailboxes;
+    }
+
+    @Override
+    public Draft create(List<String> mailboxes) throws IOException {
+        return new FileDraft(mailboxes);
+    }
+
+    @Override
+    public MessageBody open(MessageInfo msg) throws IOException {
+        return openFile(msg);
+    }
+
+    /**
+     * Returns the file of a message in a mailbox. The file of the
+     * first mailbox is known. The others are links next to it.
+     */
+    private static Path pathOf(MessageInfo msg, String mailbox) {
+        return msg.getFile().toPath().getParent().resolveSibling(mailbox).resolve(msg.getId());
+    }
+
+    /**
+     * Opens a message kept in its own file. Any of its links will do.
+     */
+    static MessageBody openFile(MessageInfo msg) throws IOException {
+        FileChannel channel = null;
+
+        for (var mailbox : msg.getMailboxes()) {
+            try {
+                channel = FileChannel.open(pathOf(msg, mailbox), StandardOpenOption.READ);
+
+                break;
+            } catch (NoSuchFileException e) {
+                //Deleted from this mailbox. Try the next.
+            }
+        }
+
+        if (channel == null) {
+            throw new NoSuchFileException(msg.getId());
+        }
+
+        try {
+            return new MessageBody(channel, 0, channel.size(), channel);
+        } catch (IOException e) {
+            channel.close();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the link to a message file in a mailbox.
+     */
+    static void deleteFile(MessageInfo msg, String mailbox) {
+        msg.unlink(mailbox);
+        pathOf(msg, mailbox).toFile().delete();
+    }
+
+    @Override
+    public void delete(MessageInfo msg, String mailbox) {
+        deleteFile(msg, mailbox);
+        dirtyDirs.add(mailboxes.dirOf(mailbox));
+    }
+
+    @Override
+    public void sync() {
+        for (var dir : dirtyDirs) {
+            dirtyDirs.remove(dir);
+            syncDirectory(dir);
+        }
+    }
+
+    /**
+     * Fsyncs a directory so that the entries added to or 
+     * removed from it are durable.
+     */
+    static void syncDirectory(Path dir) {
+        try (var channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //Some platforms do not allow syncing a directory
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
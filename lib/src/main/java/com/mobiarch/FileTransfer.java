@@ -0,0 +1,40 @@
+package com.mobiarch;
+
+import java.io.IOException;
+
+/**
+ * Sends a message straight from the file using FileChannel.transferTo.
+ */
+public class FileTransfer implements BodyTransfer {
+    private final MessageBody body;
+    private long position;
+    private final long end;
+
+    /**
+     * Sends from the start of the message.
+     * 
+     * @param body The message. It's closed when the transfer is closed.
+     * @param end Offset in the body's channel after the last byte to send.
+     */
+    public FileTransfer(MessageBody body, long end) {
+        this.body = body;
+        this.position = body.getStart();
+        this.end = end;
+    }
+
+    @Override
+    public void send(Connection conn) throws IOException {
+        //May send less than asked for if the socket buffer is full
+        position += conn.sendFile(body.getChannel(), position, end - position);
+    }
+
+    @Override
+    public boolean isDone() {
+        return position >= end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        body.close();
+    }
+}
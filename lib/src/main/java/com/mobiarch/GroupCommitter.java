@@ -0,0 +1,190 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Fsyncs saved messages in batches from a background thread.</p>
+ * 
+ * <p>Once the first message of a batch arrives the flusher waits for
+ * the commit window to gather more. It then forces every message in 
+ * the batch and publishes it in the {@link MessageStore}. The store is
+ * synced last, so that the new directory entries are durable too. 
+ * Finally the callback of each 
+ * message is called. Usually the callback hands the "250 Ok" reply back to the 
+ * connection's thread using {@link Connection#execute}.</p>
+ *
+ * <p>Every message queued is flushed and called back, even on 
+ * {@link #stop()}. The flusher is never interrupted. That would close
+ * the channel of a message being forced.</p>
+ */
+public class GroupCommitter implements Runnable {
+    public interface Callback {
+        /**
+         * Called from the flusher thread.
+         * 
+         * @param success false if the message could not be fsynced.
+         */
+        void onCommitted(boolean success);
+    }
+
+    private static class Commit {
+        final MessageStore.Draft draft;
+        final Callback callback;
+
+        Commit(MessageStore.Draft draft, Callback callback) {
+            this.draft = draft;
+            this.callback = callback;
+        }
+    }
+
+    //Queued by stop() to end the flusher
+    private static final Commit STOP = new Commit(null, null);
+
+    private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<>();
+    private final MessageStore store;
+    private final long windowNanos;
+    private final Histogram fsyncTimes;
+    private Thread thread = null;
+    private volatile boolean isStopped = false;
+
+    /**
+     * @param store Where the messages are saved.
+     * @param windowMillis How long to wait to gather a batch.
+     * @param fsyncTimes Records the time taken by each fsync.
+     */
+    public GroupCommitter(MessageStore store, long windowMillis, Histogram fsyncTimes) {
+        this.store = store;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.fsyncTimes = fsyncTimes;
+    }
+
+    public void start() {
+        thread = new Thread(this, "devmail-flusher");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the flusher once the messages queued so far are flushed.
+     * Any message queued after that is flushed by the caller of
+     * {@link #commit}.
+     */
+    public void stop() throws InterruptedException {
+        isStopped = true;
+
+        if (thread != null) {
+            queue.add(STOP);
+            thread.join();
+        }
+
+        //Queued while the flusher was ending
+        flushQueued();
+    }
+
+    /**
+     * Queues up a saved message to be fsynced. The flusher takes 
+     * over the draft and publishes it after fsync. Safe to call from 
+     * any thread.
+     * 
+     * @param draft The message being committed. It must be finished.
+     */
+    public void commit(MessageStore.Draft draft, Callback callback) {
+        queue.add(new Commit(draft, callback));
+
+        if (isStopped) {
+            //Nobody else will
+            flushQueued();
+        }
+    }
+
+    private void flushQueued() {
+        var batch = new ArrayList<Commit>();
+
+        queue.drainTo(batch);
+        batch.remove(STOP);
+
+        if (!batch.isEmpty()) {
+            flush(batch);
+        }
+    }
+
+    @Override
+    public void run() {
+        var batch = new ArrayList<Commit>();
+        boolean isLast = false;
+
+        while (!isLast) {
+            try {
+                var commit = queue.take();
+
+                batch.add(commit);
+
+                //Gather whatever else completes within the window
+                long deadline = System.nanoTime() + windowNanos;
+                long wait;
+
+                while (commit != STOP && (wait = deadline - System.nanoTime()) > 0) {
+                    commit = queue.poll(wait, TimeUnit.NANOSECONDS);
+
+                    if (commit == null) {
+                        break;
+                    }
+
+                    batch.add(commit);
+                }
+
+                queue.drainTo(batch);
+            } catch (InterruptedException e) {
+                //Not by stop(). Whatever was taken is still flushed.
+                isLast = true;
+            }
+
+            isLast |= batch.remove(STOP);
+
+            if (!batch.isEmpty()) {
+                flush(batch);
+            }
+
+            batch.clear();
+        }
+    }
+
+    private void flush(ArrayList<Commit> batch) {
+        Log.debug("Committing %d message(s)", batch.size());
+
+        var success = new boolean[batch.size()];
+
+        for (int i = 0; i < batch.size(); ++i) {
+            var commit = batch.get(i);
+
+            try {
+                long start = System.nanoTime();
+
+                commit.draft.force();
+                fsyncTimes.record(System.nanoTime() - start);
+
+                commit.draft.publish();
+
+                success[i] = true;
+            } catch (IOException e) {
+                Log.error("Failed to commit message: %s", e.getMessage());
+
+                commit.draft.abort();
+            }
+        }
+
+        long start = System.nanoTime();
+
+        store.sync();
+        fsyncTimes.record(System.nanoTime() - start);
+
+        for (int i = 0; i < batch.size(); ++i) {
+            batch.get(i).callback.onCommitted(success[i]);
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.mobiarch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <p>An inverted index of the {@link MessageHeaders} of the messages
+ * received. Finding a test's message takes a lookup instead of a RETR
+ * of every message in the mailbox.</p>
+ *
+ * <p>Each message gets a sequence number when added. For each term
+ * there's a sorted set of the numbers of the messages that have it.
+ * A search walks the smallest of the sets of its terms and checks the
+ * others. The numbers double as the cursor of the next page.</p>
+ *
+ * <p>The terms of a header are:</p>
+ * <ul>
+ * <li>Message-ID: the id without the angle brackets</li>
+ * <li>From, To and Cc: each address</li>
+ * <li>Subject: each word</li>
+ * <li>X- headers: the whole value</li>
+ * </ul>
+ * <p>The mailboxes of the message are terms too. Date is searched by
+ * range. All in lower case.</p>
+ *
+ * <p>Messages received over SMTP are indexed as they are added. So are
+ * those loaded at start up and those dropped into a mailbox directory.
+ * Their headers are read back first. See {@link Mailboxes}. A message
+ * is dropped from the index once it's in no mailbox.</p>
+ *
+ * <p>A file dropped into many mailboxes is a message of its own in each.
+ * So a message is known by its id and its first mailbox.</p>
+ */
+public class HeaderIndex {
+    /**
+     * A message found.
+     */
+    public static final class Hit {
+        private final long cursor;
+        private final MessageInfo message;
+        private final MessageHeaders headers;
+
+        Hit(long cursor, MessageInfo message, MessageHeaders headers) {
+            this.cursor = cursor;
+            this.message = message;
+            this.headers = headers;
+        }
+
+        /**
+         * @return Where the next page starts if this is
+         * the last hit of a page.
+         */
+        public long getCursor() {
+            return cursor;
+        }
+
+        /**
+         * @return The message. Read it with {@link MessageStore#open(MessageInfo)}.
+         */
+        public MessageInfo getMessage() {
+            return message;
+        }
+
+        public MessageHeaders getHeaders() {
+            return headers;
+        }
+    }
+
+    /**
+     * A page of results.
+     */
+    public static final class Page {
+        private final List<Hit> hits;
+        private final long next;
+
+        Page(List<Hit> hits, long next) {
+            this.hits = Collections.unmodifiableList(hits);
+            this.next = next;
+        }
+
+        public List<Hit> getHits() {
+            return hits;
+        }
+
+        /**
+         * @return The cursor of the next page. -1 if this is the last.
+         */
+        public long getNext() {
+            return next;
+        }
+    }
+
+    private final Mailboxes mailboxes;
+    //Guarded by this
+    private long nextCursor = 0;
+    //All the messages. Guarded by this.
+    private final TreeMap<Long, Hit> hits = new TreeMap<>();
+    //By keyOf(). Guarded by this.
+    private final Map<String, Hit> hitsByKey = new HashMap<>();
+    //The messages with each term. Guarded by this.
+    private final Map<String, TreeSet<Long>> postings = new HashMap<>();
+    //The messages by the time in their Date header. Guarded by this.
+    private final TreeMap<Long, TreeSet<Long>> dates = new TreeMap<>();
+
+    /**
+     * @param mailboxes Tells if a message is still in a mailbox.
+     */
+    HeaderIndex(Mailboxes mailboxes) {
+        this.mailboxes = mailboxes;
+    }
+
+    /**
+     * Returns the terms a header value is indexed and looked up by.
+     *
+     * @return Never empty. A value with no terms gets one that
+     * matches nothing.
+     */
+    static List<String> terms(String name, String value) {
+        var field = name.strip().toLowerCase(Locale.ROOT);
+        var text = value.strip().toLowerCase(Locale.ROOT);
+        var terms = new LinkedHashSet<String>();
+
+        switch (field) {
+            case "message-id" -> {
+                if (text.startsWith("<") && text.endsWith(">")) {
+                    text = text.substring(1, text.length() - 1).strip();
+                }
+
+                if (!text.isEmpty()) {
+                    terms.add(field + ":" + text);
+                }
+            }
+            case "from", "to", "cc" -> {
+                for (var address : addresses(text)) {
+                    terms.add(field + ":" + address);
+                }
+            }
+            case "subject" -> {
+                for (var word : text.split("[^\\p{L}\\p{N}]+")) {
+                    if (!word.isEmpty()) {
+                        terms.add(field + ":" + word);
+                    }
+                }
+            }
+            default -> {
+                if (!text.isEmpty()) {
+                    terms.add(field + ":" + text);
+                }
+            }
+        }
+
+        if (terms.isEmpty()) {
+            //Nothing is indexed with an empty term
+            return List.of(field + ":");
+        }
+
+        return new ArrayList<>(terms);
+    }
+
+    static String mailboxTerm(String name) {
+        return "\0mailbox:" + name;
+    }
+
+    /**
+     * Picks the addresses out of a list like:
+     * "Bob" &lt;bob@example.com&gt;, carol@example.com
+     */
+    private static List<String> addresses(String list) {
+        var addresses = new ArrayList<String>();
+        boolean isQuoted = false;
+        int depth = 0;
+        int start = 0;
+
+        for (int i = 0; i <= list.length(); ++i) {
+            char ch = i < list.length() ? list.charAt(i) : ',';
+
+            if (ch == '"') {
+                isQuoted = !isQuoted;
+            } else if (ch == '<' && !isQuoted) {
+                ++depth;
+            } else if (ch == '>' && !isQuoted && depth > 0) {
+                --depth;
+            } else if (ch == ',' && !isQuoted && depth == 0) {
+                var address = addressOf(list.substring(start, i));
+
+                if (!address.isEmpty()) {
+                    addresses.add(address);
+                }
+
+                start = i + 1;
+            }
+        }
+
+        return addresses;
+    }
+
+    private static String addressOf(String mailbox) {
+        int open = mailbox.lastIndexOf('<');
+        int close = mailbox.lastIndexOf('>');
+
+        if (open >= 0 && close > open) {
+            return mailbox.substring(open + 1, close).strip();
+        }
+
+        return mailbox.strip();
+    }
+
+    private static String keyOf(MessageInfo msg) {
+        var names = msg.getMailboxes();
+
+        return names.isEmpty() ? msg.getId() : msg.getId() + "\0" + names.get(0);
+    }
+
+    /**
+     * Adds a message. Does nothing if it has no headers or is
+     * already there. It replaces a message with the same id made
+     * from the file alone.
+     */
+    public synchronized void add(MessageInfo msg) {
+        var headers = msg.getHeaders();
+
+        if (headers == null) {
+            return;
+        }
+
+        var old = hitsByKey.get(keyOf(msg));
+
+        if (old != null) {
+            if (old.message == msg) {
+                return;
+            }
+
+            //The file was written again
+            remove(old);
+        }
+
+        var hit = new Hit(nextCursor++, msg, headers);
+
+        hits.put(hit.cursor, hit);
+        hitsByKey.put(keyOf(msg), hit);
+
+        for (var term : termsOf(hit)) {
+            postings.computeIfAbsent(term, t -> new TreeSet<>()).add(hit.cursor);
+        }
+
+        if (headers.getDate() >= 0) {
+            dates.computeIfAbsent(headers.getDate(), d -> new TreeSet<>()).add(hit.cursor);
+        }
+    }
+
+    private static List<String> termsOf(Hit hit) {
+        var terms = new ArrayList<String>();
+
+        for (var header : hit.headers.getAll().entrySet()) {
+            if ("date".equals(header.getKey())) {
+                continue;
+            }
+
+            for (var value : header.getValue()) {
+                terms.addAll(terms(header.getKey(), value));
+            }
+        }
+
+        for (var name : hit.message.getMailboxes()) {
+            terms.add(mailboxTerm(name));
+        }
+
+        return terms;
+    }
+
+    /**
+     * Removes a message.
+     */
+    public synchronized void remove(MessageInfo msg) {
+        var hit = hitsByKey.get(keyOf(msg));
+
+        if (hit != null && hit.message == msg) {
+            remove(hit);
+        }
+    }
+
+    private void remove(Hit hit) {
+        hits.remove(hit.cursor);
+        hitsByKey.remove(keyOf(hit.message));
+
+        for (var term : termsOf(hit)) {
+            var cursors = postings.get(term);
+
+            if (cursors != null && cursors.remove(hit.cursor) && cursors.isEmpty()) {
+                postings.remove(term);
+            }
+        }
+
+        long date = hit.headers.getDate();
+
+        if (date >= 0) {
+            var cursors = dates.get(date);
+
+            if (cursors != null && cursors.remove(hit.cursor) && cursors.isEmpty()) {
+                dates.remove(date);
+            }
+        }
+    }
+
+    /**
+     * @return The number of messages indexed.
+     */
+    public synchronized int size() {
+        return hits.size();
+    }
+
+    /**
+     * Returns a page of the messages that match.
+     */
+    public synchronized Page search(HeaderQuery query) {
+        //The smallest set to walk and the rest to check
+        NavigableSet<Long> walk = null;
+        var checks = new ArrayList<NavigableSet<Long>>();
+
+        for (var term : query.terms) {
+            var cursors = postings.get(term);
+
+            if (cursors == null) {
+                return new Page(List.of(), -1);
+            }
+
+            if (walk == null || cursors.size() < walk.size()) {
+                if (walk != null) {
+                    checks.add(walk);
+                }
+
+                walk = cursors;
+            } else {
+                checks.add(cursors);
+            }
+        }
+
+        Iterator<Long> candidates;
+
+        if (walk != null) {
+            candidates = walk.tailSet(query.after, false).iterator();
+        } else if (query.hasDateRange()) {
+            candidates = byDate(query).iterator();
+        } else {
+            candidates = hits.tailMap(query.after, false).keySet().iterator();
+        }
+
+        var found = new ArrayList<Hit>();
+        var dead = new ArrayList<Hit>();
+
+        while (candidates.hasNext()) {
+            var hit = hits.get(candidates.next());
+
+            if (!matches(hit, query, checks)) {
+                continue;
+            }
+
+            if (!mailboxes.contains(hit.message)) {
+                //Deleted from all its mailboxes
+                dead.add(hit);
+
+                continue;
+            }
+
+            if (!isInMailboxes(hit, query)) {
+                //Deleted from the one asked for
+                continue;
+            }
+
+            if (found.size() == query.limit) {
+                //There's more
+                dead.forEach(this::remove);
+
+                return new Page(found, found.get(found.size() - 1).cursor);
+            }
+
+            found.add(hit);
+        }
+
+        dead.forEach(this::remove);
+
+        return new Page(found, -1);
+    }
+
+    /**
+     * Collects the messages with a Date in the range. Used when
+     * there's no term to look up.
+     */
+    private NavigableSet<Long> byDate(HeaderQuery query) {
+        var cursors = new TreeSet<Long>();
+        NavigableMap<Long, TreeSet<Long>> range = dates;
+
+        if (query.since != Long.MIN_VALUE) {
+            range = range.tailMap(query.since, true);
+        }
+
+        if (query.before != Long.MAX_VALUE) {
+            range = range.headMap(query.before, false);
+        }
+
+        for (var set : range.values()) {
+            cursors.addAll(set.tailSet(query.after, false));
+        }
+
+        return cursors;
+    }
+
+    private boolean isInMailboxes(Hit hit, HeaderQuery query) {
+        for (var name : query.mailboxes) {
+            if (!mailboxes.contains(hit.message, name)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean matches(Hit hit, HeaderQuery query, List<NavigableSet<Long>> checks) {
+        for (var cursors : checks) {
+            if (!cursors.contains(hit.cursor)) {
+                return false;
+            }
+        }
+
+        if (query.hasDateRange()) {
+            long date = hit.headers.getDate();
+
+            return date >= 0 && date >= query.since && date < query.before;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns all the messages that match a page at a time. Pages
+     * are looked up as the stream is read. The query's cursor is
+     * moved along.
+     */
+    public Stream<Hit> stream(HeaderQuery query) {
+        var iterator = new Iterator<Hit>() {
+            private Iterator<Hit> page = List.<Hit>of().iterator();
+            private long next = query.after;
+            private boolean isLast = false;
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && !isLast) {
+                    var result = search(query.after(next));
+
+                    page = result.getHits().iterator();
+                    next = result.getNext();
+                    isLast = next < 0;
+                }
+
+                return page.hasNext();
+            }
+
+            @Override
+            public Hit next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return page.next();
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+            Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+}
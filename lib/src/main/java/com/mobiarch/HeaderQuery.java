@@ -0,0 +1,138 @@
+package com.mobiarch;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>What to look for with {@link HeaderIndex#search(HeaderQuery)}. A
+ * message must match every condition set. Case is ignored.</p>
+ *
+ * <pre>
+ * var page = server.search(new HeaderQuery()
+ *     .to("bob@example.com")
+ *     .subject("welcome")
+ *     .header("X-Test-Id", testId));
+ * </pre>
+ *
+ * <p>Results come in the order the messages arrived. A page ends with
+ * a cursor. Pass it to {@link #after(long)} for the next page.</p>
+ */
+public class HeaderQuery {
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 1000;
+
+    //Indexed terms the message must have. As built by HeaderIndex.
+    final List<String> terms = new ArrayList<>();
+    //The mailboxes the message must still be in
+    final List<String> mailboxes = new ArrayList<>();
+    //Milliseconds since the epoch. Inclusive.
+    long since = Long.MIN_VALUE;
+    //Milliseconds since the epoch. Exclusive.
+    long before = Long.MAX_VALUE;
+    long after = -1;
+    int limit = DEFAULT_LIMIT;
+
+    /**
+     * @param messageId With or without the angle brackets.
+     */
+    public HeaderQuery messageId(String messageId) {
+        return header("message-id", messageId);
+    }
+
+    /**
+     * @param words The subject must have all the words. Their order
+     * does not matter.
+     */
+    public HeaderQuery subject(String words) {
+        return header("subject", words);
+    }
+
+    /**
+     * @param address An address in the From header.
+     */
+    public HeaderQuery from(String address) {
+        return header("from", address);
+    }
+
+    /**
+     * @param address An address in the To header.
+     */
+    public HeaderQuery to(String address) {
+        return header("to", address);
+    }
+
+    /**
+     * @param address An address in the Cc header.
+     */
+    public HeaderQuery cc(String address) {
+        return header("cc", address);
+    }
+
+    /**
+     * Matches a header by name. For an X- header the whole value must
+     * match. The other headers match as described for their own methods.
+     */
+    public HeaderQuery header(String name, String value) {
+        terms.addAll(HeaderIndex.terms(name, value));
+
+        return this;
+    }
+
+    /**
+     * @param name As returned by {@link Mailboxes#nameOf(String)}. Or
+     * an address.
+     */
+    public HeaderQuery mailbox(String name) {
+        var mailbox = Mailboxes.nameOf(name);
+
+        terms.add(HeaderIndex.mailboxTerm(mailbox));
+        mailboxes.add(mailbox);
+
+        return this;
+    }
+
+    /**
+     * @param time The Date header must not be before this.
+     */
+    public HeaderQuery since(Instant time) {
+        since = time.toEpochMilli();
+
+        return this;
+    }
+
+    /**
+     * @param time The Date header must be before this.
+     */
+    public HeaderQuery before(Instant time) {
+        before = time.toEpochMilli();
+
+        return this;
+    }
+
+    /**
+     * @param cursor As returned with the previous page.
+     */
+    public HeaderQuery after(long cursor) {
+        after = cursor;
+
+        return this;
+    }
+
+    /**
+     * @param count The most results in a page. Up to {@link #MAX_LIMIT}.
+     */
+    public HeaderQuery limit(int count) {
+        if (count < 1 || count > MAX_LIMIT) {
+            throw new IllegalArgumentException("Limit must be from 1 to " + MAX_LIMIT + ": " + count);
+        }
+
+        limit = count;
+
+        return this;
+    }
+
+    boolean hasDateRange() {
+        return since != Long.MIN_VALUE || before != Long.MAX_VALUE;
+    }
+}
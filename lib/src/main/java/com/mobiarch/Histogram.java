@@ -0,0 +1,103 @@
+package com.mobiarch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A lock-free latency histogram in the style of HdrHistogram. Values
+ * are bucketed by their power of 2 and then split linearly into 16
+ * sub-buckets. So any value is recorded with an error of at most
+ * 1/16th (about 6%) no matter how large it is.</p>
+ *
+ * <p>Recording is a few shifts and an atomic increment. Any number of
+ * threads can record at once.</p>
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BITS;
+
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * Returns the largest value that falls into a bucket.
+     */
+    private static long highestValueAt(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+
+        int shift = (index >>> SUB_BITS) - 1;
+        long low = ((long) (SUB_COUNT + (index & (SUB_COUNT - 1)))) << shift;
+
+        return low + (1L << shift) - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the value at or below which the given fraction of
+     * the recorded values fall. Returns 0 if nothing was recorded.
+     *
+     * @param quantile Between 0 and 1. For example 0.99.
+     */
+    public long getValueAt(double quantile) {
+        //Take a copy so the total agrees with the buckets
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; ++i) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += copy[i];
+
+            if (seen >= rank) {
+                return highestValueAt(i);
+            }
+        }
+
+        return highestValueAt(BUCKETS - 1);
+    }
+}
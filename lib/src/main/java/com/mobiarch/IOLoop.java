@@ -2,58 +2,317 @@ package com.mobiarch;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * <p>Accepts SMTP and POP3 connections and spreads them across 
+ * a number of {@link Reactor} threads. Each reactor runs its own 
+ * Selector. The accepted connections are assigned in a round-robin 
+ * manner.</p>
+ * 
+ * <p>The thread calling {@link #begin()} only does the accepting.
+ * Connections over the caps of {@link ProtocolLimits} and 
+ * {@link ServerContext#getMaxConnections()} are refused right there.</p>
+ *
+ * <p>{@link #start()} does the accepting in a thread of its own
+ * instead. {@link #close()} stops the accepting and the reactors.</p>
+ */
 public class IOLoop {
-    private void startServer(Selector selector, String type, int port) throws IOException {
-        System.out.printf("Starting %s server at port %d\n", type, port);
-        
+    private final ServerContext context;
+    private final Reactor[] reactors;
+    private final Thread[] reactorThreads;
+    private int nextReactor = 0;
+    private final Selector selector;
+    //The ports asked for. 0 for any free port.
+    private final int smtpPort;
+    private final int pop3Port;
+    private ServerSocketChannel smtpSocket = null;
+    private ServerSocketChannel pop3Socket = null;
+    private volatile boolean isClosed = false;
+    //Counted down once the accepting has stopped
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * Creates a loop with one reactor per available processor.
+     */
+    public IOLoop(ServerContext context) throws IOException {
+        this(context, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param reactorCount The number of reactor threads. Must be at least 1.
+     */
+    public IOLoop(ServerContext context, int reactorCount) throws IOException {
+        this(context, reactorCount, 2525, 1100);
+    }
+
+    /**
+     * @param smtpPort 0 for any free port. See {@link #getSmtpPort()}.
+     * @param pop3Port 0 for any free port. See {@link #getPop3Port()}.
+     */
+    public IOLoop(ServerContext context, int reactorCount, int smtpPort, int pop3Port) throws IOException {
+        if (reactorCount < 1) {
+            throw new IllegalArgumentException("Invalid reactor count: " + reactorCount);
+        }
+
+        this.context = context;
+        this.smtpPort = smtpPort;
+        this.pop3Port = pop3Port;
+        reactors = new Reactor[reactorCount];
+        reactorThreads = new Thread[reactorCount];
+
+        for (int i = 0; i < reactorCount; ++i) {
+            reactors[i] = new Reactor(context);
+        }
+
+        selector = Selector.open();
+    }
+
+    private ServerSocketChannel startServer(String type, int port) throws IOException {
         var socket = ServerSocketChannel.open();
 
-        socket.socket().bind(new InetSocketAddress(port));
-        socket.configureBlocking(false);
-        socket.register(selector, SelectionKey.OP_ACCEPT, type);
+        try {
+            socket.socket().bind(new InetSocketAddress(port));
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_ACCEPT, type);
+        } catch (IOException e) {
+            socket.close();
+
+            throw e;
+        }
+
+        Log.info("Starting %s server at port %d", type, socket.socket().getLocalPort());
+
+        return socket;
+    }
+
+    private void startReactors() {
+        Log.info("Starting %d reactor(s)", reactors.length);
+
+        for (int i = 0; i < reactors.length; ++i) {
+            reactorThreads[i] = new Thread(reactors[i], "devmail-reactor-" + i);
+
+            reactorThreads[i].start();
+        }
+    }
+
+    /**
+     * @return The port SMTP is served at. Known once started.
+     */
+    public int getSmtpPort() {
+        return smtpSocket == null ? smtpPort : smtpSocket.socket().getLocalPort();
+    }
+
+    /**
+     * @return The port POP3 is served at. Known once started.
+     */
+    public int getPop3Port() {
+        return pop3Socket == null ? pop3Port : pop3Socket.socket().getLocalPort();
     }
 
     public void onAccept(Selector selector, SelectionKey key) throws IOException {
         // Accept the connection and set non-blocking mode
         var socket = (ServerSocketChannel) key.channel();
         SocketChannel client = socket.accept();
+
+        if (client == null) {
+            //Another accept already got it
+            return;
+        }
         
+        var type = (String) key.attachment();
+
+        try {
+            configure(client);
+        } catch (IOException e) {
+            //Reset by the client already
+            client.close();
+
+            throw e;
+        }
+
+        if (!tryAccept(type)) {
+            Log.warn("Too many connections. Refused %s client.", type);
+
+            refuse(client, type);
+
+            return;
+        }
+
+        var reactor = reactors[nextReactor];
+
+        nextReactor = (nextReactor + 1) % reactors.length;
+
+        reactor.register(client, type);
+    }
+
+    /**
+     * Readies an accepted client for a reactor.
+     */
+    void configure(SocketChannel client) throws IOException {
         client.configureBlocking(false);
+        //Replies are small and written whole. Don't let them
+        //wait for the ACK of the previous one.
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
 
-        // Register that client is reading this channel
-        if ("SMTP".equals(key.attachment())) {
-            System.out.println("Accepted client type: SMTP");
+    /**
+     * Counts the connection if it's within the caps.
+     * 
+     * @return false if it has to be refused.
+     */
+    private boolean tryAccept(String type) {
+        var metrics = context.getMetrics();
 
-            var smtp = new SMTPState();
+        if ("SMTP".equals(type)) {
+            return metrics.getSmtp().tryAccept(
+                context.getSmtpLimits().getMaxConnections(), context.getMaxConnections());
+        } else {
+            return metrics.getPop3().tryAccept(
+                context.getPop3Limits().getMaxConnections(), context.getMaxConnections());
+        }
+    }
 
-            var clientKey = client.register(selector, SelectionKey.OP_READ, smtp);
+    /**
+     * Tells the client the server is busy and hangs up. 
+     * Shared with {@link BlockingServer}.
+     */
+    static void refuse(SocketChannel client, String type) {
+        var reply = "SMTP".equals(type) ? 
+            "421 4.3.2 Too many connections, try again later\r\n" : 
+            "-ERR Too many connections, try again later\r\n";
 
-            smtp.onAccept(clientKey);
-        } else if ("POP3".equals(key.attachment())) {
-            System.out.println("Accepted client type: POP3");
+        try (client) {
+            //Best effort. A fresh socket has room for it.
+            client.write(ByteBuffer.wrap(reply.getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException e) {
+            //Nothing more can be done
+        }
+    }
 
-            var pop3 = new POP3State();
+    /**
+     * Binds the ports and starts the reactors. 
+     */
+    private void bind() throws IOException {
+        try {
+            smtpSocket = startServer("SMTP", smtpPort);
+            pop3Socket = startServer("POP3", pop3Port);
+        } catch (IOException e) {
+            closeSockets();
 
-            var clientKey = client.register(selector, SelectionKey.OP_READ, pop3);
+            smtpSocket = null;
+            pop3Socket = null;
 
-            pop3.onAccept(clientKey);
+            throw e;
         }
+
+        startReactors();
     }
 
+    /**
+     * Serves in the calling thread till {@link #close()}.
+     */
     public void begin() throws IOException {
-        Selector selector = Selector.open();
+        bind();
+        run();
+    }
 
-        startServer(selector, "SMTP", 2525);
-        startServer(selector, "POP3", 1100);
-        
-        while (true) {
+    /**
+     * Binds the ports and serves from a thread of its own. The ports 
+     * are open when this returns.
+     */
+    public void start() throws IOException {
+        bind();
+
+        var thread = new Thread(() -> {
+            try {
+                run();
+            } catch (IOException e) {
+                Log.error("Accepting failed: %s", e.getMessage());
+            }
+        }, "devmail-acceptor");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops accepting, closes every connection and waits for the 
+     * threads to end. The ports are free once this returns.
+     */
+    public void close() {
+        isClosed = true;
+        selector.wakeup();
+
+        try {
+            if (smtpSocket != null) {
+                //No new clients for the reactors after this
+                stopped.await(5, TimeUnit.SECONDS);
+            } else {
+                closeSockets();
+            }
+
+            for (int i = 0; i < reactors.length; ++i) {
+                reactors[i].stop();
+
+                if (reactorThreads[i] == null) {
+                    //Never started. Only closes down.
+                    reactors[i].run();
+                }
+            }
+
+            for (var thread : reactorThreads) {
+                if (thread != null) {
+                    thread.join(5000);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeSockets() {
+        for (var socket : new ServerSocketChannel[] { smtpSocket, pop3Socket }) {
+            if (socket == null) {
+                continue;
+            }
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //Nothing more can be done
+            }
+        }
+
+        try {
+            //Frees the ports of the closed sockets
+            selector.close();
+        } catch (IOException e) {
+            //Nothing more can be done
+        }
+    }
+
+    private void run() throws IOException {
+        try {
+            acceptLoop();
+        } finally {
+            closeSockets();
+            stopped.countDown();
+        }
+    }
+
+    private void acceptLoop() throws IOException {
+        while (!isClosed) {
             selector.select();
 
             Set<SelectionKey> keys = selector.selectedKeys();
@@ -64,17 +323,14 @@ public class IOLoop {
 
                 if (key.isAcceptable()) {
                     // New client has been accepted
-                    onAccept(selector, key);
-                } else if (key.isReadable()) {
-                    var listener = (EventListener) key.attachment();
-
-                    listener.onReadAvailable(key);
-                } else if (key.isWritable()) {
-                    var listener = (EventListener) key.attachment();
-
-                    listener.onWritePossible(key);
+                    try {
+                        onAccept(selector, key);
+                    } catch (IOException e) {
+                        //Only this client is lost. Say out of files.
+                        Log.warn("Accept failed: %s", e.getMessage());
+                    }
                 } else {
-                    System.out.println("UNKNOWN SELECT");
+                    Log.warn("UNKNOWN SELECT");
                 }
 
                 /*
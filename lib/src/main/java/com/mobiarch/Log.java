@@ -0,0 +1,255 @@
+package com.mobiarch;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Logging that stays off the I/O threads. A log call only puts the
+ * format and its arguments in a lock-free ring buffer. A background
+ * thread formats them and writes them out. If the ring is full the
+ * entry is dropped rather than making an I/O thread wait.</p>
+ *
+ * <p>A Throwable passed as the last argument has its stack
+ * trace written after the message.</p>
+ *
+ * <p>Each call checks the level first. A disabled level costs a field
+ * read. Callers on the hot path should also guard with
+ * {@link #isTraceEnabled()} so that no argument array or dump is
+ * created for nothing.</p>
+ *
+ * <p>Configured with the system properties:</p>
+ * <ul>
+ * <li>devmail.log.level - trace, debug, info, warn or error.
+ * Default is info. Protocol lines are logged at trace.</li>
+ * <li>devmail.log.file - File to append to. Default is stdout.</li>
+ * </ul>
+ */
+public final class Log {
+    public static final int TRACE = 0;
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+    public static final int ERROR = 4;
+
+    private static final String[] LEVEL_NAMES = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR"};
+    //Must be a power of 2
+    private static final int RING_SIZE = 8192;
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static volatile int level = INFO;
+
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(RING_SIZE);
+    //Next sequence to claim by the producers
+    private static final AtomicLong head = new AtomicLong();
+    //Next sequence to drain. Only written by the drain thread.
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static PrintStream output = System.out;
+    private static Thread drainThread;
+
+    private static class Entry {
+        final long time;
+        final int level;
+        final String format;
+        final Object[] args;
+
+        Entry(int level, String format, Object[] args) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    static {
+        level = parseLevel(System.getProperty("devmail.log.level", "info"));
+
+        var file = System.getProperty("devmail.log.file");
+
+        if (file != null) {
+            try {
+                output = new PrintStream(new FileOutputStream(file, true), false, "US-ASCII");
+            } catch (IOException e) {
+                System.out.printf("Can not open log file %s: %s\n", file, e.getMessage());
+            }
+        }
+
+        drainThread = new Thread(Log::drainLoop, "devmail-log");
+
+        drainThread.setDaemon(true);
+        drainThread.start();
+
+        //Don't lose the last entries on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+    }
+
+    private Log() {
+    }
+
+    private static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; ++i) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    /**
+     * Changes the level at run time.
+     */
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(int atLevel) {
+        return atLevel >= level;
+    }
+
+    public static boolean isTraceEnabled() {
+        return TRACE >= level;
+    }
+
+    public static boolean isDebugEnabled() {
+        return DEBUG >= level;
+    }
+
+    public static void trace(String format, Object... args) {
+        if (TRACE >= level) {
+            enqueue(TRACE, format, args);
+        }
+    }
+
+    public static void debug(String format, Object... args) {
+        if (DEBUG >= level) {
+            enqueue(DEBUG, format, args);
+        }
+    }
+
+    public static void info(String format, Object... args) {
+        if (INFO >= level) {
+            enqueue(INFO, format, args);
+        }
+    }
+
+    public static void warn(String format, Object... args) {
+        if (WARN >= level) {
+            enqueue(WARN, format, args);
+        }
+    }
+
+    public static void error(String format, Object... args) {
+        if (ERROR >= level) {
+            enqueue(ERROR, format, args);
+        }
+    }
+
+    /**
+     * @return The number of entries dropped because the ring was full.
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Claims the next slot in the ring and publishes the entry.
+     * Any number of threads can do this at once.
+     */
+    private static void enqueue(int atLevel, String format, Object[] args) {
+        var entry = new Entry(atLevel, format, args);
+
+        while (true) {
+            long seq = head.get();
+
+            if (seq - tail.get() >= RING_SIZE) {
+                //The drain thread is behind
+                dropped.incrementAndGet();
+
+                return;
+            }
+
+            if (head.compareAndSet(seq, seq + 1)) {
+                ring.lazySet((int) seq & (RING_SIZE - 1), entry);
+
+                return;
+            }
+        }
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(10_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Writes out all the published entries.
+     *
+     * @return true if anything was written.
+     */
+    private static synchronized boolean drain() {
+        boolean didWrite = false;
+
+        while (true) {
+            long seq = tail.get();
+            int slot = (int) seq & (RING_SIZE - 1);
+            var entry = ring.get(slot);
+
+            if (entry == null) {
+                //Empty or the producer is yet to publish
+                break;
+            }
+
+            ring.set(slot, null);
+            tail.lazySet(seq + 1);
+
+            write(entry);
+
+            didWrite = true;
+        }
+
+        if (didWrite) {
+            output.flush();
+        }
+
+        return didWrite;
+    }
+
+    private static void write(Entry entry) {
+        var time = LocalTime.ofInstant(Instant.ofEpochMilli(entry.time), ZoneId.systemDefault());
+        String msg;
+
+        try {
+            msg = entry.args.length == 0 ? entry.format : String.format(entry.format, entry.args);
+        } catch (RuntimeException e) {
+            msg = entry.format;
+        }
+
+        output.print(TIME_FORMAT.format(time));
+        output.print(' ');
+        output.print(LEVEL_NAMES[entry.level]);
+        output.print(' ');
+        output.print(msg);
+
+        if (!msg.endsWith("\n")) {
+            output.print('\n');
+        }
+
+        if (entry.args.length > 0 && entry.args[entry.args.length - 1] instanceof Throwable t) {
+            t.printStackTrace(output);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.mobiarch;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * <p>Keeps the list of messages in one mailbox in memory. This saves
+ * POP3 from listing the directory and stat'ing every file on each
+ * STAT, LIST and UIDL. The work of a session depends only on the size
+ * of its own mailbox.</p>
+ *
+ * <p>SMTPState adds a message once it is saved. The watcher of
+ * {@link Mailboxes} picks up messages that are added or removed
+ * by anyone else. All it knows of such a message is its file. Its
+ * headers are read back by {@link Mailboxes}. An entry added by the
+ * store is never replaced by one made from the file alone.</p>
+ *
+ * <p>POP3 sessions work off a {@link Snapshot}. It's taken at login
+ * and doesn't change during the session.</p>
+ */
+public class MailboxIndex {
+    /**
+     * An unchanging view of the mailbox.
+     */
+    public static class Snapshot {
+        private final List<MessageInfo> messages;
+        private final long totalSize;
+
+        Snapshot(List<MessageInfo> messages, long totalSize) {
+            this.messages = Collections.unmodifiableList(messages);
+            this.totalSize = totalSize;
+        }
+
+        public List<MessageInfo> getMessages() {
+            return messages;
+        }
+
+        public int size() {
+            return messages.size();
+        }
+
+        /**
+         * @return The total size of all the messages in bytes.
+         */
+        public long getTotalSize() {
+            return totalSize;
+        }
+    }
+
+    /**
+     * The mailbox of a session that has not logged in.
+     */
+    public static final Snapshot EMPTY = new Snapshot(new ArrayList<>(), 0);
+
+    private final String name;
+    private final Path dir;
+    //Messages by id in the order they were added
+    private final LinkedHashMap<String, MessageInfo> messages = new LinkedHashMap<>();
+    private long totalSize = 0;
+    //Built on demand. null if there has been a change since.
+    private Snapshot snapshot = null;
+
+    /**
+     * @param dir Where the files of the mailbox are. It may not exist.
+     */
+    public MailboxIndex(String name, Path dir) {
+        this.name = name;
+        this.dir = dir;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    static boolean isMessage(File f) {
+        return f.getName().endsWith(".eml") && f.isFile();
+    }
+
+    /**
+     * Rebuilds the index from the directory contents. Messages
+     * not kept in files are not in the directory and are left alone.
+     * So are the files of the same size as those already known.
+     * 
+     * @param isPublishing Tells which files the store is still adding.
+     * They are left out. The store adds them itself.
+     */
+    void reload(Predicate<String> isPublishing) {
+        var files = dir.toFile().listFiles();
+
+        if (files == null) {
+            files = new File[0];
+        }
+
+        //File names are the time the message arrived
+        Arrays.sort(files);
+
+        var loaded = new LinkedHashMap<String, Long>();
+
+        for (var f : files) {
+            if (isMessage(f) && !isPublishing.test(f.getName())) {
+                loaded.put(f.getName(), f.length());
+            }
+        }
+
+        synchronized (this) {
+            var old = new LinkedHashMap<>(messages);
+
+            messages.values().removeIf(msg -> msg.getFile() != null);
+
+            loaded.forEach((id, size) -> {
+                var msg = old.get(id);
+
+                if (msg == null || msg.getSize() != size) {
+                    msg = new MessageInfo(dir.resolve(id).toFile(), size, List.of(name));
+                }
+
+                messages.put(id, msg);
+            });
+
+            updateTotals();
+        }
+    }
+
+    private void updateTotals() {
+        long sz = 0;
+
+        for (var msg : messages.values()) {
+            sz += msg.getSize();
+        }
+
+        totalSize = sz;
+        snapshot = null;
+    }
+
+    public synchronized boolean contains(String id) {
+        return messages.containsKey(id);
+    }
+
+    /**
+     * Adds a message saved by the store. It replaces one with the 
+     * same id that was made from the file alone.
+     */
+    public synchronized void add(MessageInfo msg) {
+        var old = messages.put(msg.getId(), msg);
+
+        if (old != msg) {
+            if (old != null) {
+                totalSize -= old.getSize();
+            }
+
+            totalSize += msg.getSize();
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Adds a message file that appeared in the directory. Does 
+     * nothing if the message is already there.
+     * 
+     * @return The message added. null if none.
+     */
+    synchronized MessageInfo addFile(File f) {
+        if (messages.containsKey(f.getName())) {
+            return null;
+        }
+
+        var msg = new MessageInfo(f, f.length(), List.of(name));
+
+        add(msg);
+
+        return msg;
+    }
+
+    /**
+     * Updates the size of a message file that is being written by 
+     * someone else. The entry is left alone if the size is the 
+     * same. A hard link to the file is reported as a change too.
+     * 
+     * @return The message added in its place. null if none.
+     */
+    synchronized MessageInfo updateFile(File f) {
+        var old = messages.get(f.getName());
+        long size = f.length();
+
+        if (old != null && old.getSize() == size) {
+            return null;
+        }
+
+        var msg = new MessageInfo(f, size, List.of(name));
+
+        add(msg);
+
+        return msg;
+    }
+
+    /**
+     * @return The message removed. null if it was not there.
+     */
+    public synchronized MessageInfo remove(String id) {
+        var msg = messages.remove(id);
+
+        if (msg != null) {
+            totalSize -= msg.getSize();
+            snapshot = null;
+        }
+
+        return msg;
+    }
+
+    /**
+     * Removes many messages at once. No snapshot has only some of
+     * them removed.
+     */
+    public synchronized void removeAll(List<MessageInfo> removed) {
+        for (var msg : removed) {
+            remove(msg.getId());
+        }
+    }
+
+    /**
+     * @return The number of messages.
+     */
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * @return The total size of all the messages in bytes.
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Returns the current state of the mailbox. The snapshot is only
+     * rebuilt if there has been a change since the last call.
+     */
+    public synchronized Snapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot(new ArrayList<>(messages.values()), totalSize);
+        }
+
+        return snapshot;
+    }
+}
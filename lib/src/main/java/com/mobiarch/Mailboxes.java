@@ -0,0 +1,508 @@
+package com.mobiarch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>The mailboxes of the server, one per recipient. A message is
+ * delivered to the mailbox of each RCPT TO and a POP3 session opens
+ * the mailbox named by USER. Both go through {@link #nameOf(String)}
+ * so "Bob@Example.com" and "bob@example.com" are the same mailbox.</p>
+ *
+ * <p>Each mailbox has its own {@link MailboxIndex}. It's created the
+ * first time the mailbox is used and lives in memory only. The headers
+ * of the messages in all the mailboxes are searched with the
+ * {@link HeaderIndex}. Those of a file picked up from a mailbox
+ * directory are read back from it. That's done on the thread that 
+ * picks it up: the watcher or the one calling {@link #start()}.</p>
+ *
+ * <p>Message files are kept in mail/mailboxes/&lt;name&gt;. A message
+ * sent to many recipients is a single file with a hard link in each
+ * mailbox. A WatchService thread picks up files that are added or
+ * removed by anyone else. It leaves alone the files being published
+ * by the store, which adds them itself.</p>
+ *
+ * <p>An older version kept all the messages in the mail directory
+ * itself. They are moved into mailboxes at start up. See
+ * {@link #migrateOldFiles()}.</p>
+ */
+public class Mailboxes {
+    private static final int MAX_NAME_LENGTH = 200;
+
+    private final Path mailDir;
+    private final Path root;
+    private final Map<String, MailboxIndex> indexes = new ConcurrentHashMap<>();
+    //The mailbox directories registered with the watcher
+    private final Set<String> watched = ConcurrentHashMap.newKeySet();
+    //Ids of the messages whose files the store is adding
+    private final Set<String> publishing = ConcurrentHashMap.newKeySet();
+    private final HeaderIndex headerIndex = new HeaderIndex(this);
+    private WatchService watcher = null;
+
+    /**
+     * @param mailDir The mailboxes are kept in its "mailboxes" sub
+     * directory.
+     */
+    public Mailboxes(Path mailDir) {
+        this.mailDir = mailDir;
+        this.root = mailDir.resolve("mailboxes");
+    }
+
+    /**
+     * Returns the name of the mailbox of an address or user name.
+     * Case is ignored. Characters that are not safe in a file name
+     * are replaced by "_".
+     */
+    public static String nameOf(String address) {
+        var lower = address.trim().toLowerCase(Locale.ROOT);
+        var name = new StringBuilder(lower.length());
+
+        for (int i = 0; i < lower.length() && name.length() < MAX_NAME_LENGTH; ++i) {
+            char ch = lower.charAt(i);
+
+            if ((ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9')
+                || ch == '@' || ch == '.' || ch == '-' || ch == '_' || ch == '+') {
+                name.append(ch);
+            } else {
+                name.append('_');
+            }
+        }
+
+        if (name.length() == 0 || name.charAt(0) == '.') {
+            //No empty, "." or ".." names
+            name.insert(0, '_');
+        }
+
+        return name.toString();
+    }
+
+    /**
+     * Reads the mailbox directories and starts watching them for changes.
+     */
+    public void start() throws IOException {
+        Files.createDirectories(root);
+        //Before the mailboxes are read, so they are picked up
+        migrateOldFiles();
+
+        watcher = FileSystems.getDefault().newWatchService();
+
+        //New mailbox directories
+        root.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+
+        try (var paths = Files.list(root)) {
+            for (var path : paths.toList()) {
+                if (Files.isDirectory(path)) {
+                    watch(path.getFileName().toString());
+                }
+            }
+        }
+
+        var watcher = this.watcher;
+        var thread = new Thread(() -> watch(watcher), "devmail-mailbox-watcher");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * <p>Moves the message files left in the mail directory by an older
+     * version into mailboxes. The envelope was not saved then. So the
+     * To and Cc addresses stand in for the recipients. A file for many
+     * of them is hard linked into each of their mailboxes. Bcc
+     * recipients are not known and don't get a copy.</p>
+     *
+     * <p>A file without any address is left where it is.</p>
+     */
+    private void migrateOldFiles() {
+        var files = mailDir.toFile().listFiles(MailboxIndex::isMessage);
+
+        if (files == null) {
+            return;
+        }
+
+        int left = 0;
+
+        for (var f : files) {
+            try {
+                if (!migrate(f.toPath())) {
+                    ++left;
+                }
+            } catch (IOException e) {
+                Log.warn("Failed to move %s to a mailbox: %s", f, e.getMessage());
+
+                ++left;
+            }
+        }
+
+        if (files.length > left) {
+            Log.info("Moved %d message file(s) from %s to %s.", files.length - left, mailDir, root);
+        }
+
+        if (left > 0) {
+            Log.warn("%d message file(s) in %s are not in any mailbox. Move them to %s/<mailbox>.",
+                left, mailDir, root);
+        }
+    }
+
+    /**
+     * @return false if the message has no address to go by.
+     */
+    private boolean migrate(Path path) throws IOException {
+        MessageHeaders headers;
+
+        try (var channel = FileChannel.open(path)) {
+            headers = MessageHeaders.read(channel, 0, channel.size());
+        }
+
+        var names = new LinkedHashSet<String>();
+
+        for (var header : List.of("to", "cc")) {
+            for (var value : headers.get(header)) {
+                for (var address : addressesOf(value)) {
+                    names.add(nameOf(address));
+                }
+            }
+        }
+
+        if (names.isEmpty()) {
+            return false;
+        }
+
+        var fileName = path.getFileName();
+
+        for (var name : names) {
+            var link = Files.createDirectories(root.resolve(name)).resolve(fileName);
+
+            if (!Files.exists(link)) {
+                //Else linked by a start up that failed part way
+                Files.createLink(link, path);
+            }
+        }
+
+        Files.delete(path);
+
+        return true;
+    }
+
+    /**
+     * Picks the addresses out of a To or Cc header. Display names,
+     * comments and groups are dropped. A comma in a quoted display
+     * name is not a problem as long as the address is in angle
+     * brackets.
+     */
+    static List<String> addressesOf(String value) {
+        var addresses = new ArrayList<String>();
+
+        for (var part : value.split(",")) {
+            int open = part.indexOf('<');
+            int close = part.indexOf('>', open + 1);
+            String address;
+
+            if (open >= 0 && close > open) {
+                address = part.substring(open + 1, close).strip();
+            } else {
+                //A bare address. Maybe after a group name.
+                var bare = part.replaceAll("\\([^)]*\\)", "").replace(";", "").strip();
+
+                address = bare.substring(Math.max(bare.lastIndexOf(':'), bare.lastIndexOf(' ')) + 1);
+            }
+
+            if (address.indexOf('@') > 0) {
+                addresses.add(address);
+            }
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Stops watching the mailbox directories.
+     */
+    public void stop() throws IOException {
+        if (watcher != null) {
+            //Ends the watcher thread
+            watcher.close();
+        }
+    }
+
+    /**
+     * Returns the index of a mailbox. It's created if needed.
+     *
+     * @param name As returned by {@link #nameOf(String)}.
+     */
+    public MailboxIndex get(String name) {
+        return indexes.computeIfAbsent(name, n -> new MailboxIndex(n, root.resolve(n)));
+    }
+
+    /**
+     * @return The directory of the mailbox's files.
+     */
+    public Path dirOf(String name) {
+        return root.resolve(name);
+    }
+
+    /**
+     * Creates the directory of a mailbox if needed and watches it.
+     */
+    public Path createDir(String name) throws IOException {
+        var dir = root.resolve(name);
+
+        if (!watched.contains(name)) {
+            Files.createDirectories(dir);
+            watch(name);
+        }
+
+        return dir;
+    }
+
+    /**
+     * @return The index of the headers of the messages received.
+     */
+    public HeaderIndex getHeaderIndex() {
+        return headerIndex;
+    }
+
+    /**
+     * Tells the watcher that the store is about to add the files of
+     * a message. They are left alone till {@link #add(MessageInfo)} 
+     * or {@link #endPublish(String)}.
+     */
+    public void beginPublish(String id) {
+        publishing.add(id);
+    }
+
+    /**
+     * Called if the message was not added after all.
+     */
+    public void endPublish(String id) {
+        publishing.remove(id);
+    }
+
+    /**
+     * Adds a message to each of its mailboxes it was not
+     * removed from.
+     */
+    public void add(MessageInfo msg) {
+        var names = msg.getMailboxes();
+
+        for (int i = 0; i < names.size(); ++i) {
+            if (msg.isLinked(i)) {
+                get(names.get(i)).add(msg);
+            }
+        }
+
+        publishing.remove(msg.getId());
+        headerIndex.add(msg);
+    }
+
+    /**
+     * Removes a message from every mailbox.
+     */
+    public void remove(MessageInfo msg) {
+        for (var name : msg.getMailboxes()) {
+            var index = indexes.get(name);
+
+            if (index != null) {
+                index.remove(msg.getId());
+            }
+        }
+
+        headerIndex.remove(msg);
+    }
+
+    /**
+     * @return true if the message is still in any of its mailboxes.
+     */
+    public boolean contains(MessageInfo msg) {
+        for (var name : msg.getMailboxes()) {
+            if (contains(msg, name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if the message is still in a mailbox.
+     */
+    public boolean contains(MessageInfo msg, String name) {
+        var index = indexes.get(name);
+
+        return index != null && index.contains(msg.getId());
+    }
+
+    /**
+     * @return The number of mailboxes in memory.
+     */
+    public int size() {
+        return indexes.size();
+    }
+
+    /**
+     * @return The number of messages in all the mailboxes. A message
+     * in many mailboxes is counted once for each.
+     */
+    public long getMessageCount() {
+        long count = 0;
+
+        for (var index : indexes.values()) {
+            count += index.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * @return The total size of the messages in all the mailboxes.
+     */
+    public long getTotalSize() {
+        long sz = 0;
+
+        for (var index : indexes.values()) {
+            sz += index.getTotalSize();
+        }
+
+        return sz;
+    }
+
+    /**
+     * Registers a mailbox directory with the watcher and reads it.
+     */
+    private void watch(String name) {
+        if (!watched.add(name)) {
+            return;
+        }
+
+        try {
+            root.resolve(name).register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | ClosedWatchServiceException e) {
+            Log.warn("Failed to watch mailbox %s: %s", name, e.getMessage());
+        }
+
+        //Only now scan, so no change is missed.
+        reload(get(name));
+    }
+
+    private void reload(MailboxIndex index) {
+        index.reload(publishing::contains);
+
+        for (var msg : index.snapshot().getMessages()) {
+            indexHeaders(msg);
+        }
+    }
+
+    /**
+     * Adds a message to the header index. A message that only has
+     * a file to go by has its headers read first.
+     */
+    private void indexHeaders(MessageInfo msg) {
+        if (msg.getHeaders() == null && msg.getFile() != null) {
+            try (var channel = FileChannel.open(msg.getFile().toPath())) {
+                msg.setHeaders(MessageHeaders.read(channel, 0, msg.getSize()));
+            } catch (IOException e) {
+                //Gone already. Not found by a search.
+                Log.debug("Failed to read the headers of %s: %s", msg.getFile(), e.getMessage());
+
+                return;
+            }
+        }
+
+        headerIndex.add(msg);
+    }
+
+    private void watch(WatchService watcher) {
+        while (true) {
+            try {
+                var key = watcher.take();
+                var dir = (Path) key.watchable();
+
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        //Lost track of the changes
+                        onOverflow(dir);
+
+                        continue;
+                    }
+
+                    var path = dir.resolve((Path) event.context());
+
+                    if (dir.equals(root)) {
+                        if (Files.isDirectory(path)) {
+                            watch(path.getFileName().toString());
+                        }
+                    } else {
+                        onChange(get(dir.getFileName().toString()), event.kind(), path.toFile());
+                    }
+                }
+
+                if (!key.reset()) {
+                    //The directory is gone
+                    watched.remove(dir.getFileName().toString());
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    private void onOverflow(Path dir) {
+        if (!dir.equals(root)) {
+            reload(get(dir.getFileName().toString()));
+
+            return;
+        }
+
+        var dirs = root.toFile().listFiles(File::isDirectory);
+
+        if (dirs != null) {
+            for (var d : dirs) {
+                watch(d.getName());
+            }
+        }
+    }
+
+    private void onChange(MailboxIndex index, Object kind, File file) {
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            if (MailboxIndex.isMessage(file) && !publishing.contains(file.getName())) {
+                var msg = index.addFile(file);
+
+                if (msg != null) {
+                    indexHeaders(msg);
+                }
+            }
+        } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+            //Someone else is still writing the file
+            if (MailboxIndex.isMessage(file) && !publishing.contains(file.getName())) {
+                var msg = index.updateFile(file);
+
+                if (msg != null) {
+                    indexHeaders(msg);
+                }
+            }
+        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            var msg = index.remove(file.getName());
+
+            if (msg != null && !contains(msg)) {
+                headerIndex.remove(msg);
+            }
+        }
+    }
+}
@@ -1,9 +1,64 @@
 package com.mobiarch;
 
+import java.nio.file.Path;
+
 public class Main {
     public static void main(String[] args) throws Exception {
-        var loop = new IOLoop();
+        //One of "sync" (the default), "group" or "none"
+        var durability = Durability.valueOf(
+            System.getProperty("devmail.durability", "sync").toUpperCase());
+        //How long to gather messages for a group commit
+        long commitWindow = Long.getLong("devmail.commitWindowMillis", 2);
+        //Either "sendfile" (the default) or "mmap"
+        var transferMode = TransferMode.valueOf(
+            System.getProperty("devmail.transfer", "sendfile").toUpperCase());
+        //Either "files" (the default) for a file per message,
+        //"segments" for append-only segment files or "memory"
+        //to keep messages in memory only
+        var storeType = StoreType.valueOf(
+            System.getProperty("devmail.store", "files").toUpperCase());
+        //Threads doing the file system work of the connections.
+        //None for memory since its work never blocks.
+        int diskThreads = Integer.getInteger("devmail.diskThreads", 
+            storeType == StoreType.MEMORY ? 0 : 4);
+        //The most memory in MB for the messages of the memory store.
+        //The oldest messages are evicted to stay within it.
+        long memoryCap = Long.getLong("devmail.memoryCapMB", MemoryStore.DEFAULT_CAP >> 20) << 20;
+        //Timeouts in seconds, connection caps and the largest
+        //message in bytes. For example devmail.smtp.idleTimeout,
+        //devmail.pop3.maxConnections or devmail.smtp.maxMessageSize.
+        //See ProtocolLimits.
+        int maxConnections = Integer.getInteger("devmail.maxConnections", 10_000);
+        //Port of the local HTTP /metrics endpoint. -1 to turn it off.
+        int adminPort = Integer.getInteger("devmail.adminPort", 9025);
+        //Either "reactor" (the default) or "threads" for a
+        //thread per connection.
+        var mode = System.getProperty("devmail.mode", "reactor");
+        //Number of reactor threads. Defaults to the number of cores.
+        int reactors = Integer.getInteger("devmail.reactors", 
+            Runtime.getRuntime().availableProcessors());
 
-        loop.begin();
+        //The server threads keep the JVM running
+        DevMailServer.builder()
+            //0 for any free port
+            .smtpPort(Integer.getInteger("devmail.smtpPort", 2525))
+            .pop3Port(Integer.getInteger("devmail.pop3Port", 1100))
+            .adminPort(adminPort)
+            //Where the messages are kept
+            .mailDir(Path.of(System.getProperty("devmail.mailDir", BaseState.MAIL_DIR)))
+            .durability(durability)
+            .commitWindowMillis(commitWindow)
+            .transferMode(transferMode)
+            .storeType(storeType)
+            .diskThreads(diskThreads)
+            .memoryCap(memoryCap)
+            .blocking("threads".equals(mode))
+            .reactors(reactors)
+            .limits(
+                ProtocolLimits.fromProperties("smtp", ProtocolLimits.SMTP_DEFAULTS), 
+                ProtocolLimits.fromProperties("pop3", ProtocolLimits.POP3_DEFAULTS), 
+                maxConnections)
+            .mbeanName("devmail")
+            .start();
     }
 }
@@ -0,0 +1,138 @@
+package com.mobiarch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Sends a message from a memory mapping of the file.</p>
+ * 
+ * <p>Normally the mapping is written as is. If the message needs dot
+ * stuffing the bytes are copied through a staging buffer by a 
+ * {@link DotStuffer} instead.</p>
+ * 
+ * <p>A mapping is only removed when its buffer is garbage collected. 
+ * On a long run the mappings can pile up till a GC happens. So the
+ * mapping is removed explicitly when the transfer is closed.</p>
+ * 
+ * <p>A message of a {@link MemoryStore} is sent the same way from 
+ * its buffer. Nothing needs to be mapped then.</p>
+ */
+public class MappedTransfer implements BodyTransfer {
+    private static final Method invokeCleaner = findInvokeCleaner();
+    private static final Object unsafe = findUnsafe();
+
+    private ByteBuffer map;
+    private final DotStuffer stuffer;
+    private final ByteBuffer staging;
+    //Called on close instead of removing the mapping. null for a mapping.
+    private final Closeable release;
+
+    /**
+     * Maps the range of the file. The file can be closed right after.
+     * 
+     * @param file The message.
+     * @param start Offset of the first byte to send.
+     * @param end Offset after the last byte to send.
+     * @param stuffer Used to dot stuff the message. null if not needed.
+     * @param staging Holds the stuffed bytes. Only used with a stuffer.
+     */
+    public MappedTransfer(FileChannel file, long start, long end, DotStuffer stuffer, ByteBuffer staging) throws IOException {
+        this.map = file.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        this.stuffer = stuffer;
+        this.staging = staging;
+        this.release = null;
+    }
+
+    /**
+     * Sends a message that is already in memory.
+     * 
+     * @param bytes The bytes to send from the position to the limit.
+     * @param release Called when the transfer is closed.
+     */
+    public MappedTransfer(ByteBuffer bytes, DotStuffer stuffer, ByteBuffer staging, Closeable release) {
+        this.map = bytes;
+        this.stuffer = stuffer;
+        this.staging = staging;
+        this.release = release;
+    }
+
+    @Override
+    public void send(Connection conn) throws IOException {
+        if (stuffer == null) {
+            conn.write(map);
+
+            return;
+        }
+
+        if (!staging.hasRemaining()) {
+            //Stuff the next part of the message
+            staging.clear();
+            stuffer.fill(map, staging);
+            staging.flip();
+        }
+
+        conn.write(staging);
+    }
+
+    @Override
+    public boolean isDone() {
+        return !map.hasRemaining() && (stuffer == null || !staging.hasRemaining());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (map == null) {
+            return;
+        }
+
+        if (release != null) {
+            release.close();
+        } else {
+            unmap(map);
+        }
+
+        map = null;
+    }
+
+    /**
+     * Removes the mapping right away instead of waiting for GC. The 
+     * buffer must not be used after this. Falls back to GC if the JDK 
+     * doesn't allow it. Also frees a buffer made by allocateDirect.
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (invokeCleaner == null || unsafe == null) {
+            return;
+        }
+
+        try {
+            invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException e) {
+            //Leave it to GC
+        }
+    }
+
+    private static Object findUnsafe() {
+        try {
+            var field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+
+            field.setAccessible(true);
+
+            return field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Method findInvokeCleaner() {
+        try {
+            return Class.forName("sun.misc.Unsafe").getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.warn("Mappings can not be removed explicitly. Leaving it to GC.");
+
+            return null;
+        }
+    }
+}
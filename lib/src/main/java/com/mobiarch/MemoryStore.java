@@ -0,0 +1,487 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps the messages in memory for test runs that need no durability.
+ * Saving and reading a message touch no file at all. Nothing survives
+ * a restart.</p>
+ *
+ * <p>Messages are appended to arenas: large direct buffers off the heap.
+ * So a big mailbox adds nothing to the work of GC. Like a segment of
+ * {@link SegmentStore}, an arena that takes appends is held by one draft
+ * at a time. A message that outgrows what is left of its arena is copied
+ * to a fresh one. A message larger than an arena gets one of its own.
+ * RETR and TOP write straight from a read-only view of the arena.</p>
+ *
+ * <p>The memory taken by the arenas is capped. When a new arena would go
+ * over the cap, the oldest arena is evicted along with its messages. They
+ * are removed from their mailboxes. Arenas fill up in the order the messages
+ * arrive. So this is oldest first, give or take the messages received at
+ * the same time. An arena with messages not yet published is passed over.
+ * An evicted arena being read is freed once the readers are done.</p>
+ *
+ * <p>A message sent to many recipients is kept once. It's deleted once
+ * it's deleted from all its mailboxes.</p>
+ */
+public class MemoryStore implements MessageStore {
+    public static final long DEFAULT_CAP = 256L * 1024 * 1024;
+    private static final int ARENA_SIZE = 4 * 1024 * 1024;
+    //An arena with less room than this left takes no more appends
+    private static final int MIN_ROOM = 64 * 1024;
+
+    private final class Arena {
+        final ByteBuffer buffer;
+        //Offset after the last finished message
+        int end = 0;
+        //The messages finished in the arena. Including the
+        //deleted ones. They are not in the records map.
+        final List<Record> records = new ArrayList<>();
+        //Messages not deleted
+        int live = 0;
+        //Messages finished but not published
+        int unpublished = 0;
+        //Held by a draft
+        boolean isHeld = false;
+        //Evicted while held. The draft has a reference.
+        boolean isRetired = false;
+        //One for the store and one for each open reader.
+        //The only field used without holding the store's lock.
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Arena(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int room() {
+            return buffer.capacity() - end;
+        }
+
+        /**
+         * Frees the memory once the last reference is gone.
+         */
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                allocated.addAndGet(-buffer.capacity());
+                MappedTransfer.unmap(buffer);
+            }
+        }
+    }
+
+    private static final class Record {
+        final MessageInfo msg;
+        final Arena arena;
+        final int offset;
+        boolean isPublished = false;
+
+        Record(MessageInfo msg, Arena arena, int offset) {
+            this.msg = msg;
+            this.arena = arena;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Writes the message into the arena. It's its own channel.
+     */
+    private class MemoryDraft implements Draft, WritableByteChannel {
+        private Arena arena;
+        //Offset of the message in the arena
+        private int start;
+        //Offset after the last byte written
+        private int position;
+        private final List<String> names;
+        private Record record = null;
+
+        MemoryDraft(List<String> names) throws IOException {
+            this.names = names;
+            arena = takeArena(0, null);
+            start = arena.end;
+            position = start;
+        }
+
+        @Override
+        public WritableByteChannel getChannel() {
+            return this;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int sz = src.remaining();
+
+            if (sz > arena.buffer.capacity() - position) {
+                moveTo(takeArena((long) position - start + sz, arena));
+            }
+
+            arena.buffer.put(position, src, src.position(), sz);
+            src.position(src.limit());
+            position += sz;
+
+            return sz;
+        }
+
+        /**
+         * Copies the bytes written so far to a larger arena.
+         */
+        private void moveTo(Arena next) {
+            int length = position - start;
+
+            next.buffer.put(next.end, arena.buffer, start, length);
+            returnArena(arena);
+
+            arena = next;
+            start = next.end;
+            position = start + length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public MessageInfo finish() {
+            synchronized (MemoryStore.this) {
+                var msg = new MessageInfo(Long.toString(nextId()), position - start, null, names);
+
+                record = new Record(msg, arena, start);
+
+                records.put(msg.getId(), record);
+                arena.records.add(record);
+                ++arena.live;
+                ++arena.unpublished;
+                arena.end = position;
+
+                returnArena(arena);
+
+                return msg;
+            }
+        }
+
+        @Override
+        public void force() {
+            //Nothing to force
+        }
+
+        @Override
+        public void publish() {
+            synchronized (MemoryStore.this) {
+                if (!record.isPublished) {
+                    record.isPublished = true;
+                    --arena.unpublished;
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (record == null) {
+                //The next message overwrites what was written
+                returnArena(arena);
+            } else {
+                synchronized (MemoryStore.this) {
+                    remove(record.msg);
+                }
+            }
+        }
+    }
+
+    private final long cap;
+    //Bytes taken by the arenas not freed yet
+    private final AtomicLong allocated = new AtomicLong();
+    //The arenas in the order they were created. Guarded by this.
+    private final ArrayDeque<Arena> arenas = new ArrayDeque<>();
+    //Arenas that take appends and are not held by a draft. Guarded by this.
+    private final ArrayDeque<Arena> appendable = new ArrayDeque<>();
+    //Messages not deleted by id. Guarded by this.
+    private final Map<String, Record> records = new HashMap<>();
+    private final AtomicLong lastId = new AtomicLong();
+    private Mailboxes mailboxes = null;
+
+    /**
+     * @param cap The most bytes of memory to take. At least 4MB.
+     */
+    public MemoryStore(long cap) {
+        if (cap < ARENA_SIZE) {
+            throw new IllegalArgumentException("Memory cap too small: " + cap);
+        }
+
+        this.cap = cap;
+    }
+
+    @Override
+    public void load(Mailboxes mailboxes) {
+        //Nothing survives a restart. The mailboxes are
+        //needed to remove the evicted messages.
+        this.mailboxes = mailboxes;
+    }
+
+    @Override
+    public Draft create(List<String> mailboxes) throws IOException {
+        return new MemoryDraft(mailboxes);
+    }
+
+    @Override
+    public MessageBody open(MessageInfo msg) throws IOException {
+        if (msg.getFile() != null) {
+            //Dropped into a mailbox directory by someone else
+            return FileStore.openFile(msg);
+        }
+
+        Record record;
+
+        synchronized (this) {
+            record = records.get(msg.getId());
+
+            if (record == null) {
+                //Evicted after it was published but before it
+                //made it into the mailboxes. Don't list it again.
+                if (mailboxes != null) {
+                    mailboxes.remove(msg);
+                }
+
+                throw new NoSuchFileException(msg.getId());
+            }
+
+            //Can't fail. The store's own reference is
+            //only dropped under the lock.
+            record.arena.refs.incrementAndGet();
+        }
+
+        var arena = record.arena;
+        var bytes = arena.buffer.slice(record.offset, (int) msg.getSize()).asReadOnlyBuffer();
+
+        return new MessageBody(bytes, arena::release);
+    }
+
+    @Override
+    public void delete(MessageInfo msg, String mailbox) {
+        if (msg.getFile() != null) {
+            FileStore.deleteFile(msg, mailbox);
+
+            return;
+        }
+
+        synchronized (this) {
+            if (msg.unlink(mailbox) >= 0 && !msg.isLinked()) {
+                //Gone from the last mailbox
+                remove(msg);
+            }
+        }
+    }
+
+    /**
+     * Removes a message from the store. Must hold the lock.
+     */
+    private void remove(MessageInfo msg) {
+        var record = records.remove(msg.getId());
+
+        if (record == null) {
+            return;
+        }
+
+        var arena = record.arena;
+
+        --arena.live;
+
+        if (!record.isPublished) {
+            --arena.unpublished;
+        }
+
+        maybeReclaim(arena);
+    }
+
+    @Override
+    public void sync() {
+        //Nothing to sync
+    }
+
+    @Override
+    public synchronized void close() {
+        for (var arena : arenas) {
+            arena.release();
+        }
+
+        arenas.clear();
+        appendable.clear();
+        records.clear();
+    }
+
+    /**
+     * @return Bytes of memory taken by the arenas.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns a unique id. Ids increase with time.
+     */
+    private long nextId() {
+        long now = System.currentTimeMillis() * 1000;
+
+        return lastId.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+    }
+
+    /**
+     * Takes an arena to append to. It's not given to anyone else
+     * till returned.
+     *
+     * @param room The bytes that must fit. 0 for an arena
+     * that takes appends.
+     * @param current The arena the caller holds and moves out of.
+     * It may be evicted. It stays usable till returned.
+     */
+    private synchronized Arena takeArena(long room, Arena current) throws IOException {
+        for (var arena : appendable) {
+            if (arena.room() >= room) {
+                appendable.remove(arena);
+                arena.isHeld = true;
+
+                return arena;
+            }
+        }
+
+        if (room > Integer.MAX_VALUE / 2) {
+            throw new IOException("Message too large for memory: " + room);
+        }
+
+        //Double the size for a message that keeps growing
+        int size = Math.max(ARENA_SIZE, Integer.highestOneBit((int) room - 1) << 1);
+
+        while (allocated.get() + size > cap) {
+            if (!evictOldest(current)) {
+                throw new IOException("Memory cap reached");
+            }
+        }
+
+        ByteBuffer buffer;
+
+        try {
+            buffer = ByteBuffer.allocateDirect(size);
+        } catch (OutOfMemoryError e) {
+            throw new IOException("Out of direct memory. Lower the cap or raise -XX:MaxDirectMemorySize.", e);
+        }
+
+        allocated.addAndGet(size);
+
+        var arena = new Arena(buffer);
+
+        arena.isHeld = true;
+        arenas.add(arena);
+
+        return arena;
+    }
+
+    /**
+     * Gives back an arena after an append.
+     */
+    private synchronized void returnArena(Arena arena) {
+        arena.isHeld = false;
+
+        if (arena.isRetired) {
+            arena.release();
+
+            return;
+        }
+
+        if (arena.room() >= MIN_ROOM) {
+            appendable.add(arena);
+        }
+
+        maybeReclaim(arena);
+    }
+
+    /**
+     * Reuses or frees an arena that has no messages left. Must
+     * hold the lock.
+     */
+    private void maybeReclaim(Arena arena) {
+        if (arena.isHeld || arena.live > 0 || arena.end == 0) {
+            return;
+        }
+
+        if (arena.refs.get() == 1) {
+            //Nobody is reading it. Start over.
+            arena.end = 0;
+            arena.records.clear();
+
+            if (!appendable.contains(arena)) {
+                appendable.add(arena);
+            }
+
+            return;
+        }
+
+        retire(arena);
+    }
+
+    /**
+     * Evicts the oldest arena that can be. Must hold the lock.
+     *
+     * @param current An arena held by the caller that may be evicted.
+     * Otherwise a draft that keeps appending to the oldest arena would
+     * make the newer ones go first.
+     * @return false if there is none.
+     */
+    private boolean evictOldest(Arena current) {
+        for (var arena : arenas) {
+            if ((arena.isHeld && arena != current) || arena.unpublished > 0) {
+                continue;
+            }
+
+            int count = 0;
+
+            for (var record : arena.records) {
+                var id = record.msg.getId();
+
+                if (records.remove(id, record)) {
+                    ++count;
+
+                    if (mailboxes != null) {
+                        mailboxes.remove(record.msg);
+                    }
+                }
+            }
+
+            Log.info("Evicted %d message(s) to stay within the memory cap", count);
+
+            if (arena == current) {
+                //Kept for the caller till it's returned
+                arena.refs.incrementAndGet();
+                arena.isRetired = true;
+            }
+
+            retire(arena);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Drops the store's reference. Must hold the lock.
+     */
+    private void retire(Arena arena) {
+        arenas.remove(arena);
+        appendable.remove(arena);
+        arena.records.clear();
+        arena.live = 0;
+        arena.release();
+    }
+}
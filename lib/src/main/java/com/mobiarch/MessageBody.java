@@ -0,0 +1,108 @@
+package com.mobiarch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>The bytes of a message opened for reading. They lie in a range of
+ * a file. The whole file for a message file or a part of a segment.
+ * For a {@link MemoryStore} they are in a buffer instead.</p>
+ *
+ * <p>Only positional reads must be used on the channel. It may be
+ * shared by other readers.</p>
+ */
+public class MessageBody implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer bytes;
+    private final long start;
+    private final long size;
+    private final Closeable release;
+
+    /**
+     * @param release Called when the body is closed.
+     */
+    public MessageBody(FileChannel channel, long start, long size, Closeable release) {
+        this.channel = channel;
+        this.bytes = null;
+        this.start = start;
+        this.size = size;
+        this.release = release;
+    }
+
+    /**
+     * A message in memory. The offsets are relative to the
+     * start of the buffer.
+     *
+     * @param bytes The message from position 0 to the limit.
+     * @param release Called when the body is closed. The buffer
+     * must not be used after that.
+     */
+    public MessageBody(ByteBuffer bytes, Closeable release) {
+        this.channel = null;
+        this.bytes = bytes;
+        this.start = 0;
+        this.size = bytes.remaining();
+        this.release = release;
+    }
+
+    /**
+     * @return null if the message is in memory.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return A new view of the message in memory. null if it's
+     * in a file.
+     */
+    public ByteBuffer getBytes() {
+        return bytes == null ? null : bytes.duplicate();
+    }
+
+    /**
+     * Returns the message as a buffer whether it's in memory or in
+     * a file. Give it to {@link #unmap(ByteBuffer)} once done.
+     */
+    public ByteBuffer map() throws IOException {
+        if (bytes != null) {
+            return bytes.duplicate();
+        }
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+
+    /**
+     * Removes a mapping returned by {@link #map()}.
+     */
+    public void unmap(ByteBuffer map) {
+        if (bytes == null) {
+            MappedTransfer.unmap(map);
+        }
+    }
+
+    /**
+     * @return Offset of the first byte of the message in the channel.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return Offset after the last byte of the message in the channel.
+     */
+    public long getEnd() {
+        return start + size;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        release.close();
+    }
+}
@@ -0,0 +1,209 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * <p>Tells subscribers about each message received over SMTP. A test
+ * that embeds the server can wait for a message instead of polling
+ * POP3.</p>
+ *
+ * <pre>
+ * var next = dispatcher.next(MessageDispatcher.toRecipient("bob@example.com"));
+ * //Send the message
+ * var event = next.get(10, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * <p>{@link SMTPState} hands over a message once it's listed in the
+ * {@link MailboxIndex}. That is after the "250 Ok" for most durability
+ * settings. The listeners run on the dispatcher thread. The connection
+ * only puts the event in a queue. If nobody subscribes nothing is
+ * queued and the thread is never started.</p>
+ *
+ * <p>The queue is bounded. When it's full the event is dropped rather
+ * than making a connection wait.</p>
+ */
+public class MessageDispatcher implements Runnable {
+    private static final int QUEUE_SIZE = 10_000;
+
+    /**
+     * A listener and its filter. Close it to unsubscribe.
+     */
+    public class Subscription implements AutoCloseable {
+        private final Predicate<MessageEvent> filter;
+        private final MessageListener listener;
+
+        Subscription(Predicate<MessageEvent> filter, MessageListener listener) {
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+        }
+    }
+
+    private final MessageStore store;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<MessageEvent> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    //Started by the first subscription. Guarded by this.
+    private Thread thread = null;
+
+    /**
+     * @param store Where the messages are read from.
+     */
+    public MessageDispatcher(MessageStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @return A filter for the messages sent to the address. Case
+     * is ignored.
+     */
+    public static Predicate<MessageEvent> toRecipient(String address) {
+        return event -> event.hasRecipient(address);
+    }
+
+    /**
+     * Calls the listener for every message.
+     */
+    public Subscription subscribe(MessageListener listener) {
+        return subscribe(event -> true, listener);
+    }
+
+    /**
+     * Calls the listener for the messages that pass the filter.
+     * The filter runs on the dispatcher thread too.
+     */
+    public Subscription subscribe(Predicate<MessageEvent> filter, MessageListener listener) {
+        var subscription = new Subscription(filter, listener);
+
+        subscriptions.add(subscription);
+        start();
+
+        return subscription;
+    }
+
+    /**
+     * Returns a future for the next message that passes the filter.
+     * Call it before sending the message or the message may be
+     * missed. Cancelling the future unsubscribes.
+     *
+     * <p>The content of the event is loaded before the future is
+     * completed. So it can be read even if the message is deleted
+     * meanwhile.</p>
+     */
+    public CompletableFuture<MessageEvent> next(Predicate<MessageEvent> filter) {
+        var future = new CompletableFuture<MessageEvent>();
+        var subscription = subscribe(filter, event -> {
+            if (future.isDone()) {
+                return;
+            }
+
+            try {
+                event.getContent();
+            } catch (IOException e) {
+                //Gone already. getContent() throws again.
+            }
+
+            future.complete(event);
+        });
+
+        future.whenComplete((event, error) -> subscription.close());
+
+        return future;
+    }
+
+    /**
+     * Blocks till the next message that passes the filter.
+     * Only messages received after the call count. The content
+     * is loaded as with {@link #next}.
+     *
+     * @throws TimeoutException If none came in time.
+     */
+    public MessageEvent await(Predicate<MessageEvent> filter, long timeoutMillis)
+            throws InterruptedException, TimeoutException {
+        var future = next(filter);
+
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            //Only ever completed normally
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Queues up a message that was saved. Never blocks. Safe to call
+     * from any thread.
+     */
+    void publish(MessageInfo msg, String from, List<String> recipients) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+
+        if (!queue.offer(new MessageEvent(msg, from, recipients, store))) {
+            Log.warn("Dispatch queue full. Dropped message %s.", msg.getId());
+        }
+    }
+
+    private synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        thread = new Thread(this, "devmail-dispatcher");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the dispatcher thread. Queued events are dropped.
+     */
+    public synchronized void shutdown() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+
+        queue.clear();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            MessageEvent event;
+
+            try {
+                event = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            dispatch(event);
+        }
+    }
+
+    private void dispatch(MessageEvent event) {
+        for (var subscription : subscriptions) {
+            try {
+                if (subscription.filter.test(event)) {
+                    subscription.listener.onMessage(event);
+                }
+            } catch (Exception e) {
+                Log.warn("Message listener failed: %s", e);
+            }
+        }
+    }
+}
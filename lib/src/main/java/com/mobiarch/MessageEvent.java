@@ -0,0 +1,99 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * <p>A message received over SMTP along with its envelope.</p>
+ *
+ * <p>{@link #getContent()} is a read-only view of the stored bytes.
+ * For a message file or segment nothing is copied. It's a mapping of
+ * the file. The mapping is never removed by force. So the view stays
+ * good after the listener returns, even if handed to another thread
+ * or the message is deleted. It's let go once it's garbage collected.
+ * The arenas of a {@link MemoryStore} are freed on eviction. So a
+ * message in memory is copied.</p>
+ */
+public class MessageEvent {
+    private final MessageInfo message;
+    private final String from;
+    private final List<String> recipients;
+    private final MessageStore store;
+    //Loaded on first use
+    private ByteBuffer content = null;
+
+    MessageEvent(MessageInfo message, String from, List<String> recipients, MessageStore store) {
+        this.message = message;
+        this.from = from;
+        this.recipients = List.copyOf(recipients);
+        this.store = store;
+    }
+
+    public MessageInfo getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The address given to MAIL FROM. Empty for a null
+     * reverse path.
+     */
+    public String getFrom() {
+        return from;
+    }
+
+    /**
+     * @return The addresses given to RCPT TO in order.
+     */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * @return true if the address was one of the RCPT TO. Case is ignored.
+     */
+    public boolean hasRecipient(String address) {
+        for (var rcpt : recipients) {
+            if (rcpt.equalsIgnoreCase(address)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the message bytes. They are loaded on the first call.
+     * Call it from {@link MessageListener#onMessage} to be sure the
+     * message is not deleted yet.
+     *
+     * @return A read-only buffer from position 0 to the size of the
+     * message. Each call returns a new view. Good for as long as
+     * it's kept.
+     * @throws IOException If the message was deleted or evicted.
+     */
+    public synchronized ByteBuffer getContent() throws IOException {
+        if (content == null) {
+            try (var body = store.open(message)) {
+                var bytes = body.getBytes();
+
+                if (bytes == null) {
+                    //Outlives the channel. Not unmapped.
+                    content = body.map();
+                } else {
+                    content = ByteBuffer.allocate(bytes.remaining()).put(bytes).flip();
+                }
+            }
+        }
+
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Opens the message for reading at any time. The caller must
+     * close it.
+     */
+    public MessageBody openBody() throws IOException {
+        return store.open(message);
+    }
+}
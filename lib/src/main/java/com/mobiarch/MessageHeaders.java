@@ -0,0 +1,204 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>The headers of a message that are searched on: Message-ID, Subject,
+ * From, To, Cc, Date and any X- header. They are parsed once when the
+ * message is received, or read back when it's loaded, and kept in its
+ * {@link MessageInfo}. See {@link HeaderIndex}.</p>
+ *
+ * <p>Names are lower case. Folded values are unfolded. Encoded words
+ * (RFC 2047) are left as they are.</p>
+ */
+public class MessageHeaders {
+    //No more than this many bytes of header are parsed
+    public static final int MAX_HEADER_SIZE = 64 * 1024;
+    //A header repeated more than this is cut short
+    private static final int MAX_VALUES = 16;
+
+    private final Map<String, List<String>> headers;
+    //Milliseconds since the epoch. -1 if there's no valid Date.
+    private final long date;
+
+    private MessageHeaders(Map<String, List<String>> headers) {
+        this.headers = Collections.unmodifiableMap(headers);
+        this.date = parseDate(getFirst("date"));
+    }
+
+    /**
+     * Parses the headers from the start of a message. Only the complete
+     * lines in the buffer are parsed. The position is not changed.
+     */
+    public static MessageHeaders parse(ByteBuffer msg) {
+        var headers = new LinkedHashMap<String, List<String>>();
+        int end = Math.min(msg.limit(), msg.position() + MAX_HEADER_SIZE);
+        int pos = msg.position();
+        String name = null;
+        StringBuilder value = null;
+
+        while (pos < end) {
+            int lineEnd = pos;
+
+            while (lineEnd < end && msg.get(lineEnd) != '\n') {
+                ++lineEnd;
+            }
+
+            if (lineEnd == end) {
+                //Cut short. Not a complete line.
+                break;
+            }
+
+            int textEnd = lineEnd > pos && msg.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+
+            if (textEnd == pos) {
+                //The empty line before the body
+                break;
+            }
+
+            var line = decode(msg, pos, textEnd);
+
+            pos = lineEnd + 1;
+
+            if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+                //Folded on to this line
+                if (value != null) {
+                    value.append(' ').append(line.strip());
+                }
+
+                continue;
+            }
+
+            add(headers, name, value);
+
+            name = null;
+            value = null;
+
+            int colon = line.indexOf(':');
+
+            if (colon > 0) {
+                var n = line.substring(0, colon).strip().toLowerCase(Locale.ROOT);
+
+                if (isIndexed(n)) {
+                    name = n;
+                    value = new StringBuilder(line.substring(colon + 1).strip());
+                }
+            }
+        }
+
+        add(headers, name, value);
+
+        return new MessageHeaders(headers);
+    }
+
+    /**
+     * Reads the headers of a message kept in a file.
+     *
+     * @param position Where the message starts.
+     * @param length The size of the message.
+     */
+    public static MessageHeaders read(FileChannel channel, long position, long length) throws IOException {
+        var buf = ByteBuffer.allocate((int) Math.min(length, MAX_HEADER_SIZE));
+
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                //Cut short. Parsed as far as it goes.
+                break;
+            }
+        }
+
+        return parse(buf.flip());
+    }
+
+    private static String decode(ByteBuffer msg, int start, int end) {
+        var bytes = new byte[end - start];
+
+        msg.get(start, bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void add(Map<String, List<String>> headers, String name, StringBuilder value) {
+        if (name == null) {
+            return;
+        }
+
+        var values = headers.computeIfAbsent(name, n -> new ArrayList<>(1));
+
+        if (values.size() < MAX_VALUES) {
+            values.add(value.toString());
+        }
+    }
+
+    /**
+     * @param name In lower case.
+     * @return true if the header is kept and searched on.
+     */
+    public static boolean isIndexed(String name) {
+        return switch (name) {
+            case "message-id", "subject", "from", "to", "cc", "date" -> true;
+            default -> name.startsWith("x-");
+        };
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        //Drop comments like "(UTC)"
+        var text = value.replaceAll("\\([^)]*\\)", "").strip();
+
+        try {
+            return ZonedDateTime.parse(text, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The headers by lower case name. In the order they
+     * first appear.
+     */
+    public Map<String, List<String>> getAll() {
+        return headers;
+    }
+
+    /**
+     * @param name In lower case.
+     * @return The values of a header. Empty if it's not there.
+     */
+    public List<String> get(String name) {
+        return headers.getOrDefault(name, List.of());
+    }
+
+    /**
+     * @param name In lower case.
+     * @return The first value of a header. null if it's not there.
+     */
+    public String getFirst(String name) {
+        var values = headers.get(name);
+
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * @return The Date header in milliseconds since the epoch.
+     * -1 if it's missing or not valid.
+     */
+    public long getDate() {
+        return date;
+    }
+}
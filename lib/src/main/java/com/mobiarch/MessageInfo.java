@@ -0,0 +1,188 @@
+package com.mobiarch;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * <p>A message as recorded by the {@link MailboxIndex} of each mailbox
+ * it was delivered to. A message sent to many recipients is kept once.
+ * The mailboxes share this object.</p>
+ *
+ * <p>A message stays in the store till it's removed from the last of
+ * its mailboxes. See {@link MessageStore#delete(MessageInfo, String)}.</p>
+ */
+public class MessageInfo {
+    private final String id;
+    //For a message kept in files, the one in the first mailbox.
+    //null for a message kept in a segment or in memory.
+    private final File file;
+    private final long size;
+    private final List<String> mailboxes;
+    //The indexes of the mailboxes it was removed from. Guarded by this.
+    private final BitSet unlinked = new BitSet();
+    //Where a message kept in a segment is. Changed by compaction.
+    private volatile SegmentStore.Location location = null;
+    //If any line starts with a ".". null if not known yet.
+    private volatile Boolean needsDotStuffing = null;
+    //null if not known yet
+    private volatile TopIndex topIndex = null;
+    //null if not parsed
+    private volatile MessageHeaders headers = null;
+
+    /**
+     * A message kept in files. A file in each mailbox, all links to 
+     * the same bytes.
+     * 
+     * @param file The file in the first mailbox.
+     */
+    public MessageInfo(File file, long size, List<String> mailboxes) {
+        this.id = file.getName();
+        this.file = file;
+        this.size = size;
+        this.mailboxes = List.copyOf(mailboxes);
+    }
+
+    /**
+     * A message kept in a segment of a {@link SegmentStore} or in a
+     * {@link MemoryStore}.
+     * 
+     * @param location null for a message kept in memory.
+     */
+    public MessageInfo(String id, long size, SegmentStore.Location location, List<String> mailboxes) {
+        this.id = id;
+        this.file = null;
+        this.size = size;
+        this.location = location;
+        this.mailboxes = List.copyOf(mailboxes);
+    }
+
+    /**
+     * @return The unique id of the message. The file name 
+     * for a message kept in its own file.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return The file in the first mailbox. null if the message 
+     * is kept in a segment or in memory.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The names of the mailboxes the message was delivered to.
+     */
+    public List<String> getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * Records that the message was removed from a mailbox.
+     * 
+     * @return The index of the mailbox in {@link #getMailboxes()}. 
+     * -1 if it was not in the mailbox or removed already.
+     */
+    public synchronized int unlink(String mailbox) {
+        int slot = mailboxes.indexOf(mailbox);
+
+        if (slot < 0 || unlinked.get(slot)) {
+            return -1;
+        }
+
+        unlinked.set(slot);
+
+        return slot;
+    }
+
+    /**
+     * Records that the message was removed from the mailbox at
+     * an index. Used when loading the store.
+     */
+    public synchronized void unlink(int slot) {
+        unlinked.set(slot);
+    }
+
+    /**
+     * @param slot The index of a mailbox in {@link #getMailboxes()}.
+     * @return false if the message was removed from the mailbox.
+     */
+    public synchronized boolean isLinked(int slot) {
+        return !unlinked.get(slot);
+    }
+
+    /**
+     * @return false once the message was removed from all its mailboxes.
+     */
+    public synchronized boolean isLinked() {
+        return unlinked.cardinality() < mailboxes.size();
+    }
+
+    /**
+     * @return The mailboxes it was removed from. Bit i of byte i / 8
+     * for the mailbox at index i.
+     */
+    public synchronized byte[] getUnlinked() {
+        return unlinked.toByteArray();
+    }
+
+    /**
+     * @return null if the message is kept in its own file.
+     */
+    public SegmentStore.Location getLocation() {
+        return location;
+    }
+
+    public void setLocation(SegmentStore.Location location) {
+        this.location = location;
+    }
+
+    /**
+     * @return The size of the message in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Messages are saved unstuffed. When sent to a POP3 client, 
+     * lines starting with a "." need to be stuffed.
+     * 
+     * @return true or false if known. null if the message 
+     * needs to be checked.
+     */
+    public Boolean getNeedsDotStuffing() {
+        return needsDotStuffing;
+    }
+
+    public void setNeedsDotStuffing(Boolean needsDotStuffing) {
+        this.needsDotStuffing = needsDotStuffing;
+    }
+
+    /**
+     * @return Where the header and the first few body lines end.
+     * null if the message needs to be checked.
+     */
+    public TopIndex getTopIndex() {
+        return topIndex;
+    }
+
+    public void setTopIndex(TopIndex topIndex) {
+        this.topIndex = topIndex;
+    }
+
+    /**
+     * @return The headers searched on. null if the message was not
+     * received over SMTP.
+     */
+    public MessageHeaders getHeaders() {
+        return headers;
+    }
+
+    public void setHeaders(MessageHeaders headers) {
+        this.headers = headers;
+    }
+}
@@ -0,0 +1,14 @@
+package com.mobiarch;
+
+/**
+ * Told about each message received over SMTP. See
+ * {@link MessageDispatcher#subscribe}.
+ */
+public interface MessageListener {
+    /**
+     * Called from the dispatcher thread once the message is saved
+     * and listed. A slow listener holds up the ones after it but
+     * never the connections.
+     */
+    void onMessage(MessageEvent event) throws Exception;
+}
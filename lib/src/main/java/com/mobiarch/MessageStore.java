@@ -0,0 +1,90 @@
+package com.mobiarch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * <p>Where the messages are kept. The mail directory with a file per 
+ * message ({@link FileStore}) is the default. {@link SegmentStore} 
+ * appends them to large segment files instead. {@link MemoryStore}
+ * keeps them in memory only.</p>
+ * 
+ * <p>A message is written through a {@link Draft}. It is not visible
+ * till published. The {@link Mailboxes} are kept by the caller.</p>
+ * 
+ * <p>A message delivered to many mailboxes is stored once. It's
+ * removed from the store once deleted from the last of them.</p>
+ */
+public interface MessageStore extends Closeable {
+    /**
+     * A message being received. Only the session that created it 
+     * writes to it. It may be forced and published by the group 
+     * committer's thread.
+     */
+    interface Draft {
+        /**
+         * @return The channel to write the message to. Its position 
+         * is where the next byte goes. Must not be closed.
+         */
+        WritableByteChannel getChannel();
+
+        /**
+         * Ends the message after the last byte written. 
+         * 
+         * @return The message. It's not in the store till 
+         * {@link #publish()} is called.
+         */
+        MessageInfo finish() throws IOException;
+
+        /**
+         * Makes the message's bytes durable. Called after finish().
+         */
+        void force() throws IOException;
+
+        /**
+         * Makes the message a part of the store. Called after finish().
+         */
+        void publish() throws IOException;
+
+        /**
+         * Throws away the message. Called instead of 
+         * finish() if the client goes away.
+         */
+        void abort();
+    }
+
+    /**
+     * Adds the messages already in the store to their mailboxes. 
+     * Called once at start up.
+     */
+    void load(Mailboxes mailboxes) throws IOException;
+
+    /**
+     * Starts a new message.
+     * 
+     * @param mailboxes The names of the mailboxes it's delivered
+     * to. At least one.
+     */
+    Draft create(List<String> mailboxes) throws IOException;
+
+    /**
+     * Opens a message for reading. It must be closed once done.
+     * The message stays readable till then even if deleted.
+     */
+    MessageBody open(MessageInfo msg) throws IOException;
+
+    /**
+     * Removes a message from a mailbox. The message is removed from
+     * the store once it's in no mailbox. The caller removes it from
+     * the {@link MailboxIndex}.
+     */
+    void delete(MessageInfo msg, String mailbox) throws IOException;
+
+    /**
+     * Makes the creation and removal of files durable. Called by the
+     * group committer after forcing a batch.
+     */
+    void sync();
+}
@@ -0,0 +1,424 @@
+package com.mobiarch;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * <p>Counters and latency histograms of a server. Recording is lock-free
+ * and cheap enough for the I/O threads. The values are read through
+ * JMX or in the Prometheus text format from {@link AdminServer}.</p>
+ *
+ * <p>Latencies are recorded in nanoseconds and reported in seconds.</p>
+ */
+public class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * Counters of one protocol. Shared by all its connections.
+     */
+    public static class ProtocolMetrics {
+        private final String name;
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder refused = new LongAdder();
+        private final LongAdder timedOut = new LongAdder();
+        //Exact counts since the caps are enforced with them
+        private final AtomicInteger active = new AtomicInteger();
+        //Open connections of all the protocols
+        private final AtomicInteger total;
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final String[] commands;
+        private final int[] commandCodes;
+        //One per command plus one for the unknown ones
+        private final Histogram[] commandTimes;
+
+        ProtocolMetrics(String name, AtomicInteger total, String... commands) {
+            this.name = name;
+            this.total = total;
+            this.commands = commands;
+
+            commandCodes = new int[commands.length];
+
+            for (int i = 0; i < commands.length; ++i) {
+                commandCodes[i] = CommandTable.encode(commands[i]);
+            }
+
+            commandTimes = new Histogram[commands.length + 1];
+
+            for (int i = 0; i < commandTimes.length; ++i) {
+                commandTimes[i] = new Histogram();
+            }
+        }
+
+        /**
+         * Counts a new connection unless the protocol or the server
+         * already has as many open as allowed. Call before the 
+         * connection is handed to a thread so that a burst of 
+         * connections can't get past the caps.
+         * 
+         * @param max The most connections of this protocol.
+         * @param maxTotal The most connections of all protocols.
+         * @return false if the connection is to be refused.
+         */
+        public boolean tryAccept(int max, int maxTotal) {
+            if (!tryIncrement(total, maxTotal)) {
+                refused.increment();
+
+                return false;
+            }
+
+            if (!tryIncrement(active, max)) {
+                total.decrementAndGet();
+                refused.increment();
+
+                return false;
+            }
+
+            accepted.increment();
+
+            return true;
+        }
+
+        private static boolean tryIncrement(AtomicInteger count, int max) {
+            int n;
+
+            do {
+                n = count.get();
+
+                if (n >= max) {
+                    return false;
+                }
+            } while (!count.compareAndSet(n, n + 1));
+
+            return true;
+        }
+
+        /**
+         * Counts a connection that was hung up on for going silent.
+         */
+        public void onTimeout() {
+            timedOut.increment();
+        }
+
+        public void onClose() {
+            active.decrementAndGet();
+            total.decrementAndGet();
+        }
+
+        public void addBytesIn(long count) {
+            bytesIn.add(count);
+        }
+
+        public void addBytesOut(long count) {
+            bytesOut.add(count);
+        }
+
+        /**
+         * Returns the histogram of a command.
+         * 
+         * @param command The verb packed by {@link CommandTable#encode(String)}.
+         */
+        public Histogram commandTimes(int command) {
+            for (int i = 0; i < commandCodes.length; ++i) {
+                if (commandCodes[i] == command) {
+                    return commandTimes[i];
+                }
+            }
+
+            return commandTimes[commands.length];
+        }
+    }
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ProtocolMetrics smtp = new ProtocolMetrics("smtp", connections,
+        "HELO", "EHLO", "MAIL", "RCPT", "DATA", "BDAT", "RSET", "NOOP", "QUIT");
+    private final ProtocolMetrics pop3 = new ProtocolMetrics("pop3", connections,
+        "USER", "PASS", "STAT", "LIST", "UIDL", "RETR", "TOP", "DELE", "RSET", "NOOP", "QUIT");
+    private final Histogram fsyncTimes = new Histogram();
+    private final Histogram loopTimes = new Histogram();
+    private Mailboxes mailboxes = null;
+    private ObjectName objectName = null;
+
+    /**
+     * Receives the metrics one sample at a time.
+     */
+    private interface Visitor {
+        void type(String name, String type);
+        void sample(String name, String labels, double value);
+    }
+
+    public ProtocolMetrics getSmtp() {
+        return smtp;
+    }
+
+    public ProtocolMetrics getPop3() {
+        return pop3;
+    }
+
+    /**
+     * @return Time taken by each force(true) and directory sync.
+     */
+    public Histogram getFsyncTimes() {
+        return fsyncTimes;
+    }
+
+    /**
+     * @return Time taken by each reactor loop iteration to handle
+     * the ready connections. Time blocked in select() is left out.
+     */
+    public Histogram getLoopTimes() {
+        return loopTimes;
+    }
+
+    /**
+     * Sets the mailboxes whose size is reported.
+     */
+    public void setMailboxes(Mailboxes mailboxes) {
+        this.mailboxes = mailboxes;
+    }
+
+    private void visit(Visitor v) {
+        ProtocolMetrics[] protocols = {smtp, pop3};
+
+        v.type("devmail_connections_accepted_total", "counter");
+
+        for (var p : protocols) {
+            v.sample("devmail_connections_accepted_total", "protocol=\"" + p.name + "\"", p.accepted.sum());
+        }
+
+        v.type("devmail_connections_refused_total", "counter");
+
+        for (var p : protocols) {
+            v.sample("devmail_connections_refused_total", "protocol=\"" + p.name + "\"", p.refused.sum());
+        }
+
+        v.type("devmail_connections_timed_out_total", "counter");
+
+        for (var p : protocols) {
+            v.sample("devmail_connections_timed_out_total", "protocol=\"" + p.name + "\"", p.timedOut.sum());
+        }
+
+        v.type("devmail_connections_active", "gauge");
+
+        for (var p : protocols) {
+            v.sample("devmail_connections_active", "protocol=\"" + p.name + "\"", p.active.get());
+        }
+
+        v.type("devmail_received_bytes_total", "counter");
+
+        for (var p : protocols) {
+            v.sample("devmail_received_bytes_total", "protocol=\"" + p.name + "\"", p.bytesIn.sum());
+        }
+
+        v.type("devmail_sent_bytes_total", "counter");
+
+        for (var p : protocols) {
+            v.sample("devmail_sent_bytes_total", "protocol=\"" + p.name + "\"", p.bytesOut.sum());
+        }
+
+        v.type("devmail_command_seconds", "summary");
+
+        for (var p : protocols) {
+            for (int i = 0; i < p.commandTimes.length; ++i) {
+                var cmd = i < p.commands.length ? p.commands[i] : "OTHER";
+
+                summary(v, "devmail_command_seconds",
+                    "protocol=\"" + p.name + "\",command=\"" + cmd + "\"", p.commandTimes[i]);
+            }
+        }
+
+        v.type("devmail_fsync_seconds", "summary");
+        summary(v, "devmail_fsync_seconds", "", fsyncTimes);
+
+        v.type("devmail_loop_iteration_seconds", "summary");
+        summary(v, "devmail_loop_iteration_seconds", "", loopTimes);
+
+        if (mailboxes != null) {
+            //A message in many mailboxes counts in each
+            v.type("devmail_mailboxes", "gauge");
+            v.sample("devmail_mailboxes", "", mailboxes.size());
+            v.type("devmail_mailbox_messages", "gauge");
+            v.sample("devmail_mailbox_messages", "", mailboxes.getMessageCount());
+            v.type("devmail_mailbox_bytes", "gauge");
+            v.sample("devmail_mailbox_bytes", "", mailboxes.getTotalSize());
+        }
+    }
+
+    private static void summary(Visitor v, String name, String labels, Histogram h) {
+        var sep = labels.isEmpty() ? "" : ",";
+
+        for (var q : QUANTILES) {
+            v.sample(name, labels + sep + "quantile=\"" + q + "\"", h.getValueAt(q) / 1e9);
+        }
+
+        v.sample(name + "_sum", labels, h.getSum() / 1e9);
+        v.sample(name + "_count", labels, h.getCount());
+    }
+
+    /**
+     * Returns all the metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        var sb = new StringBuilder(8192);
+
+        visit(new Visitor() {
+            @Override
+            public void type(String name, String type) {
+                sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            }
+
+            @Override
+            public void sample(String name, String labels, double value) {
+                sb.append(name);
+
+                if (!labels.isEmpty()) {
+                    sb.append('{').append(labels).append('}');
+                }
+
+                sb.append(' ');
+
+                if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                    sb.append((long) value);
+                } else {
+                    sb.append(value);
+                }
+
+                sb.append('\n');
+            }
+        });
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns all the metrics keyed by a flat name. For example:
+     * devmail_connections_active.smtp or
+     * devmail_command_seconds.pop3.RETR.0.99.
+     */
+    public Map<String, Double> toMap() {
+        var map = new LinkedHashMap<String, Double>();
+
+        visit(new Visitor() {
+            @Override
+            public void type(String name, String type) {
+            }
+
+            @Override
+            public void sample(String name, String labels, double value) {
+                var key = new StringBuilder(name);
+
+                for (var label : labels.split(",")) {
+                    int eq = label.indexOf('=');
+
+                    if (eq > 0) {
+                        key.append('.').append(label, eq + 2, label.length() - 1);
+                    }
+                }
+
+                map.put(key.toString(), value);
+            }
+        });
+
+        return map;
+    }
+
+    /**
+     * Makes the metrics visible through JMX as
+     * com.mobiarch:type=Metrics,name=instanceName.
+     */
+    public void registerMBean(String instanceName) throws JMException {
+        objectName = ObjectName.getInstance("com.mobiarch:type=Metrics,name=" + ObjectName.quote(instanceName));
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), objectName);
+    }
+
+    /**
+     * Removes the MBean if it was registered.
+     */
+    public void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            //Already gone
+        }
+
+        objectName = null;
+    }
+
+    /**
+     * Every metric is a read-only attribute of type Double.
+     */
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            var value = toMap().get(attribute);
+
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            var map = toMap();
+            var list = new AttributeList();
+
+            for (var name : attributes) {
+                var value = map.get(name);
+
+                if (value != null) {
+                    list.add(new Attribute(name, value));
+                }
+            }
+
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            var names = toMap().keySet();
+            var attributes = new MBeanAttributeInfo[names.size()];
+            int i = 0;
+
+            for (var name : names) {
+                attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Double", name, true, false, false);
+            }
+
+            return new MBeanInfo(Metrics.class.getName(), "devmail metrics",
+                attributes, null, null, null);
+        }
+    }
+}
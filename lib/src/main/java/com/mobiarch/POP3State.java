@@ -1,15 +1,12 @@
 package com.mobiarch;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 public class POP3State extends BaseState implements EventListener {
     enum POPParseState {
@@ -24,35 +21,57 @@ public class POP3State extends BaseState implements EventListener {
         STATE_BYE
     } 
 
+    //The command handlers. Shared by all sessions.
+    private static final CommandTable<POP3State> COMMANDS = new CommandTable<POP3State>()
+        .add("USER", POP3State::onUser)
+        .add("PASS", POP3State::onPass)
+        .add("STAT", POP3State::onStat)
+        .add("DELE", POP3State::onDele)
+        .add("UIDL", POP3State::onUidl)
+        .add("LIST", POP3State::onList)
+        .add("QUIT", POP3State::onQuit)
+        .add("RSET", POP3State::onRset)
+        .add("RETR", POP3State::onRetr)
+        .add("TOP", POP3State::onTop);
+
     POPParseState state = POPParseState.STATE_NONE;
-    ArrayList<File> messageList = new ArrayList<>();
+    //The mailbox named by USER. null till then.
+    MailboxIndex index = null;
+    //The mailbox as of login
+    MailboxIndex.Snapshot mailbox = null;
+    List<MessageInfo> messageList = List.of();
+    //Indexes into messageList marked by DELE. They are
+    //deleted at QUIT (RFC 1939 UPDATE state).
+    BitSet deleted = new BitSet();
+    long deletedSize = 0;
     int messageIndex = 0;
     int topLines = 0;
-    MappedByteBuffer map = null;
-
-    public POP3State() {
-        in = ByteBuffer.allocate(256);
-        out = ByteBuffer.allocate(256);
-
-        out.flip(); //Ready to write to
+    //Sends the message for RETR and TOP
+    BodyTransfer transfer = null;
+
+    public POP3State(ServerContext context) {
+        this.context = context;
+        //Large enough to send many LIST lines or a good
+        //part of a message in one write
+        outSize = 8192;
     }
 
     @Override
-    public void onAccept(SelectionKey key) throws IOException {
+    public void onAccept(Connection conn) throws IOException {
         state = POPParseState.STATE_READ_CMD;
 
-        sendReply(key, "+OK POP3 example.com server ready\r\n");
+        sendReply(conn, "+OK POP3 example.com server ready\r\n");
     }
 
     @Override
-    public void onReadAvailable(SelectionKey key) throws IOException {
-        SocketChannel client = (SocketChannel) key.channel();
-
+    public void onReadAvailable(Connection conn) throws IOException {
         int sz = 0;
 
+        acquireIn();
+
         try {
             //sz will be -1 for a graceful disconnect by client
-            sz = client.read(in);
+            sz = conn.read(in);
         } catch (SocketException e) {
             //Ungraceful disconnect by client
             sz = -1;
@@ -61,14 +80,15 @@ public class POP3State extends BaseState implements EventListener {
         //This will deal with both graceful and
         //ungraceful disconnect by client
         if (sz < 0) {
-            System.out.println("Client disconnected.");
+            Log.debug("Client disconnected.");
 
-            client.close();
-            key.cancel();
+            conn.close();
 
             return;
         } else if (sz == 0) {
             //Nothing's read
+            releaseIn();
+
             return;
         }
 
@@ -80,151 +100,378 @@ public class POP3State extends BaseState implements EventListener {
                 //buffer ready to read from.
                 in.flip();
 
-                System.out.print("CLI: ");
-                BaseState.print(in);
+                if (Log.isTraceEnabled()) {
+                    Log.trace("CLI: %s", toAscii(in));
+                }
+
+                int command = parseCommand();
+                var commandTimes = context.getMetrics().getPop3().commandTimes(command);
+                long start = System.nanoTime();
 
-                onCommand(key);
+                onCommand(conn, command);
+                commandTimes.record(System.nanoTime() - start);
 
                 //Start reading into the beginning of buffer
                 in.clear();
             }
         }
+
+        //Keep the buffers only if there's a partial 
+        //line or unwritten reply
+        releaseIn();
+
+        if (transfer == null) {
+            releaseOut();
+        }
     }
 
     @Override
-    public void onWritePossible(SelectionKey key) throws IOException {
-        SocketChannel client = (SocketChannel) key.channel();
-
-        if (out.hasRemaining()) {
+    public void onWritePossible(Connection conn) throws IOException {
+        if (out != null && out.hasRemaining()) {
             int sz = 0;
 
             try {
-                sz = client.write(out);
+                sz = conn.write(out);
             } catch (Exception e) {
                 sz = -1;
             }
 
             if (sz < 0) {
-                System.out.println("Client disconnected.");
+                Log.debug("Client disconnected.");
 
-                client.close();
-                key.cancel();
+                conn.close();
     
                 return;    
             }
-        } else if (map != null && map.hasRemaining()) {
-            int sz = 0;
-
+        } else if (isDiskBusy) {
+            //Nothing more to do till the disk is done
+            conn.interestOps(0);
+        } else if (transfer != null && !transfer.isDone()) {
             try {
-                sz = client.write(map);
+                transfer.send(conn);
             } catch (Exception e) {
-                sz = -1;
-            }
-
-            if (sz < 0) {
-                System.out.println("Client disconnected.");
+                Log.debug("Client disconnected.");
 
-                client.close();
-                key.cancel();
+                conn.close();
     
                 return;    
             }
         } else {
             //We are done writing. Cancel further 
             //writeability test
-            key.interestOps(SelectionKey.OP_READ);
+            conn.interestOps(Connection.OP_READ);
 
             if (state == POPParseState.STATE_BYE) {
-                System.out.println("Closing connection.");
+                Log.debug("Closing connection.");
 
-                client.close();
-                key.cancel();
-            } else if (state == POPParseState.STATE_WRITE_LIST) {
-                if (messageIndex == messageList.size()) {
-                    //We're finished writing the LIST.
-                    //Send the end sentinels
-                    sendReply(key, ".\r\n");
+                conn.close();
 
-                    state = POPParseState.STATE_READ_CMD;
-                } else {
-                    //Send file stat
-                    sendReply(key, 
-                        String.format("%d %d\r\n", 
-                        messageIndex + 1, messageList.get(messageIndex).length()));
-                    
-                    ++messageIndex;
-                }
-            } else if (state == POPParseState.STATE_WRITE_UIDL_LIST) {
-                if (messageIndex == messageList.size()) {
-                    //We're finished writing the LIST.
-                    //Send the end sentinels
-                    sendReply(key, ".\r\n");
+                return;
+            } else if (state == POPParseState.STATE_WRITE_LIST || 
+                    state == POPParseState.STATE_WRITE_UIDL_LIST) {
+                fillListing();
 
-                    state = POPParseState.STATE_READ_CMD;
-                } else {
-                    //Send file stat
-                    sendReply(key, 
-                        String.format("%d %s\r\n", 
-                        messageIndex + 1, messageList.get(messageIndex).getName()));
-                    
-                    ++messageIndex;
-                }
+                conn.interestOps(Connection.OP_READ | Connection.OP_WRITE);
             } else if (state == POPParseState.STATE_WRITE_RETR_HEADER) {
-                var fileName = String.format("%s/%s", MAIL_DIR, messageList.get(messageIndex).getName());
-
-                try (var file = new RandomAccessFile(fileName, "r")) {
-                    //Memory map the file.
-                    //There's no need to flip it.
-                    //Position and limit already set for reading
-                    map = file.getChannel()
-                        .map(FileChannel.MapMode.READ_ONLY, 0, file.length());
-
-                    state = POPParseState.STATE_WRITE_MSG;
-
-                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                }
+                openTransfer(conn, messageList.get(messageIndex), -1, POPParseState.STATE_WRITE_MSG);
             } else if (state == POPParseState.STATE_WRITE_MSG) {
                 //We're done sending the message body.
-                map = null; //Hopefully GC will do the unmapping
+                closeTransfer();
 
                 //Send the sentinel bytes
-                sendReply(key, "\r\n.\r\n");
+                sendReply(conn, "\r\n.\r\n");
 
                 state = POPParseState.STATE_READ_CMD;
             } else if (state == POPParseState.STATE_WRITE_TOP_HEADER) {
-                var fileName = String.format("%s/%s", MAIL_DIR, messageList.get(messageIndex).getName());
+                openTransfer(conn, messageList.get(messageIndex), topLines, POPParseState.STATE_WRITE_MSG_TOP);
+            } else if (state == POPParseState.STATE_WRITE_MSG_TOP) {
+                //We're done sending the message body.
+                closeTransfer();
+
+                //Send the sentinel bytes
+                sendReply(conn, "\r\n.\r\n");
 
-                try (var file = new RandomAccessFile(fileName, "r")) {
-                    //Memory map the file.
-                    //There's no need to flip it.
-                    //Position and limit already set for reading
-                    map = file.getChannel()
-                        .map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                state = POPParseState.STATE_READ_CMD;
+            }
+
+            if (transfer == null) {
+                //A stuffing transfer uses the out 
+                //buffer. Keep it till it's done.
+                releaseOut();
+            }
+        }
+    }
+
+    /**
+     * <p>Packs as many LIST or UIDL lines as will fit into the out buffer.
+     * Adds the end sentinel after the last line.</p>
+     * 
+     * <p>Only one buffer worth of lines is encoded at a time. So even a 
+     * huge mailbox takes no more memory.</p>
+     */
+    private void fillListing() {
+        acquireOut();
+        out.clear();
+
+        while (messageIndex < messageList.size()) {
+            if (deleted.get(messageIndex)) {
+                //Not listed. The others keep their numbers.
+                ++messageIndex;
+
+                continue;
+            }
+
+            var msg = messageList.get(messageIndex);
+
+            //Index, space, size or id and CRLF
+            int length = MAX_NUMBER_LENGTH + 1 + 
+                (state == POPParseState.STATE_WRITE_LIST ? MAX_NUMBER_LENGTH : msg.getId().length()) + 2;
+
+            if (out.remaining() < length) {
+                break;
+            }
+
+            putNumber(out, messageIndex + 1);
+            out.put((byte) ' ');
+
+            if (state == POPParseState.STATE_WRITE_LIST) {
+                putNumber(out, msg.getSize());
+            } else {
+                putAscii(out, msg.getId());
+            }
+
+            out.put((byte) '\r');
+            out.put((byte) '\n');
 
-                    locateTopLines();
-                    map.flip(); //Get it ready to read from
+            ++messageIndex;
+        }
 
-                    state = POPParseState.STATE_WRITE_MSG_TOP;
+        if (messageIndex == messageList.size() && out.remaining() >= 3) {
+            //We're finished writing the list.
+            //Send the end sentinel
+            putAscii(out, ".\r\n");
 
-                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            state = POPParseState.STATE_READ_CMD;
+        }
+
+        out.flip();
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return getTimeoutMillis(context.getPop3Limits(), transfer != null || 
+            state == POPParseState.STATE_WRITE_LIST || state == POPParseState.STATE_WRITE_UIDL_LIST);
+    }
+
+    @Override
+    public void onTimeout(Connection conn) throws IOException {
+        if (transfer != null) {
+            //A reply would land in the middle of the message
+            conn.close();
+
+            return;
+        }
+
+        closeWithReply(conn, "-ERR Timeout, closing connection\r\n");
+    }
+
+    @Override
+    public void onClose(Connection conn) {
+        isClosed = true;
+
+        try {
+            closeTransfer();
+        } catch (IOException e) {
+            Log.warn("Failed to close message: %s", e.getMessage());
+        }
+
+        releaseBuffers();
+    }
+
+    /**
+     * A message opened by the {@link DiskExecutor}.
+     */
+    private static class OpenedBody {
+        final MessageBody body;
+        //Offset after the last byte to send
+        final long end;
+        final boolean needsDotStuffing;
+
+        OpenedBody(MessageBody body, long end, boolean needsDotStuffing) {
+            this.body = body;
+            this.end = end;
+            this.needsDotStuffing = needsDotStuffing;
+        }
+    }
+
+    /**
+     * Opens the message in the {@link DiskExecutor} and starts 
+     * sending it. Reading the file to find where TOP ends and if 
+     * stuffing is needed is done there too.
+     * 
+     * @param topLines The number of body lines to send. 
+     * -1 to send the whole message.
+     * @param nextState The state to send the message in.
+     */
+    private void openTransfer(Connection conn, MessageInfo msg, int topLines, POPParseState nextState) {
+        var store = context.getStore();
+
+        offload(conn, () -> {
+            var body = store.open(msg);
+
+            try {
+                long end = body.getEnd();
+
+                if (topLines >= 0) {
+                    end = body.getStart() + locateTopLines(msg, body, topLines);
                 }
-            } else if (state == POPParseState.STATE_WRITE_MSG_TOP) {
-                //We're done sending the message body.
-                map = null; //Hopefully GC will do the unmapping
 
-                //Send the sentinel bytes
-                sendReply(key, "\r\n.\r\n");
+                return new OpenedBody(body, end, needsDotStuffing(msg, body));
+            } catch (IOException e) {
+                body.close();
 
-                state = POPParseState.STATE_READ_CMD;
+                throw e;
+            }
+        }, (opened, error) -> {
+            if (error != null) {
+                //The reply is already sent. All we can do is hang up.
+                throw error;
+            }
+
+            transfer = createTransfer(opened);
+            state = nextState;
+
+            conn.interestOps(Connection.OP_READ | Connection.OP_WRITE);
+        }, opened -> {
+            if (opened != null) {
+                try {
+                    opened.body.close();
+                } catch (IOException e) {
+                    Log.warn("Failed to close message: %s", e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the message using the configured {@link TransferMode}. 
+     * Messages that need dot stuffing are always sent from a mapping.
+     */
+    private BodyTransfer createTransfer(OpenedBody opened) throws IOException {
+        var body = opened.body;
+
+        try {
+            long end = opened.end;
+            var bytes = body.getBytes();
+
+            if (bytes != null) {
+                //Already in memory. Sent from there.
+                bytes.limit((int) end);
+
+                if (opened.needsDotStuffing) {
+                    acquireOut();
+
+                    return new MappedTransfer(bytes, new DotStuffer(), out, body);
+                }
+
+                return new MappedTransfer(bytes, null, null, body);
+            }
+
+            if (opened.needsDotStuffing) {
+                try (body) {
+                    acquireOut();
+
+                    //Stuff using the out buffer
+                    return new MappedTransfer(body.getChannel(), body.getStart(), end, new DotStuffer(), out);
+                }
+            }
+
+            if (context.getTransferMode() == TransferMode.MMAP) {
+                try (body) {
+                    //The mapping outlives the file
+                    return new MappedTransfer(body.getChannel(), body.getStart(), end, null, null);
+                }
+            }
+
+            return new FileTransfer(body, end);
+        } catch (IOException e) {
+            body.close();
+
+            throw e;
+        }
+    }
+
+    private void closeTransfer() throws IOException {
+        if (transfer != null) {
+            transfer.close();
+
+            transfer = null;
+        }
+    }
+
+    /**
+     * Messages are saved unstuffed. Checks if any line of the 
+     * message starts with a ".". If not known from when the message
+     * was saved, the message is checked once and the result kept.
+     */
+    private static boolean needsDotStuffing(MessageInfo msg, MessageBody body) throws IOException {
+        var isNeeded = msg.getNeedsDotStuffing();
+
+        if (isNeeded == null) {
+            var map = body.map();
+
+            isNeeded = DotStuffer.isNeeded(map);
+
+            body.unmap(map);
+            msg.setNeedsDotStuffing(isNeeded);
+        }
+
+        return isNeeded;
+    }
+
+    /**
+     * Returns the offset of the end of header+top n lines
+     * from the start of the message. Uses the message's {@link TopIndex}.
+     * If there isn't one yet, it's built and kept for next time. 
+     * The file is only scanned for lines beyond the index.
+     */
+    private static long locateTopLines(MessageInfo msg, MessageBody body, int topLines) throws IOException {
+        var index = msg.getTopIndex();
+
+        if (index != null) {
+            long end = index.locate(topLines);
+
+            if (end >= 0) {
+                return end;
             }
         }
+
+        var map = body.map();
+
+        if (index == null) {
+            index = TopIndex.build(map);
+
+            msg.setTopIndex(index);
+        }
+
+        long end = index.locate(topLines);
+
+        if (end < 0) {
+            end = locateTopLines(map, topLines);
+        }
+
+        body.unmap(map);
+
+        return end;
     }
 
     /**
      * Moves the position to the end of header+top n lines
      * of the message.
+     * 
+     * @return The new position.
      */
-    private void locateTopLines() {
+    static int locateTopLines(ByteBuffer map, int topLines) {
         //Find the header
         int lineLength = 0;
 
@@ -243,7 +490,7 @@ public class POP3State extends BaseState implements EventListener {
         }
 
         if (topLines == 0) {
-            return;
+            return map.position();
         }
 
         int lineCount = 0;
@@ -257,114 +504,235 @@ public class POP3State extends BaseState implements EventListener {
                 }
             }
         }
+
+        return map.position();
     }
 
-    private void onCommand(SelectionKey key) throws IOException {
-        if (isCommand("USER")) {
-            sendReply(key, "+OK User name accepted, password please\r\n");
-        } else if (isCommand("PASS")) {
-            sendReply(key, "+OK Mailbox open\r\n");
-        } else if (isCommand("STAT")) {
-            loadMessageList();
+    private void onCommand(Connection conn, int command) throws IOException {
+        var handler = COMMANDS.get(command);
 
-            int sz = 0;
+        if (handler == null) {
+            Log.debug("Unknown command");
 
-            for (var f : messageList) {
-                sz += f.length();
-            }
+            sendReply(conn, "-ERR\r\n");
+
+            return;
+        }
 
-            sendReply(key, 
-                String.format("+OK %d %d\r\n", 
-                    messageList.size(), sz));
-        } else if (isCommand("DELE ")) {
-            //One based index of email message
-            int idx = parseInt(in);
+        try {
+            handler.handle(this, conn);
+        } catch (NumberFormatException e) {
+            sendReply(conn, "-ERR Invalid argument\r\n");
+        }
+    }
 
-            if (idx > messageList.size()) {
-                sendReply(key, "-ERR\r\n");
-            } else {
-                var file = messageList.get(idx - 1);
+    /**
+     * Parses the one based message number argument.
+     * 
+     * @return The zero based index of the message. -1 if there's
+     * no such message or it's marked deleted.
+     */
+    private int parseMessageIndex() {
+        int idx = parseInt(in);
 
-                System.out.printf("Deleting: %s\n", file.getName());
+        loadMessageList();
 
-                file.delete();
+        if (idx < 1 || idx > messageList.size() || deleted.get(idx - 1)) {
+            return -1;
+        }
 
-                sendReply(key, "+OK Message deleted\r\n");
-            }
-        } else if (isCommand("UIDL ")) {
+        return idx - 1;
+    }
+
+    /**
+     * Picks the mailbox. Any password is accepted.
+     */
+    private void onUser(Connection conn) throws IOException {
+        int pos = in.position();
+
+        while (pos < in.limit() && in.get(pos) == ' ') {
+            ++pos;
+        }
+
+        var bytes = new byte[in.limit() - pos];
+
+        in.get(pos, bytes);
+
+        var user = new String(bytes, StandardCharsets.ISO_8859_1).trim();
+
+        if (user.isEmpty()) {
+            sendReply(conn, "-ERR User name missing\r\n");
+
+            return;
+        }
+
+        index = context.getMailboxes().get(Mailboxes.nameOf(user));
+        //Opened again for the new user
+        mailbox = null;
+        messageList = List.of();
+        clearDeleted();
+
+        sendReply(conn, "+OK User name accepted, password please\r\n");
+    }
+
+    private void onPass(Connection conn) throws IOException {
+        openMailbox();
+
+        sendReply(conn, "+OK Mailbox open\r\n");
+    }
+
+    private void onStat(Connection conn) throws IOException {
+        loadMessageList();
+
+        sendReply(conn, 
+            String.format("+OK %d %d\r\n", 
+                mailbox.size() - deleted.cardinality(), mailbox.getTotalSize() - deletedSize));
+    }
+
+    private void onDele(Connection conn) throws IOException {
+        int idx = parseMessageIndex();
+
+        if (idx < 0) {
+            sendReply(conn, "-ERR\r\n");
+        } else {
+            var msg = messageList.get(idx);
+
+            Log.debug("Marking deleted: %s", msg.getId());
+
+            //Deleted at QUIT
+            deleted.set(idx);
+            deletedSize += msg.getSize();
+
+            sendReply(conn, "+OK Message deleted\r\n");
+        }
+    }
+
+    /**
+     * Unmarks the messages marked by DELE.
+     */
+    private void onRset(Connection conn) throws IOException {
+        loadMessageList();
+        clearDeleted();
+
+        sendReply(conn, 
+            String.format("+OK maildrop has %d messages (%d octets)\r\n", 
+                mailbox.size(), mailbox.getTotalSize()));
+    }
+
+    private void clearDeleted() {
+        deleted.clear();
+        deletedSize = 0;
+    }
+
+    private void onUidl(Connection conn) throws IOException {
+        if (in.hasRemaining()) {
             //This is UIDL with arg
-            //One based index of email message
-            int idx = parseInt(in);
+            int idx = parseMessageIndex();
 
-            if (idx > messageList.size()) {
-                sendReply(key, "-ERR\r\n");
+            if (idx < 0) {
+                sendReply(conn, "-ERR\r\n");
             } else {
-                sendReply(key, 
+                sendReply(conn, 
                         String.format("+OK %d %s\r\n", 
-                        idx, messageList.get(idx - 1).getName()));
+                        idx + 1, messageList.get(idx).getId()));
             }
-        } else if (isCommand("UIDL")) {
-            state = POPParseState.STATE_WRITE_UIDL_LIST;
-            messageIndex = 0;
-
-            loadMessageList();
-
-            sendReply(key, "+OK\r\n");
-        } else if (isCommand("LIST")) {
-            state = POPParseState.STATE_WRITE_LIST;
-
-            messageIndex = 0;
-            loadMessageList(); 
-            
-            sendReply(key, "+OK Mailbox scan listing follows\r\n");
-        } else if (isCommand("QUIT")) {
-            state = POPParseState.STATE_BYE;
-
-            sendReply(key, "+OK Bye\r\n");
-        } else if (isCommand("RETR ")) {
-            //One based index of email message
-            int idx = parseInt(in);
-
-            if (idx > messageList.size()) {
-                sendReply(key, "-ERR\r\n");
-            } else {
-                state = POPParseState.STATE_WRITE_RETR_HEADER;
-                messageIndex = idx - 1;
 
-                sendReply(key, 
-                        String.format("+OK %d octate\r\n", 
-                        messageList.get(idx - 1).length()));
-            }
-        } else if (isCommand("TOP ")) {
-            //One based index of email message
-            int idx = parseInt(in);
+            return;
+        }
 
-            if (idx > messageList.size()) {
-                sendReply(key, "-ERR\r\n");
-            } else {
-                state = POPParseState.STATE_WRITE_TOP_HEADER;
-                messageIndex = idx - 1;
+        state = POPParseState.STATE_WRITE_UIDL_LIST;
+        messageIndex = 0;
 
-                topLines = parseInt(in);
+        loadMessageList();
 
-                sendReply(key, "+OK top of message follows\r\n");
-            }
+        sendReply(conn, "+OK\r\n");
+    }
+
+    private void onList(Connection conn) throws IOException {
+        state = POPParseState.STATE_WRITE_LIST;
+
+        messageIndex = 0;
+        loadMessageList(); 
+        
+        sendReply(conn, "+OK Mailbox scan listing follows\r\n");
+    }
+
+    private void onQuit(Connection conn) throws IOException {
+        commitDeleted();
+
+        state = POPParseState.STATE_BYE;
+
+        sendReply(conn, "+OK Bye\r\n");
+    }
+
+    private void onRetr(Connection conn) throws IOException {
+        int idx = parseMessageIndex();
+
+        if (idx < 0) {
+            sendReply(conn, "-ERR\r\n");
         } else {
-            System.out.println("Unknown command");
+            state = POPParseState.STATE_WRITE_RETR_HEADER;
+            messageIndex = idx;
 
-            sendReply(key, "-ERR\r\n");
+            sendReply(conn, 
+                    String.format("+OK %d octate\r\n", 
+                    messageList.get(idx).getSize()));
         }
     }
 
-    private void loadMessageList() {
-        messageList.clear();
+    private void onTop(Connection conn) throws IOException {
+        int idx = parseMessageIndex();
+        //-1 is used for no limit. Not for the client to ask.
+        int lines = idx < 0 ? -1 : parseInt(in);
 
-        var dir = new File(MAIL_DIR);
+        if (lines < 0) {
+            sendReply(conn, "-ERR\r\n");
+        } else {
+            topLines = lines;
+            state = POPParseState.STATE_WRITE_TOP_HEADER;
+            messageIndex = idx;
 
-        for (var f : dir.listFiles()) {
-            if (f.isFile()) {
-                messageList.add(f);
-            }
+            sendReply(conn, "+OK top of message follows\r\n");
+        }
+    }
+
+    /**
+     * Deletes the messages marked by DELE. They are taken out of the 
+     * mailbox index at once. So other sessions see all of them gone or
+     * none. The {@link Unlinker} deletes them from the store later.
+     */
+    private void commitDeleted() {
+        if (deleted.isEmpty()) {
+            return;
+        }
+
+        var batch = new ArrayList<MessageInfo>(deleted.cardinality());
+
+        for (int i = deleted.nextSetBit(0); i >= 0; i = deleted.nextSetBit(i + 1)) {
+            batch.add(messageList.get(i));
+        }
+
+        index.removeAll(batch);
+        context.getUnlinker().unlink(index.getName(), batch);
+
+        clearDeleted();
+    }
+
+    /**
+     * Takes a snapshot of the mailbox. It's used for the rest 
+     * of the session. Without USER the mailbox is empty.
+     */
+    private void openMailbox() {
+        mailbox = index == null ? MailboxIndex.EMPTY : index.snapshot();
+        messageList = mailbox.getMessages();
+    }
+
+    /**
+     * Opens the mailbox if the client didn't log in.
+     */
+    private void loadMessageList() {
+        if (mailbox == null) {
+            openMailbox();
         }
     }
 }
@@ -0,0 +1,99 @@
+package com.mobiarch;
+
+/**
+ * <p>The timeouts and the connection cap of one protocol. A timeout
+ * is the time a client may stay silent or stop reading before it's
+ * hung up on. Which one applies depends on what the session is
+ * doing:</p>
+ *
+ * <ul>
+ * <li>idle: Waiting for the next command.</li>
+ * <li>command: Part of a command line is received or replies are
+ * waiting to be read.</li>
+ * <li>data: A message is being received or sent.</li>
+ * </ul>
+ *
+ * <p>A timeout of 0 turns it off.</p>
+ *
+ * <p>The message size cap is only used by SMTP. It bounds the chunk
+ * sizes of BDAT.</p>
+ */
+public class ProtocolLimits {
+    public static final long DEFAULT_MAX_MESSAGE_SIZE = 64L << 20;
+
+    //RFC 5321 4.5.3.2 asks for 5 minutes between commands
+    //and 3 minutes between DATA blocks
+    public static final ProtocolLimits SMTP_DEFAULTS = new ProtocolLimits(300_000, 60_000, 180_000, 10_000);
+    //RFC 1939 asks for at least 10 minutes of inactivity
+    public static final ProtocolLimits POP3_DEFAULTS = new ProtocolLimits(600_000, 60_000, 180_000, 10_000);
+
+    private final long idleTimeoutMillis;
+    private final long commandTimeoutMillis;
+    private final long dataTimeoutMillis;
+    private final int maxConnections;
+    private final long maxMessageSize;
+
+    public ProtocolLimits(long idleTimeoutMillis, long commandTimeoutMillis, long dataTimeoutMillis,
+            int maxConnections) {
+        this(idleTimeoutMillis, commandTimeoutMillis, dataTimeoutMillis, maxConnections, 
+            DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * @param maxMessageSize The largest message in bytes.
+     */
+    public ProtocolLimits(long idleTimeoutMillis, long commandTimeoutMillis, long dataTimeoutMillis,
+            int maxConnections, long maxMessageSize) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.commandTimeoutMillis = commandTimeoutMillis;
+        this.dataTimeoutMillis = dataTimeoutMillis;
+        this.maxConnections = maxConnections;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Reads the limits from system properties. For example, for "smtp":
+     * devmail.smtp.idleTimeout, devmail.smtp.commandTimeout and
+     * devmail.smtp.dataTimeout in seconds, devmail.smtp.maxConnections
+     * and devmail.smtp.maxMessageSize in bytes.
+     *
+     * @param defaults Used for the properties that are not set.
+     */
+    public static ProtocolLimits fromProperties(String protocol, ProtocolLimits defaults) {
+        var prefix = "devmail." + protocol + ".";
+
+        return new ProtocolLimits(
+            Long.getLong(prefix + "idleTimeout", defaults.idleTimeoutMillis / 1000) * 1000,
+            Long.getLong(prefix + "commandTimeout", defaults.commandTimeoutMillis / 1000) * 1000,
+            Long.getLong(prefix + "dataTimeout", defaults.dataTimeoutMillis / 1000) * 1000,
+            Integer.getInteger(prefix + "maxConnections", defaults.maxConnections),
+            Long.getLong(prefix + "maxMessageSize", defaults.maxMessageSize));
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long getCommandTimeoutMillis() {
+        return commandTimeoutMillis;
+    }
+
+    public long getDataTimeoutMillis() {
+        return dataTimeoutMillis;
+    }
+
+    /**
+     * @return The most connections open at a time. More are refused.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return The largest message in bytes. Bigger ones are
+     * refused with 552.
+     */
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+}
@@ -0,0 +1,331 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>A worker event loop that owns one Selector and all the client
+ * connections registered with it.</p>
+ * 
+ * <p>The acceptor thread hands newly accepted connections over using
+ * {@link #register(SocketChannel, String)}. From then on the connection
+ * and its SMTPState or POP3State are only ever touched by this reactor's 
+ * thread. That's why the state classes need no locking.</p>
+ * 
+ * <p>The deadlines of the connections are kept in a {@link TimingWheel}.
+ * select() waits no longer than the next tick of the wheel.</p>
+ */
+public class Reactor implements Runnable {
+    private static final long TICK_MILLIS = 100;
+    //A turn of the wheel is about 51 seconds
+    private static final int WHEEL_SLOTS = 512;
+
+    private final ServerContext context;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean isStopped = false;
+    //Set once the loop has ended. Tasks are then run by the caller.
+    private volatile boolean isDone = false;
+    private final TimingWheel<SelectorConnection> wheel;
+    //The time in milliseconds as of the start of the loop iteration
+    private long now = currentMillis();
+    //The thread running the loop
+    private volatile Thread thread = null;
+
+    public Reactor(ServerContext context) throws IOException {
+        this.context = context;
+        selector = Selector.open();
+        wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SLOTS, now);
+    }
+
+    private static long currentMillis() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Runs the task in the reactor thread. Safe to call from any thread.
+     */
+    public void execute(Runnable task) {
+        if (isDone) {
+            //Nobody else will. Lets the task clean up.
+            runTask(task);
+
+            return;
+        }
+
+        tasks.add(task);
+
+        if (Thread.currentThread() != thread) {
+            //Get the reactor out of select(). Not needed from
+            //the reactor itself. It checks for tasks before.
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers an accepted client with this reactor. Safe to call 
+     * from any thread.
+     * 
+     * @param client The accepted client in non-blocking mode.
+     * @param type The protocol type. Either "SMTP" or "POP3".
+     */
+    public void register(SocketChannel client, String type) {
+        execute(() -> onAccept(client, type));
+    }
+
+    private void onAccept(SocketChannel client, String type) {
+        Log.debug("Accepted client type: %s", type);
+
+        EventListener listener;
+        Metrics.ProtocolMetrics metrics;
+
+        if ("SMTP".equals(type)) {
+            listener = new SMTPState(context);
+            metrics = context.getMetrics().getSmtp();
+        } else {
+            listener = new POP3State(context);
+            metrics = context.getMetrics().getPop3();
+        }
+
+        SelectionKey clientKey;
+
+        try {
+            // Register that client is reading this channel
+            clientKey = client.register(selector, SelectionKey.OP_READ);
+        } catch (IOException | RuntimeException e) {
+            //ClosedSelectorException if the reactor has ended
+            Log.warn("Failed to register client: %s", e.getMessage());
+
+            metrics.onClose();
+            close(client);
+
+            return;
+        }
+
+        var conn = new SelectorConnection(this, clientKey, listener, metrics);
+
+        clientKey.attach(conn);
+
+        try {
+            listener.onAccept(conn);
+            touch(conn);
+        } catch (IOException e) {
+            Log.warn("Closing client after error: %s", e.getMessage());
+
+            close(conn);
+        } catch (RuntimeException e) {
+            Log.error("Closing client after failure: %s", e, e);
+
+            close(conn);
+        }
+    }
+
+    /**
+     * Sets the connection's deadline after it has done something. 
+     * The timeout depends on the state of the session.
+     */
+    void touch(SelectorConnection conn) {
+        if (conn.isClosed()) {
+            return;
+        }
+
+        long timeout = conn.getListener().getTimeoutMillis();
+
+        if (timeout <= 0) {
+            wheel.cancel(conn.getTimer());
+        } else {
+            wheel.schedule(conn.getTimer(), now + timeout);
+        }
+    }
+
+    /**
+     * Forgets a connection that has been closed.
+     */
+    void onClose(SelectorConnection conn) {
+        wheel.cancel(conn.getTimer());
+    }
+
+    private void onTimer(SelectorConnection conn) {
+        if (conn.isClosed()) {
+            return;
+        }
+
+        Log.debug("Client timed out.");
+
+        conn.getMetrics().onTimeout();
+
+        try {
+            conn.getListener().onTimeout(conn);
+        } catch (IOException e) {
+            close(conn);
+        } catch (RuntimeException e) {
+            Log.error("Closing client after failure: %s", e, e);
+
+            close(conn);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            runTask(task);
+        }
+    }
+
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            //Keep serving the other clients
+            Log.error("Task failed: %s", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Ends the loop. Every connection is closed. Safe to call 
+     * from any thread.
+     */
+    public void stop() {
+        isStopped = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Closes the connections once the loop has ended. The tasks
+     * handed over meanwhile are run so that they can clean up.
+     */
+    private void shutdown() {
+        //Accepted clients waiting to be registered
+        runTasks();
+
+        for (var key : selector.keys()) {
+            if (key.attachment() instanceof SelectorConnection conn) {
+                close(conn);
+            }
+        }
+
+        isDone = true;
+        //Handed over before isDone was seen
+        runTasks();
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            //Nothing more can be done
+        }
+    }
+
+    /**
+     * Runs the loop till {@link #stop()}. If already stopped
+     * it only closes down.
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+
+        try {
+            loop();
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void loop() {
+        var loopTimes = context.getMetrics().getLoopTimes();
+
+        while (!isStopped) {
+            try {
+                long delay = wheel.getDelay(currentMillis());
+
+                if (!tasks.isEmpty()) {
+                    //Added by the reactor itself
+                    selector.selectNow();
+                } else if (delay < 0) {
+                    selector.select();
+                } else {
+                    selector.select(delay);
+                }
+            } catch (IOException e) {
+                Log.error("Reactor select failed: %s", e.getMessage());
+
+                return;
+            }
+
+            long start = System.nanoTime();
+
+            now = start / 1_000_000;
+
+            runTasks();
+
+            Set<SelectionKey> keys = selector.selectedKeys();
+            Iterator<SelectionKey> i = keys.iterator();
+
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+
+                /*
+                 * The SelectionKey must be removed from the Set.
+                 * Otherwise, this event will be reported again by 
+                 * selector.select().
+                 */
+                i.remove();
+
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    var conn = (SelectorConnection) key.attachment();
+
+                    if (key.isReadable()) {
+                        conn.getListener().onReadAvailable(conn);
+                    } else if (key.isWritable()) {
+                        conn.getListener().onWritePossible(conn);
+                    } else {
+                        Log.warn("UNKNOWN SELECT");
+                    }
+
+                    touch(conn);
+                } catch (IOException e) {
+                    //Only this client is affected. Keep serving the rest.
+                    Log.warn("Closing client after error: %s", e.getMessage());
+
+                    close((SelectorConnection) key.attachment());
+                } catch (RuntimeException e) {
+                    //A bug in the handler. Don't let it end the
+                    //reactor and with it every other client.
+                    Log.error("Closing client after failure: %s", e, e);
+
+                    close((SelectorConnection) key.attachment());
+                }
+            }
+
+            wheel.advance(now, this::onTimer);
+
+            loopTimes.record(System.nanoTime() - start);
+        }
+    }
+
+    private static void close(SelectorConnection conn) {
+        try {
+            conn.close();
+        } catch (IOException | RuntimeException e) {
+            //Nothing more can be done
+        }
+    }
+
+    private static void close(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            //Nothing more can be done
+        }
+    }
+}
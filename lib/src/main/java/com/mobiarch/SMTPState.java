@@ -1,49 +1,113 @@
 package com.mobiarch;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 public class SMTPState extends BaseState implements EventListener {
     private enum SMTPParseState {
         STATE_NONE,
         STATE_READ_CMD,
-        STATE_READ_DATA
+        STATE_READ_DATA,
+        STATE_READ_BDAT
     } 
 
+    //Message bytes are gathered in a buffer this big
+    //and written out by the DiskExecutor
+    private static final int STAGING_SIZE = 64 * 1024;
+
+    //The command handlers. Shared by all sessions.
+    private static final CommandTable<SMTPState> COMMANDS = new CommandTable<SMTPState>()
+        .add("HELO", SMTPState::onHelo)
+        .add("EHLO", SMTPState::onEhlo)
+        .add("MAIL", SMTPState::onMail)
+        .add("RCPT", SMTPState::onRcpt)
+        .add("DATA", SMTPState::onData)
+        .add("BDAT", SMTPState::onBdat)
+        .add("QUIT", SMTPState::onQuit);
+
     SMTPParseState state = SMTPParseState.STATE_READ_CMD;
-    RandomAccessFile saveFile = null;
-    FileChannel saveFileChannel = null;
-    FixedQueue<Byte> msgEnd = new FixedQueue<>(5);
+    //The message being received. null if it could not be created.
+    MessageStore.Draft draft = null;
+    //Holds the message bytes yet to be written. 
+    //Not null while a message is being received.
+    ByteBuffer staging = null;
+    //A write failed. The rest of the message is thrown away.
+    boolean isSaveFailed = false;
+    //The staging buffer holds the start of the message
+    boolean isFirstStaging = false;
+    //Parsed from the start of the message once staged
+    MessageHeaders headers = null;
+    DataScanner dataScanner = new DataScanner();
+    //Copies the unstuffed DATA bytes into the staging buffer
+    private final WritableByteChannel stagingSink = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int sz = src.remaining();
+
+            staging.put(src);
+
+            return sz;
+        }
 
-    public SMTPState() {
-        in = ByteBuffer.allocate(256);
-        out = ByteBuffer.allocate(256);
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
 
-        out.flip(); //Ready to write to
+        @Override
+        public void close() {
+        }
+    };
+    boolean isLineTooLong = false;
+    //Bytes of the current BDAT chunk yet to be received
+    long chunkRemaining = 0;
+    boolean isLastChunk = false;
+    //Sum of the BDAT chunk sizes of the message so far
+    long chunkedSize = 0;
+    //The BDAT chunk being received takes the message over the
+    //size cap. It's read and thrown away.
+    boolean isTooLarge = false;
+    //The envelope of the message. Handed to the MessageDispatcher.
+    String mailFrom = "";
+    List<String> recipients = new ArrayList<>();
+
+    public SMTPState(ServerContext context) {
+        this.context = context;
+        //Large enough to queue up the replies
+        //to a batch of pipelined commands
+        outSize = 1024;
     }
 
     @Override
-    public void onAccept(SelectionKey key) throws IOException {
+    public void onAccept(Connection conn) throws IOException {
         state = SMTPParseState.STATE_READ_CMD;
 
-        sendReply(key, "220 example.com\r\n");
+        sendReply(conn, "220 example.com\r\n");
     }
 
 
     @Override
-    public void onReadAvailable(SelectionKey key) throws IOException {
-        SocketChannel client = (SocketChannel) key.channel();
+    public void onReadAvailable(Connection conn) throws IOException {
+        if (state == SMTPParseState.STATE_READ_BDAT && (in == null || in.position() == 0)) {
+            //The chunk size is known. Read the bytes 
+            //straight into the staging buffer.
+            onReadChunk(conn);
+
+            return;
+        }
 
         int sz = 0;
 
+        acquireIn();
+
         try {
             //sz will be -1 for a graceful disconnect by client
-            sz = client.read(in);
+            sz = conn.read(in);
         } catch (SocketException e) {
             //Ungraceful disconnect by client
             sz = -1;
@@ -52,145 +116,762 @@ public class SMTPState extends BaseState implements EventListener {
         //This will deal with both graceful and
         //ungraceful disconnect by client
         if (sz < 0) {
-            System.out.println("Client disconnected.");
-
-            client.close();
-            key.cancel();
+            onDisconnect(conn);
 
             return;
         } else if (sz == 0) {
             //Nothing's read
+            releaseIn();
+
             return;
         }
 
+        //Get ready to read from the buffer
+        in.flip();
+
+        processInput(conn);
+
+        //Keep any partial line at the beginning of
+        //the buffer and read after it next time
+        in.compact();
+
+        releaseIdleBuffers();
+    }
+
+    private void onReadChunk(Connection conn) throws IOException {
+        int limit = staging.limit();
+        int sz = 0;
+
+        staging.limit((int) Math.min(limit, staging.position() + chunkRemaining));
+
+        try {
+            sz = conn.read(staging);
+        } catch (SocketException e) {
+            sz = -1;
+        }
+
+        staging.limit(limit);
+
+        if (sz < 0) {
+            onDisconnect(conn);
+
+            return;
+        }
+
+        chunkRemaining -= sz;
+
+        if (chunkRemaining == 0) {
+            onEndOfChunk(conn);
+        } else if (!staging.hasRemaining()) {
+            flushStaging(conn);
+        }
+    }
+
+    private void onDisconnect(Connection conn) throws IOException {
+        Log.debug("Client disconnected.");
+
+        conn.close();
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return getTimeoutMillis(context.getSmtpLimits(), 
+            state == SMTPParseState.STATE_READ_DATA || state == SMTPParseState.STATE_READ_BDAT);
+    }
+
+    @Override
+    public void onTimeout(Connection conn) throws IOException {
+        closeWithReply(conn, "421 4.4.2 example.com Timeout, closing connection\r\n");
+    }
+
+    @Override
+    public void onClose(Connection conn) {
+        isClosed = true;
+
+        abortMessage();
+        releaseBuffers();
+    }
+
+    /**
+     * Gives back the buffers that hold nothing. The in buffer is kept 
+     * during a mail transaction since more data is sure to follow.
+     */
+    private void releaseIdleBuffers() {
         if (state == SMTPParseState.STATE_READ_CMD) {
-            //Note: Above read() moves position after the last
-            //valid byte. It doesn't change limit.
-            if (in.get(in.position() - 1) == '\n') {
-                //Done reading line. Flipping makes the whole
-                //buffer ready to read from.
-                in.flip();
+            releaseIn();
+        }
+
+        releaseOut();
+    }
+
+    /**
+     * <p>Handles every complete command line and any DATA in the in buffer. 
+     * Clients using PIPELINING (RFC 2920) may send many commands in one go.
+     * The replies are queued up in the out buffer and written together.</p>
+     * 
+     * <p>Processing stops if the out buffer gets too full to take another
+     * reply. Reading is paused then. The rest of the commands are 
+     * processed once the queued replies are written. The same happens
+     * while the message is being written to disk.</p>
+     */
+    private void processInput(Connection conn) throws IOException {
+        while (in.hasRemaining()) {
+            if (isDiskBusy) {
+                //Replies must go out in order. Leave the
+                //pipelined commands till the disk is done.
+                return;
+            } else if (state == SMTPParseState.STATE_READ_DATA) {
+                if (staging.remaining() <= in.remaining()) {
+                    //Unstuffing may add a held back \r. Make sure
+                    //there's room for all that was read and more.
+                    //Goes on once written. At once if the message is
+                    //thrown away.
+                    flushStaging(conn);
+
+                    continue;
+                }
+
+                //Save the data till the end of data 
+                //marker: \r\n.\r\n
+                boolean isEndOfData = dataScanner.scan(in, stagingSink);
+
+                if (isEndOfData) {
+                    finishMessage(conn);
+                }
+            } else if (state == SMTPParseState.STATE_READ_BDAT) {
+                //Save the part of the chunk that was read
+                //along with the command
+                int limit = in.limit();
+                int sz = (int) Math.min(Math.min(in.remaining(), chunkRemaining), staging.remaining());
+
+                in.limit(in.position() + sz);
+                staging.put(in);
+                in.limit(limit);
+                chunkRemaining -= sz;
+
+                if (chunkRemaining == 0) {
+                    onEndOfChunk(conn);
+                } else if (!staging.hasRemaining()) {
+                    flushStaging(conn);
+                }
+            } else {
+                if (!hasReplyRoom()) {
+                    //Wait for the replies to go out
+                    conn.interestOps(Connection.OP_WRITE);
+
+                    return;
+                }
+
+                int lineEnd = findLineEnd();
 
-                System.out.print("CLI: ");
-                BaseState.print(in);
+                if (lineEnd < 0) {
+                    if (in.remaining() == in.capacity()) {
+                        //The buffer is full and still no line end
+                        in.position(in.limit());
+
+                        if (!isLineTooLong) {
+                            isLineTooLong = true;
+
+                            sendReply(conn, "500 Line too long\r\n");
+                        }
+                    }
+
+                    //Wait for the rest of the line
+                    return;
+                }
+
+                if (isLineTooLong) {
+                    //Skip the end of the long line
+                    isLineTooLong = false;
+                    in.position(lineEnd + 1);
+
+                    continue;
+                }
 
-                onCommand(key);
+                //Only let the command see its own line
+                int limit = in.limit();
 
-                //Start reading into the beginning of buffer
-                in.clear();
+                in.limit(lineEnd + 1);
+
+                if (Log.isTraceEnabled()) {
+                    Log.trace("CLI: %s", toAscii(in));
+                }
+
+                int command = parseCommand();
+                var commandTimes = context.getMetrics().getSmtp().commandTimes(command);
+                long start = System.nanoTime();
+
+                onCommand(conn, command);
+                commandTimes.record(System.nanoTime() - start);
+
+                in.limit(limit);
+                in.position(lineEnd + 1);
             }
-        } else if (state == SMTPParseState.STATE_READ_DATA) {
-            in.flip();
+        }
+    }
+
+    /**
+     * Creates the message in the store and then carries on.
+     * If it can't be created the message is still received 
+     * and failed at the end.
+     */
+    private void openMailFile(Connection conn, Connection.Task then) throws IOException {
+        //The recipients may differ only in case
+        var mailboxes = recipients.stream().map(Mailboxes::nameOf).distinct().toList();
 
-            saveFileChannel.write(in);
+        if (mailboxes.isEmpty()) {
+            //BDAT before RCPT. Read the chunks and fail at the end.
+            isSaveFailed = true;
+            isFirstStaging = true;
+            staging = context.getBufferPool().acquire(STAGING_SIZE);
 
-            //See if we received the end of the 
-            //mail file message: \r\n.\r\n
+            then.run();
 
-            //Add up to last 5 bytes of the data into the queue
-            boolean isEndOfData = false;
-            int start = Math.max(0, in.limit() - 5);
-            
-            for (int i = start; i < in.limit(); ++i) {
-                //Add to the fixed length queue
-                msgEnd.add(in.get(i));
+            return;
+        }
+
+        var store = context.getStore();
+
+        offload(conn, () -> store.create(mailboxes), (draft, error) -> {
+            if (error != null) {
+                Log.error("Failed to create message: %s", error.getMessage());
             }
 
-            if (msgEnd.size() == 5) {
-                byte[] endBytes = {'\r', '\n', '.', '\r', '\n'};
-                int i = 0;
+            this.draft = draft;
+            isSaveFailed = draft == null;
+            isFirstStaging = true;
+            staging = context.getBufferPool().acquire(STAGING_SIZE);
 
-                for (var b : msgEnd) {
-                    isEndOfData = b == endBytes[i++];
+            then.run();
+        }, draft -> {
+            if (draft != null) {
+                context.getDiskExecutor().execute(draft::abort);
+            }
+        });
+    }
 
-                    if (!isEndOfData) {
-                        break;
-                    }
+    /**
+     * Writes out the staged bytes. Input is processed again 
+     * once the staging buffer is empty. If the message can't be
+     * saved the bytes are dropped and the connection isn't paused.
+     */
+    private void flushStaging(Connection conn) {
+        if (isSaveFailed) {
+            //Nowhere to write
+            staging.clear();
+
+            return;
+        }
+
+        var draft = this.draft;
+        var staging = this.staging;
+        var isFirstStaging = this.isFirstStaging;
+
+        this.isFirstStaging = false;
+        staging.flip();
+
+        offload(conn, () -> {
+            //Parsed here to keep it off the connection's thread
+            var parsed = isFirstStaging ? MessageHeaders.parse(staging) : null;
+
+            writeFully(draft.getChannel(), staging);
+
+            return parsed;
+        }, (parsed, error) -> {
+            if (error != null) {
+                Log.error("Failed to write message: %s", error.getMessage());
+
+                isSaveFailed = true;
+            }
+
+            if (parsed != null) {
+                headers = parsed;
+            }
+
+            staging.clear();
+        }, parsed -> abortMessage());
+    }
+
+    private static void writeFully(WritableByteChannel file, ByteBuffer buff) throws IOException {
+        while (buff.hasRemaining()) {
+            file.write(buff);
+        }
+    }
+
+    /**
+     * Throws away a partly received message. Left to the disk work
+     * if there's any going on.
+     */
+    private void abortMessage() {
+        if (isDiskBusy) {
+            //The disk thread still has the draft
+            return;
+        }
+
+        if (draft != null) {
+            context.getDiskExecutor().execute(draft::abort);
+
+            draft = null;
+        }
+
+        if (staging != null) {
+            context.getBufferPool().release(staging);
+
+            staging = null;
+        }
+
+        headers = null;
+    }
+
+    /**
+     * Stores the message once it is wholly received and
+     * replies to the client. How it is fsynced depends on the 
+     * configured {@link Durability}. The disk work is done by the
+     * {@link DiskExecutor} except for a group commit which is 
+     * done by the {@link GroupCommitter}.
+     */
+    private void finishMessage(Connection conn) throws IOException {
+        Log.debug("Closing mail file.");
+
+        var draft = this.draft;
+        var staging = this.staging;
+        var isSaveFailed = this.isSaveFailed;
+        var durability = context.getDurability();
+        var mailboxes = context.getMailboxes();
+        var fsyncTimes = context.getMetrics().getFsyncTimes();
+        Boolean hasDotLines = null;
+        TopIndex topIndex = null;
+
+        if (state == SMTPParseState.STATE_READ_DATA) {
+            hasDotLines = dataScanner.hasDotLines();
+            topIndex = dataScanner.getTopIndex();
+        }
+
+        var needsDotStuffing = hasDotLines;
+        var top = topIndex;
+        var headers = this.headers;
+        var isFirstStaging = this.isFirstStaging;
+        var dispatcher = context.getDispatcher();
+        var from = mailFrom;
+        var rcpts = recipients;
+
+        this.draft = null;
+        this.mailFrom = "";
+        this.recipients = new ArrayList<>();
+        this.staging = null;
+        this.isSaveFailed = false;
+        this.headers = null;
+        this.isFirstStaging = false;
+        this.chunkedSize = 0;
+        state = SMTPParseState.STATE_READ_CMD;
+
+        if (rcpts.isEmpty()) {
+            //BDAT before RCPT. Nothing was saved.
+            if (draft != null) {
+                context.getDiskExecutor().execute(draft::abort);
+            }
+
+            context.getBufferPool().release(staging);
+            sendReply(conn, "554 No valid recipients\r\n");
+
+            return;
+        }
+
+        offload(conn, () -> {
+            if (isSaveFailed) {
+                if (draft != null) {
+                    draft.abort();
                 }
+
+                throw new IOException("Message could not be saved");
             }
 
-            if (isEndOfData) {
-                System.out.printf("Closing mail file.\n");
+            try {
+                staging.flip();
+
+                //The whole message fit in the staging buffer
+                var parsed = isFirstStaging ? MessageHeaders.parse(staging) : headers;
 
-                //fsync the data into disk
-                saveFileChannel.force(true);
+                writeFully(draft.getChannel(), staging);
 
-                //Truncate the file to get rid of
-                //".\r\n".
-                saveFile.setLength(saveFile.length() - 3);
+                var msg = draft.finish();
 
-                saveFileChannel.close();
-                saveFile.close();
-                saveFileChannel = null;
-                saveFile = null;
+                msg.setNeedsDotStuffing(needsDotStuffing);
+                msg.setTopIndex(top);
+                msg.setHeaders(parsed);
 
-                state = SMTPParseState.STATE_READ_CMD;
+                if (durability == Durability.GROUP) {
+                    return msg;
+                }
 
-                //Start reading into the beginning of buffer
-                in.clear();
+                if (durability == Durability.SYNC) {
+                    //fsync the data into disk
+                    long start = System.nanoTime();
 
-                sendReply(key, "250 Ok\r\n");
-            } else {
-                //More DATA available.
-                //Start reading into the beginning of buffer
-                in.clear();
+                    draft.force();
+                    fsyncTimes.record(System.nanoTime() - start);
+                }
+
+                //Make the complete message visible
+                draft.publish();
+                mailboxes.add(msg);
+
+                return msg;
+            } catch (IOException e) {
+                draft.abort();
+
+                throw e;
+            }
+        }, (msg, error) -> {
+            context.getBufferPool().release(staging);
+
+            if (error != null) {
+                Log.error("Failed to save message: %s", error.getMessage());
+
+                sendReply(conn, "451 Local error in processing\r\n");
+
+                return;
             }
+
+            if (durability == Durability.GROUP) {
+                //Hold back the reply and any pipelined
+                //commands till the flusher is done.
+                pause(conn);
+
+                context.getCommitter().commit(draft, success -> {
+                    if (success) {
+                        mailboxes.add(msg);
+                        dispatcher.publish(msg, from, rcpts);
+                    }
+
+                    conn.execute(() -> onCommitted(conn, success));
+                });
+
+                return;
+            }
+
+            dispatcher.publish(msg, from, rcpts);
+            sendReply(conn, "250 Ok\r\n");
+        }, msg -> {
+            context.getBufferPool().release(staging);
+
+            if (msg != null && durability == Durability.GROUP) {
+                //Never committed. The client was not told it's saved.
+                context.getDiskExecutor().execute(draft::abort);
+            }
+        });
+    }
+
+    private void onCommitted(Connection conn, boolean success) throws IOException {
+        unpause(conn);
+
+        if (success) {
+            sendReply(conn, "250 Ok\r\n");
+        } else {
+            sendReply(conn, "451 Local error in processing\r\n");
+        }
+
+        onResume(conn);
+    }
+
+    @Override
+    protected void onResume(Connection conn) throws IOException {
+        if (in != null && in.position() > 0) {
+            //Pipelined commands or message 
+            //bytes were held back
+            in.flip();
+
+            processInput(conn);
+
+            in.compact();
+        }
+
+        releaseIdleBuffers();
+    }
+
+    private void onEndOfChunk(Connection conn) throws IOException {
+        if (isTooLarge) {
+            dropMessage();
+            sendReply(conn, "552 5.3.4 Message size exceeds fixed limit\r\n");
+
+            return;
+        }
+
+        if (isLastChunk) {
+            finishMessage(conn);
+
+            return;
+        }
+
+        state = SMTPParseState.STATE_READ_CMD;
+
+        sendReply(conn, "250 Ok\r\n");
+    }
+
+    private void onCommand(Connection conn, int command) throws IOException {
+        var handler = COMMANDS.get(command);
+
+        if (handler == null) {
+            Log.debug("Unknown command");
+            sendReply(conn,  "250 Ok\r\n");
+
+            return;
+        }
+
+        try {
+            handler.handle(this, conn);
+        } catch (NumberFormatException e) {
+            sendReply(conn, "501 Syntax error\r\n");
+        }
+    }
+
+    private void onHelo(Connection conn) throws IOException {
+        sendReply(conn, "250 Ok\r\n");
+    }
+
+    private void onEhlo(Connection conn) throws IOException {
+        sendReply(conn, "250-dev-smtp\r\n250-8BITMIME\r\n250-PIPELINING\r\n250-CHUNKING\r\n250-AUTH LOGIN\r\n250 Ok\r\n");
+    }
+
+    private void onMail(Connection conn) throws IOException {
+        if (!skipKeyword("FROM:")) {
+            sendReply(conn, "501 Syntax error\r\n");
+
+            return;
+        }
+
+        if (staging != null || draft != null) {
+            //Between BDAT chunks. The draft would be left behind.
+            sendReply(conn, "503 Bad sequence of commands\r\n");
+
+            return;
+        }
+
+        //A new transaction
+        mailFrom = parseAddress();
+        recipients.clear();
+
+        sendReply(conn,  "250 Ok\r\n");
+    }
+
+    private void onRcpt(Connection conn) throws IOException {
+        if (!skipKeyword("TO:")) {
+            sendReply(conn, "501 Syntax error\r\n");
+
+            return;
+        }
+
+        var address = parseAddress();
+
+        if (address.isBlank()) {
+            sendReply(conn, "501 Syntax error\r\n");
+
+            return;
         }
+
+        //Delivered to the mailbox of each
+        recipients.add(address);
+
+        sendReply(conn,  "250 Ok\r\n");
     }
 
-    private void onCommand(SelectionKey key) throws IOException {
-        if (isCommand("HELLO")) {
-            sendReply(key, "250 Ok\r\n");
-        } else if (isCommand("QUIT")) {
-            sendReply(key, "221 Bye\r\n");
-        } else if (isCommand("EHLO")) {
-            sendReply(key, "250-dev-smtp\r\n250-8BITMIME\r\n250-AUTH LOGIN\r\n250 Ok\r\n");
-        } else if (isCommand("MAIL FROM:")) {
-            sendReply(key,  "250 Ok\r\n");
-        } else if (isCommand("RCPT TO:")) {
-            sendReply(key,  "250 Ok\r\n");
-        } else if (isCommand("DATA")) {
-            sendReply(key,  "354 Send message, end with a \".\" on a line by itself\r\n");
+    /**
+     * Parses the path after MAIL FROM: or RCPT TO:. The angle brackets
+     * are dropped. Parameters after the path are ignored.
+     */
+    private String parseAddress() {
+        int pos = in.position();
+        int end = in.limit();
+
+        while (pos < end && in.get(pos) == ' ') {
+            ++pos;
+        }
+
+        int stop = ' ';
+
+        if (pos < end && in.get(pos) == '<') {
+            ++pos;
+            stop = '>';
+        }
+
+        int start = pos;
+
+        while (pos < end && in.get(pos) != stop) {
+            ++pos;
+        }
+
+        var bytes = new byte[pos - start];
+
+        in.get(start, bytes);
+
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private void onData(Connection conn) throws IOException {
+        if (staging != null) {
+            //BDAT and DATA can't be mixed
+            sendReply(conn, "503 Bad sequence of commands\r\n");
+
+            return;
+        }
 
-            var fileName = String.format("mail/%d.eml", System.nanoTime());
+        if (recipients.isEmpty()) {
+            sendReply(conn, "554 No valid recipients\r\n");
 
-            System.out.printf("Saving mail to: %s\n", fileName);
+            return;
+        }
 
-            saveFile = new RandomAccessFile(fileName, "rw");
-            saveFileChannel = saveFile.getChannel();
-            msgEnd.clear();
+        openMailFile(conn, () -> {
+            dataScanner.reset();
             state = SMTPParseState.STATE_READ_DATA;
-        } else if (isCommand("QUIT")) {
-            sendReply(key, "221 Bye\r\n");
-        } else {
-            System.out.println("Unknown command");
-            sendReply(key,  "250 Ok\r\n");
+
+            sendReply(conn,  "354 Send message, end with a \".\" on a line by itself\r\n");
+        });
+    }
+
+    /**
+     * <p>RFC 3030 CHUNKING: BDAT &lt;size&gt; [LAST]</p>
+     * 
+     * <p>A chunk that takes the message over the size cap of 
+     * {@link ProtocolLimits} is still read, so that the next command
+     * can be found. It's thrown away along with the rest of the
+     * message.</p>
+     */
+    private void onBdat(Connection conn) throws IOException {
+        long size = parseSize();
+
+        while (in.hasRemaining() && in.get(in.position()) == ' ') {
+            in.get();
+        }
+
+        isLastChunk = skipKeyword("LAST");
+
+        if (size < 0 || in.hasRemaining()) {
+            //Where the chunk ends is not known. Nor is 
+            //where the next command starts.
+            dropMessage();
+            sendReply(conn, "501 Invalid chunk size\r\n");
+
+            return;
+        }
+
+        chunkRemaining = size;
+
+        if (size > context.getSmtpLimits().getMaxMessageSize() - chunkedSize) {
+            isTooLarge = true;
+            isSaveFailed = true;
+
+            if (staging == null) {
+                //Only read to be thrown away
+                staging = context.getBufferPool().acquire(STAGING_SIZE);
+            }
+
+            onStartOfChunk(conn);
+
+            return;
+        }
+
+        chunkedSize += size;
+
+        if (staging == null) {
+            //First chunk of the message
+            openMailFile(conn, () -> onStartOfChunk(conn));
+
+            return;
+        }
+
+        onStartOfChunk(conn);
+    }
+
+    /**
+     * Parses the chunk size of BDAT. Only digits are allowed.
+     * 
+     * @return -1 if it's missing, not a number or too big for a long.
+     */
+    private long parseSize() {
+        int start = in.position();
+        int pos = start;
+        long size = 0;
+
+        for (; pos < in.limit() && in.get(pos) != ' '; ++pos) {
+            int digit = in.get(pos) - '0';
+
+            if (digit < 0 || digit > 9 || size > (Long.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+
+            size = size * 10 + digit;
+        }
+
+        in.position(pos);
+
+        return pos == start ? -1 : size;
+    }
+
+    /**
+     * Ends the mail transaction without saving the message.
+     */
+    private void dropMessage() {
+        abortMessage();
+
+        isSaveFailed = false;
+        isFirstStaging = false;
+        isTooLarge = false;
+        chunkedSize = 0;
+        mailFrom = "";
+        recipients.clear();
+        state = SMTPParseState.STATE_READ_CMD;
+    }
+
+    private void onStartOfChunk(Connection conn) throws IOException {
+        state = SMTPParseState.STATE_READ_BDAT;
+
+        if (chunkRemaining == 0) {
+            onEndOfChunk(conn);
         }
     }
 
+    private void onQuit(Connection conn) throws IOException {
+        sendReply(conn, "221 Bye\r\n");
+    }
+
     @Override
-    public void onWritePossible(SelectionKey key) throws IOException {
-        if (out.hasRemaining()) {
-            SocketChannel client = (SocketChannel) key.channel();
+    public void onWritePossible(Connection conn) throws IOException {
+        if (out != null && out.hasRemaining()) {
             int sz = 0;
 
             try {
-                sz = client.write(out);
+                sz = conn.write(out);
             } catch (Exception e) {
                 sz = -1;
             }
 
             if (sz < 0) {
-                System.out.println("Client disconnected.");
-
-                client.close();
-                key.cancel();
+                onDisconnect(conn);
     
                 return;    
             }
+        } else if (isDiskBusy) {
+            //Nothing more to do till the disk is done
+            conn.interestOps(0);
+
+            releaseOut();
         } else {
             //We are done writing
-            key.interestOps(SelectionKey.OP_READ);
+            conn.interestOps(Connection.OP_READ);
+
+            releaseOut();
+
+            if (in != null && in.position() > 0) {
+                //Pipelined commands are waiting
+                in.flip();
+
+                processInput(conn);
+
+                in.compact();
+            }
+
+            releaseIdleBuffers();
         }
     }
 }
@@ -0,0 +1,810 @@
+package com.mobiarch;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Appends messages to large segment files in mail/segments instead of
+ * creating a file per message. Saving a message needs no file creation,
+ * rename or directory sync. A message is found by its segment and
+ * offset, kept in its {@link MessageInfo}. RETR sends it with a
+ * positional transferTo from the segment.</p>
+ *
+ * <p>Each message is a record: a header, the envelope and the body as
+ * received. The header holds:</p>
+ * <ul>
+ * <li>Magic number (int)</li>
+ * <li>Flags (int). Set to deleted once deleted from every mailbox.</li>
+ * <li>Message id (long)</li>
+ * <li>Body length (long)</li>
+ * <li>CRC32 of the id, length and envelope size (int)</li>
+ * <li>Envelope size (int). 0 for records of older versions.</li>
+ * </ul>
+ *
+ * <p>The envelope lists the mailboxes the message was delivered to.
+ * A message is stored once however many mailboxes it's in. The
+ * envelope holds:</p>
+ * <ul>
+ * <li>Mailbox count (int)</li>
+ * <li>A bit per mailbox, set once deleted from it. Bit i of byte i / 8.</li>
+ * <li>The name of each mailbox: UTF-8 length (short) and bytes</li>
+ * </ul>
+ *
+ * <p>A segment that takes appends is held by one draft at a time. So
+ * concurrent messages never interleave and need no locking. A segment is
+ * sealed once it grows past 64MB. A sealed segment that is less than half
+ * live is compacted in the background: the live records are copied to
+ * another segment and the old one is removed once no reader has it open.</p>
+ *
+ * <p>At start up the segments are scanned to rebuild the mailboxes. A
+ * segment is cut short at the first record that is not complete. Records
+ * of older versions have no envelope. They are in no mailbox and are
+ * left to compaction.</p>
+ */
+public class SegmentStore implements MessageStore {
+    private static final int MAGIC = 0x444D5347;
+    private static final int HEADER_SIZE = 32;
+    private static final int FLAG_DELETED = 1;
+    //By default a segment takes no more appends once it grows past this
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    //A sealed segment is compacted when less of it than this is live
+    private static final double MIN_LIVE_RATIO = 0.5;
+
+    /**
+     * Where the record and the body of a message start.
+     */
+    public static final class Location {
+        final Segment segment;
+        final long recordStart;
+        final long offset;
+
+        Location(Segment segment, long recordStart, long offset) {
+            this.segment = segment;
+            this.recordStart = recordStart;
+            this.offset = offset;
+        }
+    }
+
+    static final class Segment {
+        final int number;
+        final Path path;
+        final FileChannel channel;
+        //Offset after the last complete record
+        volatile long end = 0;
+        //Offset up to which the file is known to be durable
+        volatile long durableEnd = 0;
+        //Bytes taken by the records not deleted
+        final AtomicLong liveBytes = new AtomicLong();
+        volatile boolean sealed = false;
+        final AtomicBoolean compacting = new AtomicBoolean();
+        //One for the store and one for each open reader
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Segment(int number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        /**
+         * Keeps the segment from being removed.
+         *
+         * @return false if it's already removed.
+         */
+        boolean acquire() {
+            while (true) {
+                int count = refs.get();
+
+                if (count == 0) {
+                    return false;
+                }
+
+                if (refs.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Removes the file once the last reference is gone.
+         */
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    Log.warn("Failed to remove segment %s: %s", path, e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Makes the segment durable at least up to an offset. A single
+         * force covers all the messages completed before it.
+         */
+        void force(long upTo) throws IOException {
+            if (durableEnd >= upTo) {
+                return;
+            }
+
+            synchronized (this) {
+                if (durableEnd >= upTo) {
+                    //Forced along with a later message
+                    return;
+                }
+
+                long target = end;
+
+                channel.force(true);
+
+                durableEnd = target;
+            }
+        }
+    }
+
+    private class SegmentDraft implements Draft {
+        private final Segment segment;
+        private final long recordStart;
+        private final List<String> names;
+        private final int envelopeSize;
+        private MessageInfo msg = null;
+
+        SegmentDraft(List<String> names) throws IOException {
+            var envelope = encodeEnvelope(names);
+
+            this.names = names;
+            envelopeSize = envelope.remaining();
+            segment = takeSegment();
+            recordStart = segment.end;
+
+            try {
+                //The header is written once the length is known
+                writeFully(segment.channel, envelope, recordStart + HEADER_SIZE);
+                segment.channel.position(recordStart + HEADER_SIZE + envelopeSize);
+            } catch (IOException e) {
+                returnSegment(segment);
+
+                throw e;
+            }
+        }
+
+        @Override
+        public FileChannel getChannel() {
+            return segment.channel;
+        }
+
+        @Override
+        public MessageInfo finish() throws IOException {
+            long dataEnd = segment.channel.position();
+            long offset = recordStart + HEADER_SIZE + envelopeSize;
+            long length = dataEnd - offset;
+            long id = nextId();
+
+            writeHeader(segment, recordStart, id, length, envelopeSize);
+
+            msg = new MessageInfo(Long.toString(id), length,
+                new Location(segment, recordStart, offset), names);
+
+            //Known to the store so that compaction keeps it.
+            //Not in the mailboxes till published.
+            messages.put(msg.getId(), msg);
+
+            segment.end = dataEnd;
+            segment.liveBytes.addAndGet(dataEnd - recordStart);
+
+            returnSegment(segment);
+
+            return msg;
+        }
+
+        @Override
+        public void force() throws IOException {
+            segment.force(msg.getLocation().offset + msg.getSize());
+        }
+
+        @Override
+        public void publish() {
+            //The record is complete once finished
+        }
+
+        @Override
+        public void abort() {
+            if (msg == null) {
+                //The next record overwrites what was written
+                returnSegment(segment);
+            } else {
+                synchronized (SegmentStore.this) {
+                    remove(msg);
+                }
+            }
+        }
+    }
+
+    private final Path dir;
+    private final long segmentSize;
+    //Segments that take appends and are not held by a draft
+    private final ConcurrentLinkedQueue<Segment> appendable = new ConcurrentLinkedQueue<>();
+    //All the segments by number
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    //Messages not deleted by id
+    private final Map<String, MessageInfo> messages = new ConcurrentHashMap<>();
+    private final AtomicInteger nextNumber = new AtomicInteger(1);
+    private final AtomicLong lastId = new AtomicLong();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "devmail-compactor");
+
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    /**
+     * @param mailDir The segments are kept in its "segments" sub directory.
+     */
+    public SegmentStore(Path mailDir) throws IOException {
+        this(mailDir, SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize A segment is sealed once it grows past this.
+     * Small ones let the tests seal and compact segments quickly.
+     */
+    SegmentStore(Path mailDir, long segmentSize) throws IOException {
+        this.dir = mailDir.resolve("segments");
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(dir);
+    }
+
+    @Override
+    public void load(Mailboxes mailboxes) throws IOException {
+        var loaded = new ArrayList<MessageInfo>();
+        int unrouted = 0;
+
+        try (var paths = Files.list(dir)) {
+            var sorted = paths
+                .filter(p -> p.getFileName().toString().endsWith(".seg"))
+                .sorted()
+                .toList();
+
+            for (var path : sorted) {
+                var name = path.getFileName().toString();
+                int number = Integer.parseInt(name.substring(0, name.length() - 4));
+                var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                var segment = new Segment(number, path, channel);
+
+                segments.put(number, segment);
+                nextNumber.set(Math.max(nextNumber.get(), number + 1));
+
+                unrouted += scan(segment, loaded);
+            }
+        }
+
+        //Compaction moves messages around. The ids give the order they arrived in.
+        loaded.sort(Comparator.comparingLong(msg -> Long.parseLong(msg.getId())));
+
+        for (var msg : loaded) {
+            mailboxes.add(msg);
+        }
+
+        if (unrouted > 0) {
+            Log.warn("%d message(s) saved by an older version are in no mailbox", unrouted);
+        }
+
+        Log.info("Loaded %d message(s) from %d segment(s)", messages.size(), segments.size());
+    }
+
+    /**
+     * Reads the record headers of a segment and collects
+     * the live messages.
+     * 
+     * @return The number of live records with no envelope.
+     */
+    private int scan(Segment segment, List<MessageInfo> loaded) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        long size = segment.channel.size();
+        long position = 0;
+        int unrouted = 0;
+
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+
+            int magic = header.getInt(0);
+            int flags = header.getInt(4);
+            long id = header.getLong(8);
+            long length = header.getLong(16);
+            int crc = header.getInt(24);
+            int envelopeSize = header.getInt(28);
+            long offset = position + HEADER_SIZE + envelopeSize;
+
+            if (magic != MAGIC || crc != checksum(id, length, envelopeSize) || length < 0
+                || envelopeSize < 0 || offset + length > size) {
+                //A message was being written
+                break;
+            }
+
+            long next = offset + length;
+
+            lastId.set(Math.max(lastId.get(), id));
+
+            if ((flags & FLAG_DELETED) == 0) {
+                var key = Long.toString(id);
+
+                if (envelopeSize == 0) {
+                    //Not delivered to any mailbox
+                    ++unrouted;
+                } else if (messages.containsKey(key)) {
+                    //A copy left by a compaction that did not complete
+                    setDeleted(segment, position);
+                } else {
+                    var msg = readEnvelope(segment, position, envelopeSize, key, length);
+
+                    if (msg.isLinked()) {
+                        //For the header index
+                        msg.setHeaders(MessageHeaders.read(segment.channel, offset, length));
+                        messages.put(key, msg);
+                        loaded.add(msg);
+                        segment.liveBytes.addAndGet(next - position);
+                    } else {
+                        //Deleted from the last mailbox before the flag was set
+                        setDeleted(segment, position);
+                    }
+                }
+            }
+
+            position = next;
+        }
+
+        if (position < size) {
+            Log.warn("Truncating segment %s at %d", segment.path, position);
+
+            segment.channel.truncate(position);
+        }
+
+        segment.end = position;
+        segment.durableEnd = position;
+
+        returnSegment(segment);
+
+        return unrouted;
+    }
+
+    /**
+     * Reads the envelope of a record and makes the message of it.
+     */
+    private static MessageInfo readEnvelope(Segment segment, long recordStart, int envelopeSize, 
+        String id, long length) throws IOException {
+        var envelope = ByteBuffer.allocate(envelopeSize);
+
+        readFully(segment.channel, envelope, recordStart + HEADER_SIZE);
+        envelope.flip();
+
+        int count = envelope.getInt();
+        var unlinked = new byte[(count + 7) / 8];
+        var names = new ArrayList<String>(count);
+
+        envelope.get(unlinked);
+
+        for (int i = 0; i < count; ++i) {
+            var name = new byte[envelope.getShort()];
+
+            envelope.get(name);
+            names.add(new String(name, StandardCharsets.UTF_8));
+        }
+
+        var msg = new MessageInfo(id, length, 
+            new Location(segment, recordStart, recordStart + HEADER_SIZE + envelopeSize), names);
+
+        for (int i = 0; i < count; ++i) {
+            if ((unlinked[i / 8] & (1 << (i % 8))) != 0) {
+                msg.unlink(i);
+            }
+        }
+
+        return msg;
+    }
+
+    private static ByteBuffer encodeEnvelope(List<String> names) {
+        var encoded = new ArrayList<byte[]>(names.size());
+        int size = 4 + (names.size() + 7) / 8;
+
+        for (var name : names) {
+            var bytes = name.getBytes(StandardCharsets.UTF_8);
+
+            encoded.add(bytes);
+            size += 2 + bytes.length;
+        }
+
+        var envelope = ByteBuffer.allocate(size);
+
+        envelope.putInt(names.size());
+        //None deleted yet
+        envelope.position(envelope.position() + (names.size() + 7) / 8);
+
+        for (var bytes : encoded) {
+            envelope.putShort((short) bytes.length).put(bytes);
+        }
+
+        return envelope.flip();
+    }
+
+    @Override
+    public Draft create(List<String> mailboxes) throws IOException {
+        return new SegmentDraft(mailboxes);
+    }
+
+    @Override
+    public MessageBody open(MessageInfo msg) throws IOException {
+        if (msg.getFile() != null) {
+            //Dropped into a mailbox directory by someone else
+            return FileStore.openFile(msg);
+        }
+
+        while (true) {
+            var location = msg.getLocation();
+            var segment = location.segment;
+
+            if (segment.acquire()) {
+                return new MessageBody(segment.channel, location.offset, msg.getSize(), segment::release);
+            }
+
+            if (location == msg.getLocation()) {
+                //Deleted and compacted away
+                throw new NoSuchFileException(msg.getId());
+            }
+
+            //Moved by compaction. Try the new location.
+        }
+    }
+
+    @Override
+    public void delete(MessageInfo msg, String mailbox) {
+        if (msg.getFile() != null) {
+            FileStore.deleteFile(msg, mailbox);
+
+            return;
+        }
+
+        //Keeps compaction from moving the message at the same time
+        synchronized (this) {
+            if (msg.unlink(mailbox) < 0 || messages.get(msg.getId()) != msg) {
+                return;
+            }
+
+            if (!msg.isLinked()) {
+                //Gone from the last mailbox
+                remove(msg);
+
+                return;
+            }
+
+            try {
+                writeUnlinked(msg.getLocation(), msg);
+            } catch (IOException e) {
+                Log.error("Failed to delete message in %s: %s", 
+                    msg.getLocation().segment.path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Removes a message from the store. Must hold the lock.
+     */
+    private void remove(MessageInfo msg) {
+        if (messages.remove(msg.getId()) == null) {
+            return;
+        }
+
+        var location = msg.getLocation();
+
+        discard(location.segment, location.recordStart, recordLength(location, msg));
+    }
+
+    private static long recordLength(Location location, MessageInfo msg) {
+        return location.offset - location.recordStart + msg.getSize();
+    }
+
+    @Override
+    public void sync() {
+        //Segment files are synced into the directory when created
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+
+        for (var segment : segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                //Nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * Returns a unique id. Ids increase with time and
+     * are never reused across restarts.
+     */
+    private long nextId() {
+        long now = System.currentTimeMillis() * 1000;
+
+        return lastId.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+    }
+
+    /**
+     * Takes a segment to append to. It's not given
+     * to anyone else till returned.
+     */
+    private Segment takeSegment() throws IOException {
+        var segment = appendable.poll();
+
+        if (segment != null) {
+            return segment;
+        }
+
+        int number = nextNumber.getAndIncrement();
+        var path = dir.resolve(String.format("%09d.seg", number));
+        var channel = FileChannel.open(path,
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        FileStore.syncDirectory(dir);
+
+        segment = new Segment(number, path, channel);
+
+        segments.put(number, segment);
+
+        Log.debug("Created segment %s", path);
+
+        return segment;
+    }
+
+    /**
+     * Gives back a segment after an append. It's sealed if full.
+     */
+    private void returnSegment(Segment segment) {
+        if (segment.end < segmentSize) {
+            appendable.add(segment);
+
+            return;
+        }
+
+        segment.sealed = true;
+
+        maybeCompact(segment);
+    }
+
+    /**
+     * Marks a record deleted and accounts for the space freed.
+     * 
+     * @param length The length of the whole record.
+     */
+    private void discard(Segment segment, long recordStart, long length) {
+        try {
+            setDeleted(segment, recordStart);
+        } catch (IOException e) {
+            Log.error("Failed to delete message in %s: %s", segment.path, e.getMessage());
+        }
+
+        segment.liveBytes.addAndGet(-length);
+
+        maybeCompact(segment);
+    }
+
+    private void maybeCompact(Segment segment) {
+        if (segment.sealed && segment.liveBytes.get() < segment.end * MIN_LIVE_RATIO
+            && segment.compacting.compareAndSet(false, true)) {
+            compactor.execute(() -> compact(segment));
+        }
+    }
+
+    /**
+     * Copies the live records of a sealed segment to other
+     * segments and removes it.
+     */
+    private void compact(Segment segment) {
+        Log.debug("Compacting segment %s", segment.path);
+
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        var moved = new ArrayList<MessageInfo>();
+        var locations = new ArrayList<Location>();
+        Segment target = null;
+        long position = 0;
+
+        try {
+            while (position < segment.end) {
+                header.clear();
+                readFully(segment.channel, header, position);
+
+                int flags = header.getInt(4);
+                long id = header.getLong(8);
+                long length = header.getLong(16);
+                int envelopeSize = header.getInt(28);
+                long recordLength = HEADER_SIZE + envelopeSize + length;
+                var msg = messages.get(Long.toString(id));
+
+                if ((flags & FLAG_DELETED) == 0 && msg != null && msg.getLocation().segment == segment) {
+                    if (target == null) {
+                        target = takeSegment();
+                    }
+
+                    long recordStart = target.end;
+
+                    //The deleted bits may change meanwhile. They are
+                    //written again once the message points here.
+                    writeHeader(target, recordStart, id, length, envelopeSize);
+                    copy(segment.channel, position + HEADER_SIZE, envelopeSize + length, 
+                        target.channel, recordStart + HEADER_SIZE);
+
+                    target.end = recordStart + recordLength;
+                    target.liveBytes.addAndGet(recordLength);
+
+                    moved.add(msg);
+                    locations.add(new Location(target, recordStart, recordStart + HEADER_SIZE + envelopeSize));
+
+                    if (target.end >= segmentSize) {
+                        relocate(target, moved, locations);
+
+                        target = null;
+                    }
+                }
+
+                position += recordLength;
+            }
+
+            if (target != null) {
+                relocate(target, moved, locations);
+            }
+        } catch (IOException e) {
+            Log.error("Failed to compact segment %s: %s", segment.path, e.getMessage());
+
+            if (target != null) {
+                returnSegment(target);
+            }
+
+            return;
+        }
+
+        segments.remove(segment.number);
+
+        //Removed once the open readers are done
+        segment.release();
+
+        Log.debug("Compacted segment %s", segment.path);
+    }
+
+    /**
+     * Makes the copies durable and points the messages at them.
+     * Then gives back the target segment.
+     */
+    private void relocate(Segment target, ArrayList<MessageInfo> moved, ArrayList<Location> locations) throws IOException {
+        target.force(target.end);
+
+        synchronized (this) {
+            for (int i = 0; i < moved.size(); ++i) {
+                var msg = moved.get(i);
+                var location = locations.get(i);
+
+                if (messages.get(msg.getId()) == msg) {
+                    writeUnlinked(location, msg);
+                    msg.setLocation(location);
+                } else {
+                    //Deleted while being copied
+                    discard(target, location.recordStart, recordLength(location, msg));
+                }
+            }
+        }
+
+        moved.clear();
+        locations.clear();
+
+        returnSegment(target);
+    }
+
+    /**
+     * The envelope size is left out when 0. So the records of
+     * older versions still check out.
+     */
+    private static int checksum(long id, long length, int envelopeSize) {
+        var crc = new CRC32();
+        var buf = ByteBuffer.allocate(20);
+
+        buf.putLong(id).putLong(length);
+
+        if (envelopeSize != 0) {
+            buf.putInt(envelopeSize);
+        }
+
+        crc.update(buf.flip());
+
+        return (int) crc.getValue();
+    }
+
+    private static void writeHeader(Segment segment, long position, long id, long length, 
+        int envelopeSize) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+
+        header.putInt(MAGIC)
+            .putInt(0)
+            .putLong(id)
+            .putLong(length)
+            .putInt(checksum(id, length, envelopeSize))
+            .putInt(envelopeSize)
+            .flip();
+
+        writeFully(segment.channel, header, position);
+    }
+
+    /**
+     * Writes the bits of the mailboxes the message was deleted from.
+     */
+    private static void writeUnlinked(Location location, MessageInfo msg) throws IOException {
+        var bits = ByteBuffer.allocate((msg.getMailboxes().size() + 7) / 8);
+
+        bits.put(msg.getUnlinked()).clear();
+
+        writeFully(location.segment.channel, bits, location.recordStart + HEADER_SIZE + 4);
+    }
+
+    private static void setDeleted(Segment segment, long recordStart) throws IOException {
+        var flags = ByteBuffer.allocate(4);
+
+        flags.putInt(FLAG_DELETED).flip();
+
+        writeFully(segment.channel, flags, recordStart + 4);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int sz = channel.read(buf, position);
+
+            if (sz < 0) {
+                throw new EOFException();
+            }
+
+            position += sz;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private static void copy(FileChannel from, long position, long count, FileChannel to, long toPosition) throws IOException {
+        to.position(toPosition);
+
+        while (count > 0) {
+            long sz = from.transferTo(position, count, to);
+
+            if (sz <= 0) {
+                throw new EOFException();
+            }
+
+            position += sz;
+            count -= sz;
+        }
+    }
+}
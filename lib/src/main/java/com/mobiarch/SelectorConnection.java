@@ -0,0 +1,146 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A non-blocking connection registered with a {@link Reactor}'s Selector.
+ * The SelectionKey's attachment is this object. Only the reactor's
+ * thread uses it, except for {@link #execute}.
+ */
+public class SelectorConnection implements Connection {
+    private final Reactor reactor;
+    private final SelectionKey key;
+    private final EventListener listener;
+    private final Metrics.ProtocolMetrics metrics;
+    private boolean isClosed = false;
+    //Fires once the client has been silent too long
+    private final TimingWheel.Timer<SelectorConnection> timer = new TimingWheel.Timer<>(this);
+
+    /**
+     * @param metrics Must have counted the connection 
+     * as accepted already.
+     */
+    public SelectorConnection(Reactor reactor, SelectionKey key, EventListener listener, 
+            Metrics.ProtocolMetrics metrics) {
+        this.reactor = reactor;
+        this.key = key;
+        this.listener = listener;
+        this.metrics = metrics;
+    }
+
+    public EventListener getListener() {
+        return listener;
+    }
+
+    public Metrics.ProtocolMetrics getMetrics() {
+        return metrics;
+    }
+
+    public TimingWheel.Timer<SelectorConnection> getTimer() {
+        return timer;
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int sz = ((SocketChannel) key.channel()).read(dst);
+
+        if (sz > 0) {
+            metrics.addBytesIn(sz);
+        }
+
+        return sz;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int sz = ((SocketChannel) key.channel()).write(src);
+
+        metrics.addBytesOut(sz);
+
+        return sz;
+    }
+
+    @Override
+    public long sendFile(FileChannel file, long position, long count) throws IOException {
+        long sz = file.transferTo(position, count, ((SocketChannel) key.channel()));
+
+        metrics.addBytesOut(sz);
+
+        return sz;
+    }
+
+    @Override
+    public void interestOps(int ops) {
+        key.interestOps(ops);
+    }
+
+    @Override
+    public int interestOps() {
+        return key.interestOps();
+    }
+
+    @Override
+    public void execute(Task task) {
+        reactor.execute(() -> {
+            if (!key.isValid()) {
+                //Connection was closed
+                return;
+            }
+
+            run(task);
+            reactor.touch(this);
+        });
+    }
+
+    @Override
+    public void executeAlways(Task task) {
+        reactor.execute(() -> run(task));
+    }
+
+    private void run(Task task) {
+        try {
+            task.run();
+        } catch (IOException e) {
+            Log.warn("Closing client after error: %s", e.getMessage());
+
+            closeQuietly();
+        } catch (RuntimeException e) {
+            Log.error("Closing client after failure: %s", e, e);
+
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException | RuntimeException e) {
+            //Nothing more can be done
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        key.cancel();
+
+        try {
+            key.channel().close();
+        } finally {
+            if (!isClosed) {
+                isClosed = true;
+
+                metrics.onClose();
+                reactor.onClose(this);
+                listener.onClose(this);
+            }
+        }
+    }
+}
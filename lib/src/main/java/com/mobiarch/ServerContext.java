@@ -0,0 +1,218 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Settings and services shared by all the connections of a server.
+ */
+public class ServerContext {
+    private final Path mailDir;
+    private final Path tempDir;
+    private final Durability durability;
+    private final TransferMode transferMode;
+    private final MessageStore store;
+    private GroupCommitter committer = null;
+    private final Mailboxes mailboxes;
+    private final BufferPool bufferPool = new BufferPool();
+    private final DiskExecutor diskExecutor;
+    private final Metrics metrics = new Metrics();
+    private final MessageDispatcher dispatcher;
+    private final Unlinker unlinker;
+    private ProtocolLimits smtpLimits = ProtocolLimits.SMTP_DEFAULTS;
+    private ProtocolLimits pop3Limits = ProtocolLimits.POP3_DEFAULTS;
+    private int maxConnections = 10_000;
+
+    /**
+     * @param durability How messages are fsynced.
+     * @param commitWindowMillis How long to gather messages for a group 
+     * commit. Only used for {@link Durability#GROUP}.
+     * @param transferMode How POP3 sends message bodies.
+     * @param storeType How messages are kept on disk.
+     * @param diskThreads Number of threads doing blocking file system work.
+     */
+    public ServerContext(Durability durability, long commitWindowMillis, TransferMode transferMode, 
+        StoreType storeType, int diskThreads) throws IOException {
+        this(durability, commitWindowMillis, transferMode, storeType, diskThreads, MemoryStore.DEFAULT_CAP);
+    }
+
+    /**
+     * @param storeType Where messages are kept.
+     * @param diskThreads Number of threads doing blocking file system work.
+     * 0 to do it in the connection's own thread.
+     * @param memoryCap The most memory for messages. Only used for
+     * {@link StoreType#MEMORY}.
+     */
+    public ServerContext(Durability durability, long commitWindowMillis, TransferMode transferMode, 
+        StoreType storeType, int diskThreads, long memoryCap) throws IOException {
+        this(Path.of(BaseState.MAIL_DIR), durability, commitWindowMillis, transferMode, storeType, 
+            diskThreads, memoryCap);
+    }
+
+    /**
+     * @param mailDir Where the messages are kept. Created if missing.
+     * Each server in the same JVM needs its own.
+     */
+    public ServerContext(Path mailDir, Durability durability, long commitWindowMillis, 
+        TransferMode transferMode, StoreType storeType, int diskThreads, long memoryCap) throws IOException {
+        this.mailDir = mailDir;
+        //Messages are written here and moved to the mail
+        //directory once complete. So nobody sees half a message.
+        this.tempDir = mailDir.resolve("tmp");
+        this.durability = durability;
+        this.transferMode = transferMode;
+        this.diskExecutor = new DiskExecutor(diskThreads);
+
+        Files.createDirectories(tempDir);
+
+        if (storeType == StoreType.SEGMENTS) {
+            store = new SegmentStore(mailDir);
+        } else if (storeType == StoreType.MEMORY) {
+            store = new MemoryStore(memoryCap);
+        } else {
+            store = new FileStore(tempDir);
+        }
+
+        if (durability == Durability.GROUP) {
+            committer = new GroupCommitter(store, commitWindowMillis, metrics.getFsyncTimes());
+
+            committer.start();
+        }
+
+        dispatcher = new MessageDispatcher(store);
+        mailboxes = new Mailboxes(mailDir);
+
+        mailboxes.start();
+        store.load(mailboxes);
+        metrics.setMailboxes(mailboxes);
+
+        unlinker = new Unlinker(store, mailboxes.getHeaderIndex());
+
+        unlinker.start();
+    }
+
+    /**
+     * @return The directory where complete messages are kept. Each
+     * mailbox has a directory in its "mailboxes" sub directory.
+     */
+    public Path getMailDir() {
+        return mailDir;
+    }
+
+    /**
+     * @return The directory where messages are written while 
+     * being received.
+     */
+    public Path getTempDir() {
+        return tempDir;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public TransferMode getTransferMode() {
+        return transferMode;
+    }
+
+    public MessageStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return The group committer. null unless durability is GROUP.
+     */
+    public GroupCommitter getCommitter() {
+        return committer;
+    }
+
+    /**
+     * @return The mailbox of each recipient.
+     */
+    public Mailboxes getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * @return The pool of connection I/O buffers.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return Where the connections do their blocking file system work.
+     */
+    public DiskExecutor getDiskExecutor() {
+        return diskExecutor;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Where to subscribe for the messages received.
+     */
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return Where POP3 hands over the messages deleted at QUIT.
+     */
+    public Unlinker getUnlinker() {
+        return unlinker;
+    }
+
+    public ProtocolLimits getSmtpLimits() {
+        return smtpLimits;
+    }
+
+    public ProtocolLimits getPop3Limits() {
+        return pop3Limits;
+    }
+
+    /**
+     * @return The most connections open at a time across
+     * both protocols.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Stops the background threads and closes the store. Call once
+     * the connections are closed. Messages still being committed by
+     * a {@link GroupCommitter} are flushed first. So are those deleted
+     * at QUIT.
+     */
+    public void close() throws IOException {
+        try {
+            if (committer != null) {
+                committer.stop();
+            }
+
+            diskExecutor.shutdown();
+            unlinker.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        dispatcher.shutdown();
+        mailboxes.stop();
+        metrics.unregisterMBean();
+        store.close();
+    }
+
+    /**
+     * Sets the timeouts and connection caps. Call before the 
+     * server is started.
+     */
+    public void setLimits(ProtocolLimits smtpLimits, ProtocolLimits pop3Limits, int maxConnections) {
+        this.smtpLimits = smtpLimits;
+        this.pop3Limits = pop3Limits;
+        this.maxConnections = maxConnections;
+    }
+}
@@ -0,0 +1,13 @@
+package com.mobiarch;
+
+/**
+ * Where messages are kept.
+ */
+public enum StoreType {
+    //A file per message in the mail directory
+    FILES,
+    //Appended to large segment files. See SegmentStore.
+    SEGMENTS,
+    //In memory only. Nothing survives a restart. See MemoryStore.
+    MEMORY
+}
@@ -0,0 +1,223 @@
+package com.mobiarch;
+
+import java.util.function.Consumer;
+
+/**
+ * <p>A hashed timing wheel for a large number of timers that are
+ * mostly pushed back before they expire, like connection deadlines.
+ * Time is cut into ticks. Each slot of the wheel holds a linked list
+ * of the timers due in a tick that maps to it. Scheduling and
+ * cancelling are O(1). Advancing visits only the slots of the ticks
+ * that went by.</p>
+ *
+ * <p>Pushing a deadline back only records it. The timer stays in its
+ * slot and is moved when its old tick comes. So a timer that is
+ * pushed back on every read costs a field write per read.</p>
+ *
+ * <p>A timer fires in the first tick that starts at or after its
+ * deadline. So it may be up to one tick late but is never early.</p>
+ *
+ * <p>Not thread safe. A {@link Reactor} owns one and only touches
+ * it from its own thread. {@link BlockingServer} locks its own.</p>
+ */
+public class TimingWheel<T> {
+    /**
+     * A timer of one owner. It's either scheduled in one wheel
+     * or not scheduled at all.
+     */
+    public static class Timer<T> {
+        private final T owner;
+        private long deadline;
+        //The tick of the slot the timer is in. May be 
+        //earlier than the deadline.
+        private long tick;
+        private boolean isScheduled = false;
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        public Timer(T owner) {
+            this.owner = owner;
+        }
+
+        public T getOwner() {
+            return owner;
+        }
+
+        public boolean isScheduled() {
+            return isScheduled;
+        }
+
+        /**
+         * @return The time it was last scheduled for.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final long tickMillis;
+    //Heads of the list of each slot
+    private final Timer<T>[] slots;
+    private final int mask;
+    //The last tick that was processed
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param tickMillis The length of a tick.
+     * @param slotCount The number of slots. Must be a power of 2.
+     * Timers further out than one turn of the wheel stay in their
+     * slot for more than one turn.
+     * @param now The current time in milliseconds.
+     */
+    //A generic array can only be made raw. It's never handed out.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, int slotCount, long now) {
+        if (tickMillis < 1 || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Invalid wheel: " + tickMillis + " ms x " + slotCount);
+        }
+
+        this.tickMillis = tickMillis;
+        slots = new Timer[slotCount];
+        mask = slotCount - 1;
+        currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules the timer or moves it to a new deadline.
+     *
+     * @param deadline The time in milliseconds.
+     */
+    public void schedule(Timer<T> timer, long deadline) {
+        long tick = tickOf(deadline);
+
+        timer.deadline = deadline;
+
+        if (timer.isScheduled && tick >= timer.tick) {
+            //Moved when the earlier tick comes
+            return;
+        }
+
+        cancel(timer);
+        insert(timer, tick);
+    }
+
+    /**
+     * @return The first tick that is not earlier than the time.
+     * Round up so that a timer never fires early.
+     */
+    private long tickOf(long time) {
+        return Math.max((time + tickMillis - 1) / tickMillis, currentTick + 1);
+    }
+
+    private void insert(Timer<T> timer, long tick) {
+        int slot = (int) (tick & mask);
+
+        timer.tick = tick;
+        timer.isScheduled = true;
+        timer.prev = null;
+        timer.next = slots[slot];
+
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+
+        slots[slot] = timer;
+        ++size;
+    }
+
+    /**
+     * Removes the timer from the wheel if it's scheduled.
+     */
+    public void cancel(Timer<T> timer) {
+        if (!timer.isScheduled) {
+            return;
+        }
+
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[(int) (timer.tick & mask)] = timer.next;
+        }
+
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+
+        timer.prev = null;
+        timer.next = null;
+        timer.isScheduled = false;
+        --size;
+    }
+
+    /**
+     * @return The number of scheduled timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns how long to wait before the next call to
+     * {@link #advance}.
+     *
+     * @return The time in milliseconds till the next tick.
+     * At least 1. -1 if there is nothing scheduled.
+     */
+    public long getDelay(long now) {
+        if (size == 0) {
+            return -1;
+        }
+
+        return Math.max(1, (currentTick + 1) * tickMillis - now);
+    }
+
+    /**
+     * Processes the ticks up to now. The timers that are due are
+     * removed from the wheel and handed to the consumer. It may
+     * schedule them again. The timers that were pushed back are 
+     * moved to the slot of their deadline.
+     */
+    public void advance(long now, Consumer<T> onExpired) {
+        long targetTick = now / tickMillis;
+
+        if (targetTick <= currentTick) {
+            return;
+        }
+
+        if (size == 0) {
+            currentTick = targetTick;
+
+            return;
+        }
+
+        //Visit each slot at most once even if many turns went by
+        long ticks = Math.min(targetTick - currentTick, slots.length);
+        long firstTick = currentTick + 1;
+
+        //Timers moved or scheduled again meanwhile go after now.
+        //Not in a slot that was already visited.
+        currentTick = targetTick;
+
+        for (long i = 0; i < ticks; ++i) {
+            int slot = (int) ((firstTick + i) & mask);
+            var timer = slots[slot];
+
+            while (timer != null) {
+                var next = timer.next;
+
+                if (timer.tick <= targetTick) {
+                    cancel(timer);
+
+                    if (timer.deadline > now) {
+                        insert(timer, tickOf(timer.deadline));
+                    } else {
+                        onExpired.accept(timer.owner);
+                    }
+                }
+
+                timer = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.mobiarch;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>Offsets within a saved message that let POP3 TOP find the end of 
+ * the header and the first few body lines without scanning.</p>
+ * 
+ * <p>The index is built by {@link DataScanner} while the message is 
+ * received. For other messages it's built the first time TOP is used 
+ * on them. It's kept in the {@link MessageInfo}.</p>
+ */
+public class TopIndex {
+    //The number of body lines indexed. TOP n beyond this needs a scan.
+    public static final int MAX_LINES = 32;
+
+    private final long headerEnd;
+    private final long[] lineEnds;
+    private final long size;
+
+    private TopIndex(long headerEnd, long[] lineEnds, long size) {
+        this.headerEnd = headerEnd;
+        this.lineEnds = lineEnds;
+        this.size = size;
+    }
+
+    /**
+     * Finds the end of the header and the first topLines lines 
+     * of the body.
+     * 
+     * @return The offset after the last byte to send. -1 if the line is
+     * beyond the index and the message needs to be scanned.
+     */
+    public long locate(int topLines) {
+        if (topLines == 0) {
+            return headerEnd;
+        }
+
+        if (topLines <= lineEnds.length) {
+            return lineEnds[topLines - 1];
+        }
+
+        if (lineEnds.length < MAX_LINES) {
+            //The body has fewer lines than asked for
+            return size;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Builds the index of a whole message.
+     */
+    public static TopIndex build(ByteBuffer msg) {
+        var builder = new Builder();
+
+        for (int i = msg.position(); i < msg.limit(); ++i) {
+            builder.add(msg.get(i));
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Builds the index a byte at a time. Nothing is allocated 
+     * till {@link #build()}.
+     */
+    public static class Builder {
+        private long offset = 0;
+        private int lineLength = 0;
+        private long headerEnd = -1;
+        private final long[] lineEnds = new long[MAX_LINES];
+        private int lineCount = 0;
+
+        public void reset() {
+            offset = 0;
+            lineLength = 0;
+            headerEnd = -1;
+            lineCount = 0;
+        }
+
+        /**
+         * Adds the next byte of the message.
+         */
+        public void add(byte ch) {
+            ++offset;
+            ++lineLength;
+
+            if (ch != '\n') {
+                return;
+            }
+
+            if (headerEnd < 0) {
+                if (lineLength == 2) {
+                    //Empty line is the end of header
+                    headerEnd = offset;
+                }
+            } else if (lineCount < MAX_LINES) {
+                lineEnds[lineCount++] = offset;
+            }
+
+            lineLength = 0;
+        }
+
+        public TopIndex build() {
+            //With no empty line the whole message is the header
+            long end = headerEnd < 0 ? offset : headerEnd;
+            //If no header end, there are no body lines either
+            int count = headerEnd < 0 ? 0 : lineCount;
+
+            return new TopIndex(end, Arrays.copyOf(lineEnds, count), offset);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.mobiarch;
+
+/**
+ * How POP3 sends a message body to the client.
+ */
+public enum TransferMode {
+    /**
+     * FileChannel.transferTo. On Linux this is sendfile and the
+     * bytes never enter the JVM.
+     */
+    SENDFILE,
+    /**
+     * The message is memory mapped and written from the mapping.
+     * The mapping is removed as soon as the transfer is done.
+     */
+    MMAP
+}
@@ -0,0 +1,126 @@
+package com.mobiarch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * <p>Deletes messages from the {@link MessageStore} in the background.</p>
+ *
+ * <p>POP3 DELE only marks a message. At QUIT the session takes the marked
+ * messages out of its {@link MailboxIndex} in one go and hands them over
+ * here as a batch. So a test that tears down thousands of messages holds
+ * up neither its own connection nor the disk threads the others use.
+ * The store is synced once a batch is done.</p>
+ */
+public class Unlinker implements Runnable {
+    private static class Batch {
+        final String mailbox;
+        final List<MessageInfo> messages;
+
+        Batch(String mailbox, List<MessageInfo> messages) {
+            this.mailbox = mailbox;
+            this.messages = messages;
+        }
+    }
+
+    //Tells the thread to stop once the batches before it are done
+    private static final Batch STOP = new Batch(null, List.of());
+
+    private final BlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+    private final MessageStore store;
+    private final HeaderIndex headerIndex;
+    private Thread thread = null;
+
+    /**
+     * @param headerIndex The messages gone from every mailbox
+     * are removed from it.
+     */
+    public Unlinker(MessageStore store, HeaderIndex headerIndex) {
+        this.store = store;
+        this.headerIndex = headerIndex;
+    }
+
+    public void start() {
+        thread = new Thread(this, "devmail-unlinker");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops once the batches queued so far are deleted. The clients
+     * were told they are.
+     */
+    public void stop() throws InterruptedException {
+        if (thread != null) {
+            queue.add(STOP);
+            thread.join();
+
+            thread = null;
+        }
+    }
+
+    /**
+     * Queues up messages to be deleted from a mailbox. Safe to call
+     * from any thread.
+     *
+     * @param messages Already removed from the mailbox's index.
+     */
+    public void unlink(String mailbox, List<MessageInfo> messages) {
+        queue.add(new Batch(mailbox, messages));
+    }
+
+    @Override
+    public void run() {
+        var batches = new ArrayList<Batch>();
+
+        while (true) {
+            try {
+                batches.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            queue.drainTo(batches);
+
+            boolean isStopped = false;
+
+            for (var batch : batches) {
+                if (batch == STOP) {
+                    isStopped = true;
+                } else {
+                    delete(batch);
+                }
+            }
+
+            batches.clear();
+
+            //Make the removals durable
+            store.sync();
+
+            if (isStopped) {
+                return;
+            }
+        }
+    }
+
+    private void delete(Batch batch) {
+        Log.debug("Deleting %d message(s) from %s", batch.messages.size(), batch.mailbox);
+
+        for (var msg : batch.messages) {
+            try {
+                store.delete(msg, batch.mailbox);
+            } catch (IOException | RuntimeException e) {
+                Log.error("Failed to delete message %s: %s", msg.getId(), e.getMessage());
+            }
+
+            if (!msg.isLinked()) {
+                //Gone from every mailbox
+                headerIndex.remove(msg);
+            }
+        }
+    }
+}
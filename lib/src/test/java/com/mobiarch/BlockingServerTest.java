@@ -0,0 +1,64 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlockingServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DevMailServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * @return The first line the server sends.
+     */
+    private static String greeting(int port) throws IOException {
+        try (var socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10_000);
+
+            var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+
+            return in.readLine();
+        }
+    }
+
+    @Test
+    public void refusesOverCap() throws IOException {
+        var smtpLimits = new ProtocolLimits(300_000, 60_000, 180_000, 1);
+
+        server = DevMailServer.builder()
+            .smtpPort(0)
+            .pop3Port(0)
+            .blocking(true)
+            .mailDir(folder.getRoot().toPath())
+            .limits(smtpLimits, ProtocolLimits.POP3_DEFAULTS, 100)
+            .start();
+
+        try (var client = new TestClient(server.getSmtpPort())) {
+            assertEquals("421 4.3.2 Too many connections, try again later", greeting(server.getSmtpPort()));
+
+            //The one let in is served
+            assertEquals("250 Ok", client.command("HELO test"));
+
+            //Other protocols have caps of their own
+            assertEquals("+OK POP3 example.com server ready", greeting(server.getPop3Port()));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+    private final BufferPool pool = new BufferPool();
+
+    @Test
+    public void roundsUpToSizeClass() {
+        assertEquals(256, pool.acquire(1).capacity());
+        assertEquals(256, pool.acquire(256).capacity());
+        assertEquals(512, pool.acquire(257).capacity());
+        assertEquals(64 * 1024, pool.acquire(64 * 1024).capacity());
+        assertTrue(pool.acquire(1000).isDirect());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLarge() {
+        pool.acquire(64 * 1024 + 1);
+    }
+
+    @Test
+    public void reusesReleasedBuffer() {
+        var buff = pool.acquire(1024);
+
+        buff.put((byte) 1).flip();
+        pool.release(buff);
+
+        var again = pool.acquire(1000);
+
+        assertSame(buff, again);
+        //Cleared for the next user
+        assertEquals(0, again.position());
+        assertEquals(1024, again.limit());
+    }
+
+    @Test
+    public void sizeClassesAreSeparate() {
+        var small = pool.acquire(256);
+
+        pool.release(small);
+
+        assertNotSame(small, pool.acquire(512));
+    }
+
+    @Test
+    public void ignoresForeignBuffers() {
+        var heap = ByteBuffer.allocate(256);
+        var odd = ByteBuffer.allocateDirect(300);
+
+        pool.release(heap);
+        pool.release(odd);
+
+        var buff = pool.acquire(256);
+
+        assertNotSame(heap, buff);
+        assertTrue(buff.isDirect());
+        assertNotSame(odd, pool.acquire(512));
+    }
+
+    @Test
+    public void capsIdleMemory() {
+        //64 KB buffers. Only 16 MB worth are kept.
+        var buffs = new ByteBuffer[300];
+
+        for (int i = 0; i < buffs.length; ++i) {
+            buffs[i] = pool.acquire(64 * 1024);
+        }
+
+        for (var buff : buffs) {
+            pool.release(buff);
+        }
+
+        int reused = 0;
+
+        for (int i = 0; i < buffs.length; ++i) {
+            var buff = pool.acquire(64 * 1024);
+
+            for (var old : buffs) {
+                if (old == buff) {
+                    ++reused;
+
+                    break;
+                }
+            }
+        }
+
+        assertEquals(256, reused);
+    }
+}
@@ -0,0 +1,105 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class CommandTableTest {
+    private static final CommandTable.Handler<StringBuilder> ONE = (s, c) -> s.append(1);
+    private static final CommandTable.Handler<StringBuilder> TWO = (s, c) -> s.append(2);
+
+    private final BaseState state = new BaseState();
+
+    /**
+     * Runs parseCommand() on a command line. The argument is left
+     * in the in buffer of the state.
+     */
+    private int parse(String line) {
+        state.in = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+
+        return state.parseCommand();
+    }
+
+    @Test
+    public void encodeIgnoresCase() {
+        assertEquals(CommandTable.encode("RETR"), CommandTable.encode("retr"));
+        assertEquals(CommandTable.encode("QUIT"), CommandTable.encode("QuIt"));
+        assertEquals(('T' << 8) | 'O', CommandTable.encode("TO"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encodeTooLong() {
+        CommandTable.encode("VERBS");
+    }
+
+    @Test
+    public void lookup() {
+        var table = new CommandTable<StringBuilder>()
+            .add("USER", ONE)
+            .add("PASS", TWO);
+
+        assertSame(ONE, table.get(CommandTable.encode("user")));
+        assertSame(TWO, table.get(CommandTable.encode("PASS")));
+        assertNull(table.get(CommandTable.encode("STAT")));
+        assertNull(table.get(0));
+    }
+
+    @Test
+    public void addAgainReplaces() {
+        var table = new CommandTable<StringBuilder>()
+            .add("NOOP", ONE)
+            .add("NOOP", TWO);
+
+        assertSame(TWO, table.get(CommandTable.encode("NOOP")));
+    }
+
+    @Test
+    public void manyVerbs() {
+        var table = new CommandTable<StringBuilder>();
+        var verbs = new ArrayList<String>();
+
+        //Collisions are probed past
+        for (char a = 'A'; a <= 'Z'; ++a) {
+            verbs.add("X" + a);
+            verbs.add("Y" + a + "Z");
+        }
+
+        for (var verb : verbs.subList(0, 40)) {
+            table.add(verb, verb.length() == 2 ? ONE : TWO);
+        }
+
+        for (var verb : verbs.subList(0, 40)) {
+            assertSame(verb, verb.length() == 2 ? ONE : TWO, table.get(CommandTable.encode(verb)));
+        }
+
+        for (var verb : verbs.subList(40, verbs.size())) {
+            assertNull(verb, table.get(CommandTable.encode(verb)));
+        }
+    }
+
+    @Test
+    public void parseCommandLeavesArgument() {
+        assertEquals(CommandTable.encode("MAIL"), parse("mail  FROM:<a@example.com>\r\n"));
+        assertEquals("FROM:<a@example.com>", BaseState.toAscii(state.in));
+    }
+
+    @Test
+    public void parseCommandWithoutArgument() {
+        assertEquals(CommandTable.encode("QUIT"), parse("QUIT\r\n"));
+        assertEquals("", BaseState.toAscii(state.in));
+        assertEquals(CommandTable.encode("QUIT"), parse("quit\n"));
+    }
+
+    @Test
+    public void parseCommandRejectsNonVerbs() {
+        for (var line : new String[] { "VERBS x\r\n", "R2D2\r\n", "\r\n", " QUIT\r\n" }) {
+            assertEquals(line, 0, parse(line));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class DataScannerTest {
+    private final DataScanner scanner = new DataScanner();
+    private final ByteArrayOutputStream saved = new ByteArrayOutputStream();
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String saved() {
+        return saved.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Scans the text in reads of the given sizes. The last read
+     * gets what's left.
+     *
+     * @return true if the end of data was found.
+     */
+    private boolean scan(String text, int... readSizes) throws IOException {
+        var sink = Channels.newChannel(saved);
+        var all = bytes(text);
+        int pos = 0;
+
+        for (int i = 0; i <= readSizes.length; ++i) {
+            int end = i < readSizes.length ? pos + readSizes[i] : all.limit();
+            var read = all.duplicate().position(pos).limit(end).slice();
+
+            if (scanner.scan(read, sink)) {
+                return true;
+            }
+
+            pos = end;
+        }
+
+        return false;
+    }
+
+    @Test
+    public void findsEndOfData() throws IOException {
+        var buff = bytes("Subject: hi\r\n\r\nbody\r\n.\r\nQUIT\r\n");
+
+        assertTrue(scanner.scan(buff, Channels.newChannel(saved)));
+        assertEquals("Subject: hi\r\n\r\nbody\r\n", saved());
+        //Left for the next command
+        assertEquals("QUIT\r\n", StandardCharsets.US_ASCII.decode(buff).toString());
+    }
+
+    @Test
+    public void emptyMessage() throws IOException {
+        assertTrue(scan(".\r\n"));
+        assertEquals("", saved());
+    }
+
+    @Test
+    public void noEndOfData() throws IOException {
+        assertFalse(scan("line1\r\nline2\r\n"));
+        assertEquals("line1\r\nline2\r\n", saved());
+    }
+
+    @Test
+    public void endOfDataSplitAcrossReads() throws IOException {
+        var text = "a\r\n..b\r\nc\r\n.\r\n";
+
+        for (int split = 0; split <= text.length(); ++split) {
+            scanner.reset();
+            saved.reset();
+
+            assertTrue("Split at " + split, scan(text, split));
+            assertEquals("Split at " + split, "a\r\n.b\r\nc\r\n", saved());
+        }
+    }
+
+    @Test
+    public void endOfDataOneByteAtATime() throws IOException {
+        var text = "x\r\n.\r\n";
+        var sizes = new int[text.length() - 1];
+
+        Arrays.fill(sizes, 1);
+
+        assertTrue(scan(text, sizes));
+        assertEquals("x\r\n", saved());
+    }
+
+    @Test
+    public void removesDotStuffing() throws IOException {
+        assertTrue(scan("..leading dot\r\n...two dots\r\nmid.dle\r\n.\r\n"));
+        assertEquals(".leading dot\r\n..two dots\r\nmid.dle\r\n", saved());
+        assertTrue(scanner.hasDotLines());
+    }
+
+    @Test
+    public void noDotLines() throws IOException {
+        assertTrue(scan("a.b\r\n.\r\n"));
+        assertFalse(scanner.hasDotLines());
+    }
+
+    @Test
+    public void dotCrNotFollowedByLf() throws IOException {
+        //The held back \r comes in an earlier read than the byte after it
+        assertFalse(scan(".\rx\r\n", 2));
+        assertEquals("\rx\r\n", saved());
+
+        assertTrue(scan(".\r\n"));
+        assertEquals("\rx\r\n", saved());
+    }
+
+    @Test
+    public void bareDotLineInsideMessageIsNotEnd() throws IOException {
+        //".\n" is not the marker. Only ".\r\n" is.
+        assertFalse(scan("a\r\n.\nb\r\n"));
+        assertEquals("a\r\n\nb\r\n", saved());
+    }
+
+    @Test
+    public void resetForNextMessage() throws IOException {
+        assertTrue(scan("..a\r\n.\r\n"));
+
+        scanner.reset();
+        saved.reset();
+
+        assertTrue(scan("b\r\n.\r\n"));
+        assertEquals("b\r\n", saved());
+        assertFalse(scanner.hasDotLines());
+    }
+}
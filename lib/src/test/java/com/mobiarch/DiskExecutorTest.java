@@ -0,0 +1,71 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DiskExecutorTest {
+    @Test
+    public void neverRunsInCallerWhenBusy() throws Exception {
+        var executor = new DiskExecutor(1);
+        var caller = Thread.currentThread();
+        var slowDisk = new CountDownLatch(1);
+        var inCaller = new AtomicInteger();
+        int count = 5000;
+        var done = new CountDownLatch(count);
+
+        executor.execute(() -> {
+            try {
+                slowDisk.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        //Far more than the thread can take while it's stuck
+        for (int i = 0; i < count; ++i) {
+            executor.execute(() -> {
+                if (Thread.currentThread() == caller) {
+                    inCaller.incrementAndGet();
+                }
+
+                done.countDown();
+            });
+        }
+
+        assertEquals(count, done.getCount());
+
+        slowDisk.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, inCaller.get());
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void runsInCallerWithoutThreads() throws Exception {
+        var executor = new DiskExecutor(0);
+        var ranIn = new Thread[1];
+
+        executor.execute(() -> ranIn[0] = Thread.currentThread());
+
+        assertEquals(Thread.currentThread(), ranIn[0]);
+    }
+
+    @Test
+    public void runsInCallerOnceShutDown() throws Exception {
+        var executor = new DiskExecutor(1);
+        var ranIn = new Thread[1];
+
+        executor.shutdown();
+        executor.execute(() -> ranIn[0] = Thread.currentThread());
+
+        assertEquals(Thread.currentThread(), ranIn[0]);
+    }
+}
@@ -0,0 +1,139 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class GroupCommitterTest {
+    /**
+     * Keeps count of what was done to it.
+     */
+    private static class CountingDraft implements MessageStore.Draft {
+        int forced = 0;
+        int published = 0;
+        int aborted = 0;
+
+        @Override
+        public WritableByteChannel getChannel() {
+            return null;
+        }
+
+        @Override
+        public MessageInfo finish() {
+            return null;
+        }
+
+        @Override
+        public void force() {
+            ++forced;
+        }
+
+        @Override
+        public void publish() {
+            ++published;
+        }
+
+        @Override
+        public void abort() {
+            ++aborted;
+        }
+    }
+
+    /**
+     * Only counts the syncs.
+     */
+    private static class CountingStore implements MessageStore {
+        final AtomicInteger synced = new AtomicInteger();
+
+        @Override
+        public void load(Mailboxes mailboxes) {
+        }
+
+        @Override
+        public Draft create(List<String> mailboxes) {
+            return new CountingDraft();
+        }
+
+        @Override
+        public MessageBody open(MessageInfo msg) throws IOException {
+            throw new IOException("Not kept");
+        }
+
+        @Override
+        public void delete(MessageInfo msg, String mailbox) {
+        }
+
+        @Override
+        public void sync() {
+            synced.incrementAndGet();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void stopFlushesQueued() throws Exception {
+        var store = new CountingStore();
+        //Far longer than the test
+        var committer = new GroupCommitter(store, 60_000, new Histogram());
+        var drafts = new ArrayList<CountingDraft>();
+        var committed = new AtomicInteger();
+
+        committer.start();
+
+        for (int i = 0; i < 3; ++i) {
+            var draft = new CountingDraft();
+
+            drafts.add(draft);
+            committer.commit(draft, success -> {
+                if (success) {
+                    committed.incrementAndGet();
+                }
+            });
+        }
+
+        //Still in the commit window
+        assertEquals(0, committed.get());
+
+        committer.stop();
+
+        assertEquals(3, committed.get());
+        assertTrue(store.synced.get() > 0);
+
+        for (var draft : drafts) {
+            assertEquals(1, draft.forced);
+            assertEquals(1, draft.published);
+            assertEquals(0, draft.aborted);
+        }
+    }
+
+    @Test
+    public void commitAfterStop() throws Exception {
+        var store = new CountingStore();
+        var committer = new GroupCommitter(store, 10, new Histogram());
+        var draft = new CountingDraft();
+        var committed = new AtomicInteger();
+
+        committer.start();
+        committer.stop();
+
+        committer.commit(draft, success -> {
+            if (success) {
+                committed.incrementAndGet();
+            }
+        });
+
+        //Flushed by the caller
+        assertEquals(1, committed.get());
+        assertEquals(1, draft.published);
+    }
+}
@@ -0,0 +1,145 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeaderIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Mailboxes mailboxes;
+    private HeaderIndex index;
+    private int nextId = 1;
+
+    @Before
+    public void setUp() {
+        mailboxes = new Mailboxes(folder.getRoot().toPath());
+        index = mailboxes.getHeaderIndex();
+    }
+
+    /**
+     * Adds a message with the headers to the mailboxes.
+     */
+    private MessageInfo deliver(String headers, String... names) {
+        var msg = new MessageInfo(Integer.toString(nextId++), 100, null, List.of(names));
+
+        msg.setHeaders(MessageHeaders.parse(
+            ByteBuffer.wrap((headers + "\r\n").getBytes(StandardCharsets.US_ASCII))));
+        mailboxes.add(msg);
+
+        return msg;
+    }
+
+    private List<MessageInfo> search(HeaderQuery query) {
+        return index.search(query).getHits().stream().map(HeaderIndex.Hit::getMessage).toList();
+    }
+
+    @Test
+    public void terms() {
+        assertEquals(List.of("message-id:abc@example.com"), HeaderIndex.terms("Message-ID", " <ABC@example.com> "));
+        assertEquals(List.of("to:bob@example.com", "to:carol@example.com"),
+            HeaderIndex.terms("To", "\"Smith, Bob\" <Bob@example.com>, carol@example.com"));
+        assertEquals(List.of("subject:hello", "subject:world"), HeaderIndex.terms("Subject", "Hello, world! hello"));
+        assertEquals(List.of("x-test:some value"), HeaderIndex.terms("X-Test", "Some Value"));
+        //Matches nothing
+        assertEquals(List.of("subject:"), HeaderIndex.terms("Subject", " !? "));
+    }
+
+    @Test
+    public void allTermsMustMatch() {
+        var one = deliver("From: alice@example.com\r\nSubject: Order shipped", "a");
+        var two = deliver("From: bob@example.com\r\nSubject: Order cancelled", "a");
+
+        deliver("From: alice@example.com\r\nSubject: Welcome", "a");
+
+        assertEquals(List.of(one, two), search(new HeaderQuery().subject("order")));
+        assertEquals(List.of(one), search(new HeaderQuery().subject("ORDER").from("Alice@example.com")));
+        assertEquals(List.of(), search(new HeaderQuery().subject("order refunded")));
+        assertEquals(List.of(), search(new HeaderQuery().messageId("<none@example.com>")));
+    }
+
+    @Test
+    public void mailbox() {
+        var shared = deliver("Subject: shared", "a", "b");
+        var own = deliver("Subject: own", "b");
+
+        assertEquals(List.of(shared), search(new HeaderQuery().mailbox("a")));
+        assertEquals(List.of(shared, own), search(new HeaderQuery().mailbox("B")));
+
+        //Deleted from one of its mailboxes
+        mailboxes.get("a").remove(shared.getId());
+
+        assertEquals(List.of(), search(new HeaderQuery().mailbox("a")));
+        assertEquals(List.of(shared, own), search(new HeaderQuery().mailbox("b")));
+        assertEquals(List.of(shared), search(new HeaderQuery().subject("shared")));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void deletedEverywhere() {
+        var msg = deliver("Subject: gone", "a");
+
+        mailboxes.get("a").remove(msg.getId());
+
+        //Dropped once found out
+        assertEquals(List.of(), search(new HeaderQuery().subject("gone")));
+        assertEquals(0, index.size());
+
+        //Adding again is a new message
+        mailboxes.add(msg);
+
+        assertEquals(List.of(msg), search(new HeaderQuery().subject("gone")));
+
+        mailboxes.remove(msg);
+
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void pages() {
+        for (int i = 0; i < 5; ++i) {
+            deliver("Subject: page " + i, "a");
+        }
+
+        var first = index.search(new HeaderQuery().subject("page").limit(2));
+
+        assertEquals(2, first.getHits().size());
+        assertEquals("1", first.getHits().get(0).getMessage().getId());
+
+        var second = index.search(new HeaderQuery().subject("page").limit(2).after(first.getNext()));
+
+        assertEquals("3", second.getHits().get(0).getMessage().getId());
+
+        var last = index.search(new HeaderQuery().subject("page").limit(2).after(second.getNext()));
+
+        assertEquals(1, last.getHits().size());
+        assertEquals("5", last.getHits().get(0).getMessage().getId());
+        assertEquals(-1, last.getNext());
+    }
+
+    @Test
+    public void dates() {
+        var early = deliver("Date: Mon, 1 Jun 2026 10:00:00 +0000\r\nSubject: early", "a");
+        var late = deliver("Date: Wed, 3 Jun 2026 10:00:00 +0000\r\nSubject: late", "a");
+
+        deliver("Subject: undated", "a");
+
+        var day = Instant.parse("2026-06-02T00:00:00Z");
+
+        assertEquals(List.of(late), search(new HeaderQuery().since(day)));
+        assertEquals(List.of(early), search(new HeaderQuery().before(day)));
+        assertEquals(List.of(early, late), search(new HeaderQuery().since(Instant.parse("2026-06-01T10:00:00Z"))));
+        assertEquals(List.of(), search(new HeaderQuery().subject("late").before(day)));
+        assertSame(late, search(new HeaderQuery().subject("late").since(day)).get(0));
+    }
+}
@@ -0,0 +1,76 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IOLoopTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DevMailServer server;
+    private IOLoop loop;
+
+    @After
+    public void stop() {
+        if (loop != null) {
+            loop.close();
+        }
+
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void acceptGoesOnAfterFailure() throws IOException {
+        server = DevMailServer.builder()
+            .smtpPort(0)
+            .pop3Port(0)
+            .reactors(1)
+            .mailDir(folder.getRoot().toPath())
+            .start();
+
+        var failures = new AtomicInteger(1);
+
+        //A loop of its own on the same context whose first
+        //client fails to be set up
+        loop = new IOLoop(server.getContext(), 1, 0, 0) {
+            @Override
+            void configure(SocketChannel client) throws IOException {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IOException("Connection reset");
+                }
+
+                super.configure(client);
+            }
+        };
+
+        loop.start();
+
+        try (var socket = new Socket("127.0.0.1", loop.getSmtpPort())) {
+            socket.setSoTimeout(10_000);
+
+            //Closed without a greeting
+            assertEquals(-1, socket.getInputStream().read());
+        }
+
+        try (var client = new TestClient(loop.getSmtpPort())) {
+            assertEquals("250 Ok", client.command("HELO test"));
+            assertEquals("221 Bye", client.command("QUIT"));
+        }
+
+        //The other port is still open too
+        try (var client = new TestClient(loop.getPop3Port())) {
+            assertEquals("+OK Bye", client.command("QUIT"));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MailboxIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+    private MailboxIndex index;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot().toPath();
+        index = new MailboxIndex("a", dir);
+    }
+
+    private static MessageInfo message(String id, long size) {
+        return new MessageInfo(id, size, null, List.of("a"));
+    }
+
+    private File write(String name, int size) throws IOException {
+        var path = dir.resolve(name);
+
+        Files.write(path, new byte[size]);
+
+        return path.toFile();
+    }
+
+    private List<String> ids() {
+        return index.snapshot().getMessages().stream().map(MessageInfo::getId).toList();
+    }
+
+    @Test
+    public void totals() {
+        var one = message("1", 10);
+        var two = message("2", 20);
+        var three = message("3", 30);
+
+        index.add(one);
+        index.add(two);
+        index.add(three);
+        //Adding again changes nothing
+        index.add(two);
+
+        assertEquals(3, index.size());
+        assertEquals(60, index.getTotalSize());
+        assertTrue(index.contains("2"));
+
+        index.remove("2");
+        index.remove("2");
+        index.remove("9");
+
+        assertEquals(2, index.size());
+        assertEquals(40, index.getTotalSize());
+
+        index.removeAll(List.of(one, three));
+
+        assertEquals(0, index.size());
+        assertEquals(0, index.getTotalSize());
+    }
+
+    @Test
+    public void snapshot() {
+        index.add(message("1", 10));
+
+        var snapshot = index.snapshot();
+
+        //Built again only after a change
+        assertSame(snapshot, index.snapshot());
+
+        index.add(message("2", 20));
+
+        assertEquals(1, snapshot.size());
+        assertEquals(10, snapshot.getTotalSize());
+        assertNotSame(snapshot, index.snapshot());
+        assertEquals(2, index.snapshot().size());
+        assertEquals(30, index.snapshot().getTotalSize());
+        assertEquals(List.of("1", "2"), ids());
+    }
+
+    @Test
+    public void addReplaces() {
+        index.add(message("1", 10));
+        index.add(message("1", 15));
+
+        assertEquals(1, index.size());
+        assertEquals(15, index.getTotalSize());
+    }
+
+    @Test
+    public void reload() throws IOException {
+        var kept = new MessageInfo(write("1.eml", 10), 10, List.of("a"));
+        var grown = new MessageInfo(write("2.eml", 20), 5, List.of("a"));
+        var gone = new MessageInfo(dir.resolve("3.eml").toFile(), 30, List.of("a"));
+        var stored = message("4", 40);
+
+        write("5.eml", 50);
+        write("6.eml", 60);
+        write("notes.txt", 70);
+
+        index.add(kept);
+        index.add(grown);
+        index.add(gone);
+        index.add(stored);
+
+        index.reload(id -> id.equals("6.eml"));
+
+        var messages = index.snapshot().getMessages();
+
+        assertEquals(List.of("4", "1.eml", "2.eml", "5.eml"), ids());
+        //Built at delivery. Not replaced by one made from the file.
+        assertSame(stored, messages.get(0));
+        assertSame(kept, messages.get(1));
+        assertEquals(20, messages.get(2).getSize());
+        assertEquals(40 + 10 + 20 + 50, index.getTotalSize());
+    }
+
+    @Test
+    public void addFile() throws IOException {
+        var msg = new MessageInfo(write("1.eml", 10), 10, List.of("a"));
+
+        index.add(msg);
+        index.addFile(msg.getFile());
+        index.addFile(write("2.eml", 20));
+
+        assertSame(msg, index.snapshot().getMessages().get(0));
+        assertEquals(30, index.getTotalSize());
+    }
+
+    @Test
+    public void updateFile() throws IOException {
+        var msg = new MessageInfo(write("1.eml", 10), 10, List.of("a"));
+
+        index.add(msg);
+
+        //A hard link is reported as a change
+        index.updateFile(msg.getFile());
+
+        assertSame(msg, index.snapshot().getMessages().get(0));
+
+        write("1.eml", 25);
+        index.updateFile(msg.getFile());
+
+        assertEquals(1, index.size());
+        assertEquals(25, index.getTotalSize());
+    }
+}
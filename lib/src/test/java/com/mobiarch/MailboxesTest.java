@@ -0,0 +1,284 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MailboxesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DevMailServer server;
+
+    private void startServer(Durability durability) throws IOException {
+        startServer(durability, StoreType.FILES);
+    }
+
+    private void startServer(Durability durability, StoreType storeType) throws IOException {
+        server = DevMailServer.builder()
+            .smtpPort(0)
+            .pop3Port(0)
+            .reactors(1)
+            .durability(durability)
+            .storeType(storeType)
+            .mailDir(folder.getRoot().toPath())
+            .start();
+    }
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private MailboxIndex.Snapshot snapshot(String name) {
+        return server.getContext().getMailboxes().get(name).snapshot();
+    }
+
+    /**
+     * Sends messages to both a@example.com and b@example.com.
+     */
+    private void send(int count) throws IOException {
+        try (var client = new TestClient(server.getSmtpPort())) {
+            client.command("HELO test");
+
+            for (int i = 0; i < count; ++i) {
+                client.send("MAIL FROM:<x@example.com>\r\n"
+                    + "RCPT TO:<a@example.com>\r\n"
+                    + "RCPT TO:<b@example.com>\r\n"
+                    + "DATA\r\n");
+
+                for (int j = 0; j < 4; ++j) {
+                    client.readLine();
+                }
+
+                assertEquals("250 Ok", client.command("Subject: m" + i + "\r\n\r\nbody\r\n."));
+            }
+        }
+    }
+
+    /**
+     * The watcher sees the server's own files as they are moved in
+     * and linked. Those must not replace what was built while they
+     * were received.
+     */
+    private void checkOwnFilesKept(Durability durability) throws Exception {
+        startServer(durability);
+        send(100);
+
+        //Let the watcher catch up
+        Thread.sleep(500);
+
+        var a = snapshot("a@example.com");
+        var b = snapshot("b@example.com");
+
+        assertEquals(100, a.size());
+        assertEquals(100, b.size());
+
+        for (int i = 0; i < a.size(); ++i) {
+            var msg = a.getMessages().get(i);
+
+            assertSame(msg, b.getMessages().get(i));
+            assertNotNull(msg.getTopIndex());
+            assertEquals(2, msg.getMailboxes().size());
+        }
+    }
+
+    @Test
+    public void ownFilesKeptWithSync() throws Exception {
+        checkOwnFilesKept(Durability.SYNC);
+    }
+
+    @Test
+    public void ownFilesKeptWithGroup() throws Exception {
+        checkOwnFilesKept(Durability.GROUP);
+    }
+
+    @Test
+    public void ownFilesKeptWithNone() throws Exception {
+        checkOwnFilesKept(Durability.NONE);
+    }
+
+    private List<HeaderIndex.Hit> search(String subject, String mailbox) {
+        var query = new HeaderQuery().subject(subject).mailbox(mailbox);
+
+        return server.getContext().getMailboxes().getHeaderIndex().search(query).getHits();
+    }
+
+    /**
+     * A message delivered to two mailboxes is one MessageInfo.
+     * Deleting it from one must leave the other as it was.
+     */
+    private void checkSharedKept(StoreType storeType) throws Exception {
+        startServer(Durability.SYNC, storeType);
+        send(1);
+
+        //Let the watcher catch up
+        Thread.sleep(500);
+
+        var msg = snapshot("b@example.com").getMessages().get(0);
+
+        try (var pop3 = new TestClient(server.getPop3Port())) {
+            pop3.command("USER a@example.com");
+            pop3.command("PASS x");
+
+            assertTrue(pop3.command("DELE 1").startsWith("+OK"));
+            assertTrue(pop3.command("QUIT").startsWith("+OK"));
+        }
+
+        //Deleted in the background
+        for (int i = 0; i < 100 && msg.isLinked(0); ++i) {
+            Thread.sleep(50);
+        }
+
+        Thread.sleep(500);
+
+        assertFalse(msg.isLinked(0));
+        assertTrue(msg.isLinked(1));
+        assertEquals(0, snapshot("a@example.com").size());
+        assertEquals(1, snapshot("b@example.com").size());
+        assertSame(msg, snapshot("b@example.com").getMessages().get(0));
+        assertNotNull(msg.getTopIndex());
+
+        assertEquals(1, search("m0", "b@example.com").size());
+        assertSame(msg, search("m0", "b@example.com").get(0).getMessage());
+        assertEquals(0, search("m0", "a@example.com").size());
+
+        try (var pop3 = new TestClient(server.getPop3Port())) {
+            pop3.command("USER b@example.com");
+            pop3.command("PASS x");
+
+            assertEquals("Subject: m0", pop3.multiLine("RETR 1").get(1));
+        }
+    }
+
+    @Test
+    public void sharedKeptWithFiles() throws Exception {
+        checkSharedKept(StoreType.FILES);
+    }
+
+    @Test
+    public void sharedKeptWithSegments() throws Exception {
+        checkSharedKept(StoreType.SEGMENTS);
+    }
+
+    @Test
+    public void picksUpOtherFiles() throws Exception {
+        startServer(Durability.SYNC);
+        send(1);
+
+        var dir = server.getContext().getMailboxes().dirOf("b@example.com");
+        var other = dir.resolve("1.eml");
+
+        Files.writeString(other, "Subject: dropped in\r\n\r\n");
+
+        for (int i = 0; i < 100 && snapshot("b@example.com").size() < 2; ++i) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(2, snapshot("b@example.com").size());
+
+        Files.delete(other);
+
+        for (int i = 0; i < 100 && snapshot("b@example.com").size() > 1; ++i) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(1, snapshot("b@example.com").size());
+        assertNotNull(snapshot("b@example.com").getMessages().get(0).getTopIndex());
+    }
+
+    @Test
+    public void addressesOf() {
+        assertEquals(List.of("a@example.com", "b@example.com"),
+            Mailboxes.addressesOf("\"Doe, A\" <a@example.com>, b@example.com (Bee)"));
+        assertEquals(List.of("c@example.com"), Mailboxes.addressesOf("team: c@example.com;"));
+        assertEquals(List.of(), Mailboxes.addressesOf("undisclosed-recipients:;"));
+    }
+
+    @Test
+    public void migratesOldFiles() throws Exception {
+        var mailDir = folder.getRoot().toPath();
+
+        //As left by an older version
+        Files.writeString(mailDir.resolve("1.eml"), "To: A <a@example.com>\r\nCc: B@Example.com\r\nSubject: old\r\n\r\nbody\r\n");
+        Files.writeString(mailDir.resolve("2.eml"), "Subject: nobody\r\n\r\nbody\r\n");
+
+        startServer(Durability.SYNC);
+
+        assertEquals(1, snapshot("a@example.com").size());
+        assertEquals(1, snapshot("b@example.com").size());
+        assertFalse(Files.exists(mailDir.resolve("1.eml")));
+        assertTrue(Files.exists(mailDir.resolve("2.eml")));
+
+        try (var pop3 = new TestClient(server.getPop3Port())) {
+            pop3.command("USER b@example.com");
+            pop3.command("PASS x");
+
+            assertEquals("Subject: old", pop3.multiLine("RETR 1").get(3));
+            assertTrue(pop3.command("DELE 1").startsWith("+OK"));
+            assertTrue(pop3.command("QUIT").startsWith("+OK"));
+        }
+
+        //The other link is kept
+        Thread.sleep(500);
+
+        assertEquals(1, snapshot("a@example.com").size());
+        assertTrue(Files.exists(server.getContext().getMailboxes().dirOf("a@example.com").resolve("1.eml")));
+    }
+
+    @Test
+    public void indexesFilesPickedUp() throws Exception {
+        var dir = folder.getRoot().toPath().resolve("mailboxes").resolve("b@example.com");
+
+        //There before start up
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve("1.eml"), "Subject: before\r\n\r\nbody\r\n");
+
+        startServer(Durability.SYNC);
+
+        assertEquals(1, search("before", "b@example.com").size());
+
+        //Dropped in while running
+        Files.writeString(dir.resolve("2.eml"), "Subject: after\r\n\r\nbody\r\n");
+
+        for (int i = 0; i < 100 && search("after", "b@example.com").isEmpty(); ++i) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(1, search("after", "b@example.com").size());
+
+        Files.delete(dir.resolve("2.eml"));
+
+        for (int i = 0; i < 100 && snapshot("b@example.com").size() > 1; ++i) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, search("after", "b@example.com").size());
+        assertEquals(1, server.getContext().getMailboxes().getHeaderIndex().size());
+    }
+
+    @Test
+    public void indexesLoadedSegments() throws Exception {
+        startServer(Durability.SYNC, StoreType.SEGMENTS);
+        send(2);
+        server.close();
+
+        startServer(Durability.SYNC, StoreType.SEGMENTS);
+
+        assertEquals(1, search("m1", "a@example.com").size());
+        assertEquals(1, search("m1", "b@example.com").size());
+    }
+}
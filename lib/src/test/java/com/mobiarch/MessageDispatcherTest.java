@@ -0,0 +1,177 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageDispatcherTest {
+    //About 2 MB
+    private static final String BIG = "Subject: big\r\n\r\n"
+        + "0123456789".repeat(10).concat("\r\n").repeat(20_000);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DevMailServer server;
+
+    private void startServer(StoreType storeType) throws IOException {
+        server = DevMailServer.builder()
+            .smtpPort(0)
+            .pop3Port(0)
+            .reactors(1)
+            .storeType(storeType)
+            .mailDir(folder.getRoot().toPath())
+            .start();
+    }
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private void send(String to, String content) throws IOException {
+        try (var client = new TestClient(server.getSmtpPort())) {
+            client.send("HELO test\r\n"
+                + "MAIL FROM:<a@example.com>\r\n"
+                + "RCPT TO:<" + to + ">\r\n"
+                + "DATA\r\n");
+
+            for (int i = 0; i < 4; ++i) {
+                client.readLine();
+            }
+
+            assertEquals("250 Ok", client.command(content + "."));
+        }
+    }
+
+    private static String read(MessageEvent event) throws IOException {
+        return StandardCharsets.US_ASCII.decode(event.getContent()).toString();
+    }
+
+    /**
+     * Reads the content of an event well after the listeners
+     * are done with it.
+     */
+    private void checkContentAfterAwait(StoreType storeType) throws Exception {
+        startServer(storeType);
+
+        var dispatcher = server.getDispatcher();
+        var isDone = new AtomicBoolean();
+        //Sends till the message is seen. Those sent before
+        //await() subscribes are missed.
+        var sender = new Thread(() -> {
+            try {
+                while (!isDone.get()) {
+                    send("b@example.com", BIG);
+                }
+            } catch (IOException e) {
+                //Fails the await
+            }
+        });
+        MessageEvent event;
+
+        sender.start();
+
+        try {
+            event = dispatcher.await(MessageDispatcher.toRecipient("b@example.com"), 10_000);
+        } finally {
+            isDone.set(true);
+            sender.join();
+        }
+
+        //The dispatcher has let go of the first one
+        //by the time the next one is handed over
+        var next = dispatcher.next(MessageDispatcher.toRecipient("c@example.com"));
+
+        send("c@example.com", "Subject: small\r\n\r\n");
+
+        var second = next.get(10, TimeUnit.SECONDS);
+
+        assertEquals(BIG, read(event));
+        assertEquals(BIG, read(event));
+        assertEquals("Subject: small\r\n\r\n", read(second));
+        assertTrue(event.getContent().isReadOnly());
+    }
+
+    @Test
+    public void contentAfterAwaitWithFiles() throws Exception {
+        checkContentAfterAwait(StoreType.FILES);
+    }
+
+    @Test
+    public void contentAfterAwaitWithSegments() throws Exception {
+        checkContentAfterAwait(StoreType.SEGMENTS);
+    }
+
+    @Test
+    public void contentAfterAwaitWithMemory() throws Exception {
+        checkContentAfterAwait(StoreType.MEMORY);
+    }
+
+    /**
+     * Keeps the buffer a listener got and reads it once the
+     * message is deleted.
+     */
+    private void checkKeptContent(StoreType storeType) throws Exception {
+        startServer(storeType);
+
+        var kept = new AtomicReference<ByteBuffer>();
+        var done = new CountDownLatch(1);
+        var subscription = server.getDispatcher().subscribe(event -> {
+            kept.set(event.getContent());
+            done.countDown();
+        });
+
+        send("b@example.com", BIG);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        subscription.close();
+
+        try (var pop3 = new TestClient(server.getPop3Port())) {
+            pop3.command("USER b@example.com");
+            pop3.command("PASS x");
+            pop3.command("DELE 1");
+            pop3.command("QUIT");
+        }
+
+        var mailbox = server.getContext().getMailboxes().get("b@example.com");
+
+        for (int i = 0; i < 100 && mailbox.size() > 0; ++i) {
+            Thread.sleep(50);
+        }
+
+        //Let the store delete it
+        Thread.sleep(200);
+
+        assertEquals(BIG, StandardCharsets.US_ASCII.decode(kept.get()).toString());
+    }
+
+    @Test
+    public void keptContentWithFiles() throws Exception {
+        checkKeptContent(StoreType.FILES);
+    }
+
+    @Test
+    public void keptContentWithSegments() throws Exception {
+        checkKeptContent(StoreType.SEGMENTS);
+    }
+
+    @Test
+    public void keptContentWithMemory() throws Exception {
+        checkKeptContent(StoreType.MEMORY);
+    }
+}
@@ -0,0 +1,210 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class POP3StateTest {
+    private static final String USER = "bob@example.com";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DevMailServer server;
+    private final long[] sizes = new long[3];
+
+    /**
+     * Starts the server with three messages for bob.
+     */
+    @Before
+    public void startServer() throws IOException {
+        server = DevMailServer.builder()
+            .smtpPort(0)
+            .pop3Port(0)
+            .reactors(1)
+            .mailDir(folder.getRoot().toPath())
+            .start();
+
+        try (var client = new TestClient(server.getSmtpPort())) {
+            client.command("HELO test");
+
+            for (int i = 0; i < sizes.length; ++i) {
+                client.command("MAIL FROM:<a@example.com>");
+                client.command("RCPT TO:<" + USER + ">");
+                client.command("DATA");
+
+                assertEquals("250 Ok", client.command("Subject: m" + (i + 1) + "\r\n\r\n" + "x".repeat(i) + "\r\n."));
+            }
+        }
+
+        var messages = index().snapshot().getMessages();
+
+        for (int i = 0; i < sizes.length; ++i) {
+            sizes[i] = messages.get(i).getSize();
+        }
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    private MailboxIndex index() {
+        return server.getContext().getMailboxes().get(USER);
+    }
+
+    private TestClient login() throws IOException {
+        var client = new TestClient(server.getPop3Port());
+
+        assertTrue(client.command("USER " + USER).startsWith("+OK"));
+        assertTrue(client.command("PASS x").startsWith("+OK"));
+
+        return client;
+    }
+
+    private static String stat(long count, long size) {
+        return "+OK " + count + " " + size;
+    }
+
+    /**
+     * Waits till the background deletes are done.
+     */
+    private void awaitDeleted(int remaining) throws Exception {
+        var dir = server.getContext().getMailboxes().dirOf(USER);
+
+        for (int i = 0; i < 100; ++i) {
+            try (var files = Files.list(dir)) {
+                if (files.count() == remaining) {
+                    return;
+                }
+            }
+
+            Thread.sleep(50);
+        }
+
+        try (var files = Files.list(dir)) {
+            assertEquals(remaining, files.count());
+        }
+    }
+
+    @Test
+    public void deleteHidesMessage() throws IOException {
+        try (var client = login()) {
+            assertEquals(stat(3, sizes[0] + sizes[1] + sizes[2]), client.command("STAT"));
+            assertEquals("+OK Message deleted", client.command("DELE 2"));
+
+            //The others keep their numbers
+            assertEquals(stat(2, sizes[0] + sizes[2]), client.command("STAT"));
+            assertEquals(List.of("+OK Mailbox scan listing follows", "1 " + sizes[0], "3 " + sizes[2]),
+                client.multiLine("LIST"));
+            assertEquals("-ERR", client.command("RETR 2"));
+            assertEquals("-ERR", client.command("DELE 2"));
+            assertEquals("-ERR", client.command("UIDL 2"));
+            assertEquals("Subject: m3", client.multiLine("RETR 3").get(1));
+        }
+    }
+
+    @Test
+    public void topNegativeLines() throws IOException {
+        try (var client = login()) {
+            assertEquals("-ERR", client.command("TOP 1 -1"));
+
+            //The session goes on
+            assertEquals("Subject: m1", client.multiLine("TOP 1 0").get(1));
+        }
+    }
+
+    @Test
+    public void resetUnmarks() throws IOException {
+        try (var client = login()) {
+            client.command("DELE 1");
+            client.command("DELE 3");
+
+            assertEquals("+OK maildrop has 3 messages (" + (sizes[0] + sizes[1] + sizes[2]) + " octets)",
+                client.command("RSET"));
+            assertEquals(stat(3, sizes[0] + sizes[1] + sizes[2]), client.command("STAT"));
+            assertEquals("Subject: m1", client.multiLine("RETR 1").get(1));
+            assertEquals("+OK Bye", client.command("QUIT"));
+        }
+
+        assertEquals(3, index().size());
+    }
+
+    @Test
+    public void disconnectKeepsMessages() throws Exception {
+        try (var client = login()) {
+            client.command("DELE 1");
+            client.command("DELE 2");
+        }
+
+        //Nothing to wait for. Give a wrong delete the time to happen.
+        Thread.sleep(200);
+
+        assertEquals(3, index().size());
+
+        try (var files = Files.list(server.getContext().getMailboxes().dirOf(USER))) {
+            assertEquals(3, files.count());
+        }
+
+        try (var client = login()) {
+            assertEquals(stat(3, sizes[0] + sizes[1] + sizes[2]), client.command("STAT"));
+        }
+    }
+
+    @Test
+    public void quitDeletes() throws Exception {
+        var kept = index().snapshot().getMessages().get(1);
+
+        try (var client = login()) {
+            client.command("DELE 1");
+            client.command("DELE 3");
+
+            assertEquals("+OK Bye", client.command("QUIT"));
+            assertNull(client.readLine());
+        }
+
+        //Out of the index at once
+        assertEquals(1, index().size());
+        assertEquals(sizes[1], index().getTotalSize());
+
+        //Out of the store in the background
+        awaitDeleted(1);
+
+        assertTrue(kept.isLinked());
+        assertTrue(Files.exists(kept.getFile().toPath()));
+
+        try (var client = login()) {
+            assertEquals(stat(1, sizes[1]), client.command("STAT"));
+            assertEquals("Subject: m2", client.multiLine("RETR 1").get(1));
+        }
+    }
+
+    @Test
+    public void othersSeeDeletesAfterQuit() throws IOException {
+        try (var first = login(); var second = login()) {
+            first.command("DELE 1");
+
+            //Not till QUIT
+            assertEquals(stat(3, sizes[0] + sizes[1] + sizes[2]), second.command("STAT"));
+
+            first.command("QUIT");
+
+            //The second keeps its snapshot
+            assertEquals(stat(3, sizes[0] + sizes[1] + sizes[2]), second.command("STAT"));
+        }
+
+        try (var client = login()) {
+            assertEquals(stat(2, sizes[1] + sizes[2]), client.command("STAT"));
+        }
+    }
+}
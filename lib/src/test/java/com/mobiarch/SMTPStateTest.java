@@ -0,0 +1,290 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SMTPStateTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DevMailServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        startServer(ProtocolLimits.SMTP_DEFAULTS);
+    }
+
+    private void startServer(ProtocolLimits smtpLimits) throws IOException {
+        server = DevMailServer.builder()
+            .smtpPort(0)
+            .pop3Port(0)
+            .reactors(1)
+            .mailDir(folder.getRoot().toPath())
+            .limits(smtpLimits, ProtocolLimits.POP3_DEFAULTS, 100)
+            .start();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    private TestClient smtp() throws IOException {
+        return new TestClient(server.getSmtpPort());
+    }
+
+    /**
+     * Reads a multi line SMTP reply.
+     *
+     * @return The last line.
+     */
+    private static String readReply(TestClient client) throws IOException {
+        String line;
+
+        while ((line = client.readLine()) != null && line.charAt(3) == '-') {
+            //More to come
+        }
+
+        return line;
+    }
+
+    /**
+     * @return The messages in a mailbox as retrieved over POP3.
+     */
+    private List<String> retrieveAll(String user) throws IOException {
+        try (var pop3 = new TestClient(server.getPop3Port())) {
+            pop3.command("USER " + user);
+            pop3.command("PASS x");
+
+            var stat = pop3.command("STAT").split(" ");
+            int count = Integer.parseInt(stat[1]);
+            var messages = new ArrayList<String>();
+
+            for (int i = 1; i <= count; ++i) {
+                var lines = pop3.multiLine("RETR " + i);
+
+                messages.add(String.join("\n", lines.subList(1, lines.size())).stripTrailing());
+            }
+
+            pop3.command("QUIT");
+
+            return messages;
+        }
+    }
+
+    @Test
+    public void pipelinedTransactions() throws IOException {
+        try (var client = smtp()) {
+            client.send("EHLO test\r\n"
+                + "MAIL FROM:<a@example.com>\r\n"
+                + "RCPT TO:<b@example.com>\r\n"
+                + "RCPT TO:<c@example.com>\r\n"
+                + "DATA\r\n");
+
+            assertEquals("250 Ok", readReply(client));
+            assertEquals("250 Ok", client.readLine());
+            assertEquals("250 Ok", client.readLine());
+            assertEquals("250 Ok", client.readLine());
+            assertTrue(client.readLine().startsWith("354"));
+
+            //The next transaction follows the end of data in the same write
+            client.send("Subject: one\r\n\r\nhello\r\n.\r\n"
+                + "MAIL FROM:<a@example.com>\r\n"
+                + "RCPT TO:<b@example.com>\r\n"
+                + "DATA\r\n");
+
+            assertEquals("250 Ok", client.readLine());
+            assertEquals("250 Ok", client.readLine());
+            assertEquals("250 Ok", client.readLine());
+            assertTrue(client.readLine().startsWith("354"));
+
+            client.send("Subject: two\r\n\r\nworld\r\n.\r\nQUIT\r\n");
+
+            assertEquals("250 Ok", client.readLine());
+            assertEquals("221 Bye", client.readLine());
+        }
+
+        assertEquals(List.of("Subject: one\n\nhello", "Subject: two\n\nworld"), retrieveAll("b@example.com"));
+        assertEquals(List.of("Subject: one\n\nhello"), retrieveAll("c@example.com"));
+    }
+
+    @Test
+    public void batchLargerThanBuffers() throws IOException {
+        //More commands than the in buffer holds and more
+        //replies than the out buffer holds
+        int count = 500;
+
+        try (var client = smtp()) {
+            client.send("HELO test\r\n".repeat(count));
+
+            for (int i = 0; i < count; ++i) {
+                assertEquals("Reply " + i, "250 Ok", client.readLine());
+            }
+
+            assertEquals("221 Bye", client.command("QUIT"));
+        }
+    }
+
+    /**
+     * Starts a BDAT transaction for b@example.com.
+     */
+    private static void startChunking(TestClient client) throws IOException {
+        assertEquals("250 Ok", client.command("HELO test"));
+        assertEquals("250 Ok", client.command("MAIL FROM:<a@example.com>"));
+        assertEquals("250 Ok", client.command("RCPT TO:<b@example.com>"));
+    }
+
+    @Test
+    public void chunks() throws IOException {
+        try (var client = smtp()) {
+            startChunking(client);
+
+            //The chunk may come in the same write as the command
+            client.send("BDAT 14\r\nSubject: x\r\n\r\n");
+
+            assertEquals("250 Ok", client.readLine());
+
+            client.send("BDAT 6\r\n");
+            client.send(".dot\r\n");
+
+            assertEquals("250 Ok", client.readLine());
+            assertEquals("250 Ok", client.command("BDAT 0 LAST"));
+        }
+
+        //No unstuffing for BDAT
+        assertEquals(List.of("Subject: x\n\n.dot"), retrieveAll("b@example.com"));
+    }
+
+    @Test
+    public void emptyLastChunk() throws IOException {
+        try (var client = smtp()) {
+            startChunking(client);
+
+            assertEquals("250 Ok", client.command("BDAT 0"));
+            assertEquals("250 Ok", client.command("BDAT 0 LAST"));
+        }
+
+        assertEquals(1, server.getContext().getMailboxes().get("b@example.com").size());
+    }
+
+    @Test
+    public void mailBetweenChunks() throws IOException {
+        try (var client = smtp()) {
+            startChunking(client);
+
+            client.send("BDAT 5\r\nhello");
+
+            assertEquals("250 Ok", client.readLine());
+
+            //The transaction is still open
+            assertEquals("503 Bad sequence of commands", client.command("MAIL FROM:<c@example.com>"));
+            assertEquals("250 Ok", client.command("BDAT 0 LAST"));
+        }
+
+        assertEquals(List.of("hello"), retrieveAll("b@example.com"));
+    }
+
+    @Test
+    public void invalidChunkSize() throws IOException {
+        try (var client = smtp()) {
+            for (var size : List.of("-5 LAST", "", "LAST", "12x", "5 FIRST", "99999999999999999999 LAST")) {
+                startChunking(client);
+
+                assertEquals("BDAT " + size, "501 Invalid chunk size", client.command("BDAT " + size));
+            }
+
+            //The session goes on
+            assertEquals("250 Ok", client.command("HELO test"));
+        }
+
+        assertEquals(0, server.getContext().getMailboxes().get("b@example.com").size());
+    }
+
+    @Test
+    public void chunkTooLarge() throws IOException {
+        server.close();
+        startServer(new ProtocolLimits(300_000, 60_000, 180_000, 100, 100));
+
+        try (var client = smtp()) {
+            startChunking(client);
+
+            //Read and thrown away
+            client.send("BDAT 200 LAST\r\n" + "x".repeat(200));
+
+            assertEquals("552 5.3.4 Message size exceeds fixed limit", client.readLine());
+
+            //Over the cap only with the second chunk
+            startChunking(client);
+
+            client.send("BDAT 60\r\n" + "y".repeat(60));
+
+            assertEquals("250 Ok", client.readLine());
+
+            client.send("BDAT 60 LAST\r\n" + "z".repeat(60));
+
+            assertEquals("552 5.3.4 Message size exceeds fixed limit", client.readLine());
+
+            //Up to the cap is fine
+            startChunking(client);
+
+            client.send("BDAT 100 LAST\r\n" + "w".repeat(100));
+
+            assertEquals("250 Ok", client.readLine());
+        }
+
+        assertEquals(List.of("w".repeat(100)), retrieveAll("b@example.com"));
+    }
+
+    @Test
+    public void pipelinedAfterFailedSave() throws IOException {
+        //The message can't be created
+        Files.delete(folder.getRoot().toPath().resolve("tmp"));
+
+        try (var client = smtp()) {
+            client.send("HELO test\r\n"
+                + "MAIL FROM:<a@example.com>\r\n"
+                + "RCPT TO:<b@example.com>\r\n"
+                + "DATA\r\n");
+
+            for (int i = 0; i < 3; ++i) {
+                assertEquals("250 Ok", client.readLine());
+            }
+
+            assertTrue(client.readLine().startsWith("354"));
+
+            //More than the staging buffer holds. The commands
+            //that follow come in the last read.
+            client.send("Subject: x\r\n\r\n" + "line of the body\r\n".repeat(20_000)
+                + ".\r\n"
+                + "NOOP\r\n"
+                + "QUIT\r\n");
+
+            assertEquals("451 Local error in processing", client.readLine());
+            assertEquals("250 Ok", client.readLine());
+            assertEquals("221 Bye", client.readLine());
+        }
+    }
+
+    @Test
+    public void commandSplitAcrossWrites() throws IOException {
+        try (var client = smtp()) {
+            client.send("HELO te");
+            client.send("st\r\nMAIL FROM:<a@exa");
+            client.send("mple.com>\r\n");
+
+            assertEquals("250 Ok", client.readLine());
+            assertEquals("250 Ok", client.readLine());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path mailDir;
+    private SegmentStore store;
+    private Mailboxes mailboxes;
+
+    @Before
+    public void setUp() {
+        mailDir = folder.getRoot().toPath();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Closes the store if open and loads the segments again.
+     */
+    private void open(long segmentSize) throws IOException {
+        if (store != null) {
+            store.close();
+        }
+
+        store = new SegmentStore(mailDir, segmentSize);
+        mailboxes = new Mailboxes(mailDir);
+
+        store.load(mailboxes);
+    }
+
+    private void open() throws IOException {
+        open(64L * 1024 * 1024);
+    }
+
+    private Path segmentPath(int number) {
+        return mailDir.resolve("segments").resolve(String.format("%09d.seg", number));
+    }
+
+    private MessageInfo deliver(String content, String... names) throws IOException {
+        var draft = store.create(List.of(names));
+
+        draft.getChannel().write(ByteBuffer.wrap(content.getBytes(StandardCharsets.US_ASCII)));
+
+        var msg = draft.finish();
+
+        draft.force();
+        draft.publish();
+        mailboxes.add(msg);
+
+        return msg;
+    }
+
+    private String read(MessageInfo msg) throws IOException {
+        try (var body = store.open(msg)) {
+            var map = body.map();
+
+            try {
+                return StandardCharsets.US_ASCII.decode(map).toString();
+            } finally {
+                body.unmap(map);
+            }
+        }
+    }
+
+    /**
+     * @return The content of the messages in a mailbox.
+     */
+    private List<String> readAll(String name) throws IOException {
+        var contents = new ArrayList<String>();
+
+        for (var msg : mailboxes.get(name).snapshot().getMessages()) {
+            contents.add(read(msg));
+        }
+
+        return contents;
+    }
+
+    @Test
+    public void loadsAfterRestart() throws IOException {
+        open();
+        deliver("one", "a");
+        deliver("two", "a", "b");
+        open();
+
+        assertEquals(List.of("one", "two"), readAll("a"));
+        assertEquals(List.of("two"), readAll("b"));
+    }
+
+    @Test
+    public void truncatedRecord() throws IOException {
+        open();
+        deliver("one", "a");
+
+        var second = deliver("two", "a");
+
+        deliver("three", "a");
+
+        long end = second.getLocation().offset + second.getSize();
+
+        store.close();
+
+        //Cut short while the last message was written
+        try (var channel = FileChannel.open(segmentPath(1), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 2);
+        }
+
+        open();
+
+        assertEquals(List.of("one", "two"), readAll("a"));
+        assertEquals(end, Files.size(segmentPath(1)));
+
+        //Appended after the last complete record
+        deliver("four", "a");
+        open();
+
+        assertEquals(List.of("one", "two", "four"), readAll("a"));
+    }
+
+    @Test
+    public void partialHeader() throws IOException {
+        open();
+        deliver("one", "a");
+
+        long end = Files.size(segmentPath(1));
+
+        store.close();
+        Files.write(segmentPath(1), new byte[10], StandardOpenOption.APPEND);
+        open();
+
+        assertEquals(List.of("one"), readAll("a"));
+        assertEquals(end, Files.size(segmentPath(1)));
+    }
+
+    @Test
+    public void unlinkPersisted() throws IOException {
+        open();
+
+        var msg = deliver("shared", "a", "b");
+
+        store.delete(msg, "a");
+        open();
+
+        assertEquals(0, mailboxes.get("a").size());
+        assertEquals(List.of("shared"), readAll("b"));
+
+        var loaded = mailboxes.get("b").snapshot().getMessages().get(0);
+
+        assertFalse(loaded.isLinked(0));
+        assertTrue(loaded.isLinked(1));
+
+        //Gone for good once deleted from the last mailbox
+        store.delete(loaded, "b");
+        open();
+
+        assertEquals(0, mailboxes.get("b").size());
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        //A segment is sealed after a few messages
+        open(1000);
+
+        var content = "x".repeat(200);
+        var messages = new ArrayList<MessageInfo>();
+
+        for (int i = 0; i < 10; ++i) {
+            messages.add(deliver(content + i, "a"));
+        }
+
+        assertTrue(Files.exists(segmentPath(2)));
+
+        //Most of the first segment is deleted
+        for (var msg : messages.subList(0, 3)) {
+            store.delete(msg, "a");
+            mailboxes.get("a").remove(msg.getId());
+        }
+
+        for (int i = 0; i < 100 && Files.exists(segmentPath(1)); ++i) {
+            Thread.sleep(50);
+        }
+
+        assertFalse(Files.exists(segmentPath(1)));
+
+        var expected = new ArrayList<String>();
+
+        for (int i = 3; i < 10; ++i) {
+            expected.add(content + i);
+        }
+
+        //Moved messages are read from their new place
+        assertEquals(expected, readAll("a"));
+
+        open(1000);
+
+        assertEquals(expected, readAll("a"));
+    }
+}
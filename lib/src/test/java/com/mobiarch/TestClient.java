@@ -0,0 +1,100 @@
+package com.mobiarch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A line based SMTP or POP3 client for the tests. Reads time out
+ * after 10 seconds so a hung server fails the test.
+ */
+class TestClient implements AutoCloseable {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * Connects and reads the greeting.
+     */
+    TestClient(int port) throws IOException {
+        socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(10_000);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+
+        readLine();
+    }
+
+    /**
+     * Sends the text as is. Many commands may be sent in one go.
+     */
+    void send(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * @return The next line without the line end. null if the
+     * server has hung up.
+     */
+    String readLine() throws IOException {
+        var line = new ByteArrayOutputStream();
+        int ch;
+
+        while ((ch = in.read()) != '\n') {
+            if (ch < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1);
+            }
+
+            line.write(ch);
+        }
+
+        var text = line.toString(StandardCharsets.ISO_8859_1);
+
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Sends a command line and reads the one line reply.
+     */
+    String command(String line) throws IOException {
+        send(line + "\r\n");
+
+        return readLine();
+    }
+
+    /**
+     * Sends a POP3 command with a multi line reply.
+     *
+     * @return The status line followed by the lines up to the
+     * terminating ".", unstuffed. Only the status line if it's
+     * an error.
+     */
+    List<String> multiLine(String line) throws IOException {
+        var lines = new ArrayList<String>();
+
+        lines.add(command(line));
+
+        if (!lines.get(0).startsWith("+OK")) {
+            return lines;
+        }
+
+        String next;
+
+        while ((next = readLine()) != null && !next.equals(".")) {
+            lines.add(next.startsWith(".") ? next.substring(1) : next);
+        }
+
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,143 @@
+package com.mobiarch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+    //10 ms ticks and 8 slots. A turn is 80 ms.
+    private final TimingWheel<String> wheel = new TimingWheel<>(10, 8, 0);
+    private final List<String> expired = new ArrayList<>();
+
+    private TimingWheel.Timer<String> schedule(String owner, long deadline) {
+        var timer = new TimingWheel.Timer<>(owner);
+
+        wheel.schedule(timer, deadline);
+
+        return timer;
+    }
+
+    private List<String> advance(long now) {
+        expired.clear();
+        wheel.advance(now, expired::add);
+
+        return expired;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void slotCountPowerOf2() {
+        new TimingWheel<String>(10, 6, 0);
+    }
+
+    @Test
+    public void neverEarly() {
+        var timer = schedule("a", 25);
+
+        assertTrue(timer.isScheduled());
+        assertEquals(25, timer.getDeadline());
+        assertEquals(List.of(), advance(20));
+        assertEquals(List.of(), advance(29));
+        assertEquals(List.of("a"), advance(30));
+        assertFalse(timer.isScheduled());
+        assertEquals(0, wheel.size());
+        assertEquals(List.of(), advance(100));
+    }
+
+    @Test
+    public void cancel() {
+        var a = schedule("a", 15);
+        var b = schedule("b", 15);
+
+        wheel.cancel(a);
+        wheel.cancel(a);
+
+        assertEquals(1, wheel.size());
+        assertEquals(List.of("b"), advance(20));
+        assertFalse(b.isScheduled());
+    }
+
+    @Test
+    public void pushBack() {
+        var timer = schedule("a", 20);
+
+        //Only recorded till the old tick comes
+        wheel.schedule(timer, 50);
+
+        assertEquals(List.of(), advance(20));
+        assertTrue(timer.isScheduled());
+        assertEquals(List.of(), advance(40));
+        assertEquals(List.of("a"), advance(50));
+    }
+
+    @Test
+    public void bringForward() {
+        var timer = schedule("a", 50);
+
+        wheel.schedule(timer, 20);
+
+        assertEquals(List.of("a"), advance(20));
+        assertEquals(List.of(), advance(50));
+    }
+
+    @Test
+    public void pastDeadlineFiresNextTick() {
+        advance(100);
+        schedule("a", 50);
+
+        assertEquals(List.of("a"), advance(110));
+    }
+
+    @Test
+    public void moreThanOneTurn() {
+        schedule("a", 200);
+        //In the same slot as a
+        schedule("b", 40);
+
+        assertEquals(List.of("b"), advance(40));
+        assertEquals(List.of(), advance(120));
+        assertEquals(List.of(), advance(199));
+        assertEquals(List.of("a"), advance(200));
+    }
+
+    @Test
+    public void manyTurnsGoneBy() {
+        schedule("a", 30);
+        schedule("b", 75);
+        schedule("c", 1000);
+
+        assertEquals(List.of("a", "b"), advance(500));
+        assertEquals(1, wheel.size());
+        assertEquals(List.of("c"), advance(1000));
+    }
+
+    @Test
+    public void rescheduleWhenExpired() {
+        var timer = schedule("a", 50);
+
+        //Scheduled again for a time already gone by
+        wheel.advance(50, owner -> wheel.schedule(timer, 50));
+
+        assertTrue(timer.isScheduled());
+        assertEquals(List.of("a"), advance(60));
+    }
+
+    @Test
+    public void delay() {
+        assertEquals(-1, wheel.getDelay(0));
+
+        schedule("a", 100);
+
+        assertEquals(10, wheel.getDelay(0));
+        assertEquals(3, wheel.getDelay(7));
+        assertEquals(1, wheel.getDelay(15));
+
+        advance(45);
+
+        assertEquals(5, wheel.getDelay(45));
+    }
+}
@@ -0,0 +1,96 @@
+package com.mobiarch.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A blocking client that sends commands and reads CRLF terminated
+ * replies. Nothing is sent till {@link #flush()} so that pipelined
+ * commands go out together.
+ */
+public class LineClient implements AutoCloseable {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final StringBuilder line = new StringBuilder();
+
+    public LineClient(String host, int port, int timeoutMillis) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(timeoutMillis);
+        socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+
+        in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+    }
+
+    public String readLine() throws IOException {
+        line.setLength(0);
+
+        int ch;
+
+        while ((ch = in.read()) != '\n') {
+            if (ch < 0) {
+                throw new IOException("Server disconnected");
+            }
+
+            if (ch != '\r') {
+                line.append((char) ch);
+            }
+        }
+
+        return line.toString();
+    }
+
+    /**
+     * Reads a reply and throws if it does not start with prefix.
+     */
+    public String expect(String prefix) throws IOException {
+        var reply = readLine();
+
+        if (!reply.startsWith(prefix)) {
+            throw new ProtocolException(reply);
+        }
+
+        return reply;
+    }
+
+    /**
+     * Reads the lines of a multi-line POP3 response up to the
+     * terminating ".".
+     *
+     * @return The number of lines read.
+     */
+    public int readMultiLine() throws IOException {
+        int count = 0;
+
+        while (!readLine().equals(".")) {
+            ++count;
+        }
+
+        return count;
+    }
+
+    public void send(String cmd) throws IOException {
+        out.write(cmd.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public void send(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
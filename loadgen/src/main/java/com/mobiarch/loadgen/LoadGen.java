@@ -0,0 +1,71 @@
+package com.mobiarch.loadgen;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Drives a devmail server with concurrent SMTP senders and POP3 
+ * readers for a fixed time. Reports the progress as it goes and 
+ * the throughput and latency percentiles of every command at 
+ * the end.</p>
+ * 
+ * <p>Run with --help for the options.</p>
+ */
+public class LoadGen {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && (args[0].equals("--help") || args[0].equals("-h"))) {
+            Options.printUsage();
+
+            return;
+        }
+
+        var opts = Options.parse(args);
+        var stats = new LoadStats();
+        var messages = new MessageFactory(opts.sizes);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(opts.duration);
+        var threads = new ArrayList<Thread>();
+
+        System.out.printf("Running %d sender(s) and %d reader(s) against %s for %d s%n",
+            opts.senders, opts.readers, opts.host, opts.duration);
+
+        for (int i = 0; i < opts.senders; ++i) {
+            threads.add(new Thread(new SmtpSender(opts, stats, messages, deadline), "sender-" + i));
+        }
+
+        for (int i = 0; i < opts.readers; ++i) {
+            threads.add(new Thread(new Pop3Reader(opts, stats, deadline, i), "reader-" + i));
+        }
+
+        for (var thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long lastSent = 0;
+        long lastRead = 0;
+
+        while (System.nanoTime() < deadline) {
+            long sleepNanos = Math.min(TimeUnit.SECONDS.toNanos(opts.interval), deadline - System.nanoTime());
+
+            TimeUnit.NANOSECONDS.sleep(Math.max(sleepNanos, 0));
+
+            long sent = stats.messagesSent.sum();
+            long read = stats.messagesRead.sum();
+
+            System.out.printf("%5.0f s  sent %8d (+%d)  read %8d (+%d)  errors %d%n",
+                (System.nanoTime() - start) / 1e9, sent, sent - lastSent, read, read - lastRead, 
+                stats.errors.sum());
+
+            lastSent = sent;
+            lastRead = read;
+        }
+
+        //Let the sessions finish what they are doing
+        for (var thread : threads) {
+            thread.join(opts.timeoutMillis);
+        }
+
+        stats.printSummary((System.nanoTime() - start) / 1e9);
+    }
+}
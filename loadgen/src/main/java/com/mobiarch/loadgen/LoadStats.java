@@ -0,0 +1,52 @@
+package com.mobiarch.loadgen;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mobiarch.Histogram;
+
+/**
+ * Latency of each command and the overall counts. 
+ * Shared by all the client threads.
+ */
+public class LoadStats {
+    private final Map<String, Histogram> latencies = new ConcurrentHashMap<>();
+    final LongAdder messagesSent = new LongAdder();
+    final LongAdder messagesRead = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    /**
+     * Records the time from sending a command to reading its reply.
+     */
+    public void record(String command, long nanos) {
+        latencies.computeIfAbsent(command, k -> new Histogram()).record(nanos);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of every command.
+     */
+    public void printSummary(double seconds) {
+        System.out.printf("%nRan for %.1f s. Sent %d messages (%.1f/s, %.1f MB/s). Read %d messages (%.1f/s). Errors: %d%n",
+            seconds, messagesSent.sum(), messagesSent.sum() / seconds, 
+            bytesSent.sum() / seconds / (1024 * 1024),
+            messagesRead.sum(), messagesRead.sum() / seconds, errors.sum());
+        System.out.printf("%n%-14s %10s %10s %10s %10s %10s %10s%n", 
+            "Command", "Count", "Ops/s", "p50 ms", "p99 ms", "p999 ms", "Max ms");
+
+        for (var entry : new TreeMap<>(latencies).entrySet()) {
+            var h = entry.getValue();
+
+            System.out.printf("%-14s %10d %10.1f %10s %10s %10s %10s%n", 
+                entry.getKey(), h.getCount(), h.getCount() / seconds,
+                millis(h.getValueAt(0.5)), millis(h.getValueAt(0.99)), 
+                millis(h.getValueAt(0.999)), millis(h.getValueAt(1.0)));
+        }
+    }
+}
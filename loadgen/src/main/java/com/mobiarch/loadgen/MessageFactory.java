@@ -0,0 +1,93 @@
+package com.mobiarch.loadgen;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Makes the messages to send. One message is built ahead of time 
+ * for each size. Which size is sent is picked at random by weight.
+ */
+public class MessageFactory {
+    private final byte[][] raw;
+    private final byte[][] stuffed;
+    private final long[] cumulativeWeights;
+
+    public MessageFactory(List<long[]> sizes) {
+        raw = new byte[sizes.size()][];
+        stuffed = new byte[sizes.size()][];
+        cumulativeWeights = new long[sizes.size()];
+
+        long total = 0;
+
+        for (int i = 0; i < sizes.size(); ++i) {
+            raw[i] = build((int) sizes.get(i)[0]);
+            stuffed[i] = stuff(raw[i]);
+            total += sizes.get(i)[1];
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    private static byte[] build(int size) {
+        var sb = new StringBuilder(size + 100);
+
+        sb.append("From: loadgen@example.com\r\n")
+            .append("To: devmail@example.com\r\n")
+            .append("Subject: Load test\r\n\r\n");
+
+        for (int line = 0; sb.length() < size; ++line) {
+            if (line % 20 == 0) {
+                //Make the server unstuff some lines
+                sb.append('.');
+            }
+
+            sb.append("The quick brown fox jumps over the lazy dog. Line ").append(line).append("\r\n");
+        }
+
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Dot stuffs the message and adds the end of data marker.
+     */
+    private static byte[] stuff(byte[] msg) {
+        var sb = new StringBuilder(msg.length + msg.length / 20 + 5);
+        var text = new String(msg, StandardCharsets.US_ASCII);
+
+        for (var line : text.split("\r\n")) {
+            if (line.startsWith(".")) {
+                sb.append('.');
+            }
+
+            sb.append(line).append("\r\n");
+        }
+
+        sb.append(".\r\n");
+
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private int pick() {
+        long r = ThreadLocalRandom.current().nextLong(cumulativeWeights[cumulativeWeights.length - 1]);
+
+        for (int i = 0; i < cumulativeWeights.length; ++i) {
+            if (r < cumulativeWeights[i]) {
+                return i;
+            }
+        }
+
+        return cumulativeWeights.length - 1;
+    }
+
+    /**
+     * A message to send with BDAT or DATA.
+     *
+     * @param forData If true, the message is dot stuffed and ends 
+     * with the end of data marker.
+     */
+    public byte[] next(boolean forData) {
+        int i = pick();
+
+        return forData ? stuffed[i] : raw[i];
+    }
+}
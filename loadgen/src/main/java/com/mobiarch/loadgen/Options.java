@@ -0,0 +1,126 @@
+package com.mobiarch.loadgen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line options. Each is given as --name=value.
+ */
+public class Options {
+    String host = "127.0.0.1";
+    int smtpPort = 2525;
+    int pop3Port = 1100;
+    //Concurrent SMTP sessions
+    int senders = 4;
+    //Concurrent POP3 sessions
+    int readers = 1;
+    //How long to run in seconds
+    int duration = 30;
+    //Seconds between progress reports
+    int interval = 5;
+    //Messages sent before a sender reconnects
+    int messagesPerSession = 10;
+    //Messages read by a POP3 session before it quits
+    int retrPerSession = 5;
+    //Whether POP3 readers delete what they read
+    boolean dele = true;
+    //Send MAIL, RCPT and DATA/BDAT without waiting for each reply
+    boolean pipelining = true;
+    //Use BDAT instead of DATA
+    boolean chunking = false;
+    int chunkSize = 64 * 1024;
+    //Message sizes and their weights
+    List<long[]> sizes = parseSizes("1k:70,16k:25,256k:5");
+    int timeoutMillis = 30000;
+
+    static Options parse(String[] args) {
+        var opts = new Options();
+
+        for (var arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+
+            var name = arg.substring(2, arg.indexOf('='));
+            var value = arg.substring(arg.indexOf('=') + 1);
+
+            switch (name) {
+                case "host" -> opts.host = value;
+                case "smtpPort" -> opts.smtpPort = Integer.parseInt(value);
+                case "pop3Port" -> opts.pop3Port = Integer.parseInt(value);
+                case "senders" -> opts.senders = Integer.parseInt(value);
+                case "readers" -> opts.readers = Integer.parseInt(value);
+                case "duration" -> opts.duration = Integer.parseInt(value);
+                case "interval" -> opts.interval = Integer.parseInt(value);
+                case "messagesPerSession" -> opts.messagesPerSession = Integer.parseInt(value);
+                case "retrPerSession" -> opts.retrPerSession = Integer.parseInt(value);
+                case "dele" -> opts.dele = Boolean.parseBoolean(value);
+                case "pipelining" -> opts.pipelining = Boolean.parseBoolean(value);
+                case "chunking" -> opts.chunking = Boolean.parseBoolean(value);
+                case "chunkSize" -> opts.chunkSize = (int) parseSize(value);
+                case "sizes" -> opts.sizes = parseSizes(value);
+                case "timeout" -> opts.timeoutMillis = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+
+        return opts;
+    }
+
+    /**
+     * Parses sizes like 512, 16k or 1m.
+     */
+    static long parseSize(String value) {
+        var v = value.toLowerCase();
+        long unit = 1;
+
+        if (v.endsWith("k")) {
+            unit = 1024;
+        } else if (v.endsWith("m")) {
+            unit = 1024 * 1024;
+        }
+
+        if (unit > 1) {
+            v = v.substring(0, v.length() - 1);
+        }
+
+        return Long.parseLong(v) * unit;
+    }
+
+    /**
+     * Parses a size distribution like "1k:70,16k:25,1m:5". 
+     * Each entry is a size and its relative weight.
+     */
+    static List<long[]> parseSizes(String value) {
+        var list = new ArrayList<long[]>();
+
+        for (var entry : value.split(",")) {
+            var parts = entry.split(":");
+            long weight = parts.length > 1 ? Long.parseLong(parts[1]) : 1;
+
+            list.add(new long[] {parseSize(parts[0]), weight});
+        }
+
+        return list;
+    }
+
+    static void printUsage() {
+        System.out.println("""
+            Usage: LoadGen [--name=value]...
+              --host=127.0.0.1          Server to load
+              --smtpPort=2525
+              --pop3Port=1100
+              --senders=4               Concurrent SMTP sessions
+              --readers=1               Concurrent POP3 sessions
+              --duration=30             Seconds to run
+              --interval=5              Seconds between progress reports
+              --messagesPerSession=10   Messages per SMTP session
+              --retrPerSession=5        RETRs per POP3 session
+              --dele=true               Delete the messages read
+              --pipelining=true         Pipeline MAIL, RCPT and DATA/BDAT
+              --chunking=false          Send with BDAT instead of DATA
+              --chunkSize=64k           BDAT chunk size
+              --sizes=1k:70,16k:25,256k:5  Message sizes with weights
+              --timeout=30000           Socket timeout in milliseconds""");
+    }
+}
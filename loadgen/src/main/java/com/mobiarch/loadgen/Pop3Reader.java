@@ -0,0 +1,117 @@
+package com.mobiarch.loadgen;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reads messages over POP3 till the test is over. Each session 
+ * does STAT, LIST, UIDL and a few RETRs, optionally deleting what 
+ * it reads.
+ *
+ * <p>So that readers don't delete each other's messages, each 
+ * reader only takes the messages whose UIDL hashes to it.</p>
+ */
+public class Pop3Reader implements Runnable {
+    private final Options opts;
+    private final LoadStats stats;
+    private final long deadline;
+    private final int readerId;
+
+    public Pop3Reader(Options opts, LoadStats stats, long deadline, int readerId) {
+        this.opts = opts;
+        this.stats = stats;
+        this.deadline = deadline;
+        this.readerId = readerId;
+    }
+
+    @Override
+    public void run() {
+        while (System.nanoTime() < deadline) {
+            try {
+                if (runSession() == 0) {
+                    //Give the senders a chance
+                    Thread.sleep(100);
+                }
+            } catch (IOException e) {
+                stats.errors.increment();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of messages read.
+     */
+    private int runSession() throws IOException {
+        int read = 0;
+        long start = System.nanoTime();
+
+        try (var client = new LineClient(opts.host, opts.pop3Port, opts.timeoutMillis)) {
+            client.expect("+OK");
+            stats.record("POP3 connect", System.nanoTime() - start);
+
+            command(client, "USER devmail@example.com\r\n", "USER");
+            command(client, "PASS loadgen\r\n", "PASS");
+            command(client, "STAT\r\n", "STAT");
+
+            start = System.nanoTime();
+            client.send("LIST\r\n");
+            client.flush();
+            client.expect("+OK");
+            client.readMultiLine();
+            stats.record("LIST", System.nanoTime() - start);
+
+            //Find the messages that are ours to read
+            var mine = new ArrayList<Integer>();
+
+            start = System.nanoTime();
+            client.send("UIDL\r\n");
+            client.flush();
+            client.expect("+OK");
+
+            String line;
+
+            while (!(line = client.readLine()).equals(".")) {
+                var parts = line.split(" ");
+
+                if (Math.floorMod(parts[1].hashCode(), opts.readers) == readerId) {
+                    mine.add(Integer.parseInt(parts[0]));
+                }
+            }
+
+            stats.record("UIDL", System.nanoTime() - start);
+
+            for (int i = 0; i < opts.retrPerSession && !mine.isEmpty() && System.nanoTime() < deadline; ++i) {
+                int msg = mine.remove(ThreadLocalRandom.current().nextInt(mine.size()));
+
+                start = System.nanoTime();
+                client.send("RETR " + msg + "\r\n");
+                client.flush();
+                client.expect("+OK");
+                client.readMultiLine();
+                stats.record("RETR", System.nanoTime() - start);
+                stats.messagesRead.increment();
+                ++read;
+
+                if (opts.dele) {
+                    command(client, "DELE " + msg + "\r\n", "DELE");
+                }
+            }
+
+            command(client, "QUIT\r\n", "POP3 QUIT");
+        }
+
+        return read;
+    }
+
+    private void command(LineClient client, String cmd, String name) throws IOException {
+        long start = System.nanoTime();
+
+        client.send(cmd);
+        client.flush();
+        client.expect("+OK");
+        stats.record(name, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,14 @@
+package com.mobiarch.loadgen;
+
+import java.io.IOException;
+
+/**
+ * The server sent a reply other than the one expected.
+ */
+public class ProtocolException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String reply) {
+        super("Unexpected reply: " + reply);
+    }
+}
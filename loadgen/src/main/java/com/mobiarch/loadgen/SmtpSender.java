@@ -0,0 +1,172 @@
+package com.mobiarch.loadgen;
+
+import java.io.IOException;
+
+/**
+ * Sends messages over SMTP till the test is over. Reconnects after
+ * every {@link Options#messagesPerSession} messages.
+ *
+ * <p>With pipelining the latency of a command is the time from 
+ * sending the batch to reading the command's reply.</p>
+ */
+public class SmtpSender implements Runnable {
+    private final Options opts;
+    private final LoadStats stats;
+    private final MessageFactory messages;
+    private final long deadline;
+
+    public SmtpSender(Options opts, LoadStats stats, MessageFactory messages, long deadline) {
+        this.opts = opts;
+        this.stats = stats;
+        this.messages = messages;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public void run() {
+        while (System.nanoTime() < deadline) {
+            try {
+                runSession();
+            } catch (IOException e) {
+                stats.errors.increment();
+            }
+        }
+    }
+
+    private void runSession() throws IOException {
+        long start = System.nanoTime();
+
+        try (var client = new LineClient(opts.host, opts.smtpPort, opts.timeoutMillis)) {
+            client.expect("220");
+            stats.record("SMTP connect", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            client.send("EHLO loadgen\r\n");
+            client.flush();
+
+            while (!client.expect("250").startsWith("250 ")) {
+                //Skip the extension lines
+            }
+
+            stats.record("EHLO", System.nanoTime() - start);
+
+            for (int i = 0; i < opts.messagesPerSession && System.nanoTime() < deadline; ++i) {
+                if (opts.chunking) {
+                    sendWithBdat(client);
+                } else {
+                    sendWithData(client);
+                }
+            }
+
+            start = System.nanoTime();
+            client.send("QUIT\r\n");
+            client.flush();
+            client.expect("221");
+            stats.record("SMTP QUIT", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sends a command unless pipelining. Then returns the 
+     * time the reply is to be measured from.
+     */
+    private long send(LineClient client, String cmd, long batchStart) throws IOException {
+        client.send(cmd);
+
+        if (opts.pipelining) {
+            return batchStart;
+        }
+
+        client.flush();
+
+        return System.nanoTime();
+    }
+
+    private void sendWithData(LineClient client) throws IOException {
+        long start = System.nanoTime();
+        long mailStart = send(client, "MAIL FROM:<loadgen@example.com>\r\n", start);
+
+        if (!opts.pipelining) {
+            timedExpect(client, "250", "MAIL", mailStart);
+        }
+
+        long rcptStart = send(client, "RCPT TO:<devmail@example.com>\r\n", start);
+
+        if (!opts.pipelining) {
+            timedExpect(client, "250", "RCPT", rcptStart);
+        }
+
+        long dataStart = send(client, "DATA\r\n", start);
+
+        client.flush();
+
+        if (opts.pipelining) {
+            timedExpect(client, "250", "MAIL", mailStart);
+            timedExpect(client, "250", "RCPT", rcptStart);
+        }
+
+        timedExpect(client, "354", "DATA", dataStart);
+
+        var msg = messages.next(true);
+        long bodyStart = System.nanoTime();
+
+        client.send(msg, 0, msg.length);
+        client.flush();
+        timedExpect(client, "250", "DATA end", bodyStart);
+
+        stats.record("message", System.nanoTime() - start);
+        stats.messagesSent.increment();
+        stats.bytesSent.add(msg.length);
+    }
+
+    private void sendWithBdat(LineClient client) throws IOException {
+        long start = System.nanoTime();
+        long mailStart = send(client, "MAIL FROM:<loadgen@example.com>\r\n", start);
+
+        if (!opts.pipelining) {
+            timedExpect(client, "250", "MAIL", mailStart);
+        }
+
+        long rcptStart = send(client, "RCPT TO:<devmail@example.com>\r\n", start);
+
+        if (!opts.pipelining) {
+            timedExpect(client, "250", "RCPT", rcptStart);
+        }
+
+        var msg = messages.next(false);
+        int chunks = 0;
+
+        for (int offset = 0; offset < msg.length; offset += opts.chunkSize) {
+            int size = Math.min(opts.chunkSize, msg.length - offset);
+            boolean isLast = offset + size == msg.length;
+            long chunkStart = send(client, "BDAT " + size + (isLast ? " LAST\r\n" : "\r\n"), start);
+
+            client.send(msg, offset, size);
+            ++chunks;
+
+            if (!opts.pipelining) {
+                client.flush();
+                timedExpect(client, "250", "BDAT", chunkStart);
+            }
+        }
+
+        if (opts.pipelining) {
+            client.flush();
+            timedExpect(client, "250", "MAIL", start);
+            timedExpect(client, "250", "RCPT", start);
+
+            for (int i = 0; i < chunks; ++i) {
+                timedExpect(client, "250", "BDAT", start);
+            }
+        }
+
+        stats.record("message", System.nanoTime() - start);
+        stats.messagesSent.increment();
+        stats.bytesSent.add(msg.length);
+    }
+
+    private void timedExpect(LineClient client, String prefix, String command, long start) throws IOException {
+        client.expect(prefix);
+        stats.record(command, System.nanoTime() - start);
+    }
+}